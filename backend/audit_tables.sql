@@ -1,8 +1,15 @@
 -- Создание таблиц для системы аудита и логирования
 
--- Таблица событий аудита
+-- Последовательность идентификаторов аудита с шагом 50 (pooled-генератор Hibernate,
+-- пакетная JDBC-вставка берёт блоки из неё же)
+CREATE SEQUENCE IF NOT EXISTS audit_events_seq INCREMENT BY 50;
+
+-- Таблица событий аудита: секционирована по event_timestamp (секции по суткам или месяцам UTC
+-- создаёт AuditPartitionService заранее, очистка удаляет секции целиком).
+-- Первичный ключ включает ключ секционирования и начинается с времени: он же служит индексом
+-- выборок по времени и keyset-страниц (время, id).
 CREATE TABLE IF NOT EXISTS audit_events (
-    id BIGSERIAL PRIMARY KEY,
+    id BIGINT NOT NULL DEFAULT nextval('audit_events_seq'),
     event_type VARCHAR(50) NOT NULL,
     event_category VARCHAR(30) NOT NULL,
     card_id VARCHAR(64),
@@ -16,60 +23,204 @@ CREATE TABLE IF NOT EXISTS audit_events (
     ip_address VARCHAR(45),
     user_agent VARCHAR(500),
     session_id VARCHAR(100),
-    additional_data TEXT
-);
+    additional_data TEXT,
+    ingested_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    PRIMARY KEY (event_timestamp, id)
+) PARTITION BY RANGE (event_timestamp);
 
--- Таблица истории доступа
-CREATE TABLE IF NOT EXISTS access_history (
-    id BIGSERIAL PRIMARY KEY,
-    card_id VARCHAR(64) NOT NULL,
+-- Поля доступа: заполняются только для проверок карт (одна запись на тап)
+ALTER TABLE audit_events ADD COLUMN IF NOT EXISTS access_type VARCHAR(20);
+ALTER TABLE audit_events ADD COLUMN IF NOT EXISTS counter_value BIGINT;
+ALTER TABLE audit_events ADD COLUMN IF NOT EXISTS failure_reason VARCHAR(200);
+ALTER TABLE audit_events ADD COLUMN IF NOT EXISTS response_time_ms BIGINT;
+
+-- Момент записи строки (часы БД): по нему AuditRollupService учитывает строки в свёртках, поэтому
+-- строки, записанные позже своего event_timestamp (очередь AuditPipeline, повторы после сбоя БД,
+-- перенос access_history), тоже попадают в свёртки. Существующие строки получают event_timestamp:
+-- для них прежний watermark по времени события остаётся верным.
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+                   WHERE table_name = 'audit_events' AND column_name = 'ingested_at') THEN
+        ALTER TABLE audit_events ADD COLUMN ingested_at TIMESTAMP WITH TIME ZONE;
+        UPDATE audit_events SET ingested_at = event_timestamp;
+        ALTER TABLE audit_events ALTER COLUMN ingested_at SET DEFAULT NOW();
+        ALTER TABLE audit_events ALTER COLUMN ingested_at SET NOT NULL;
+    END IF;
+END $$;
+
+-- Миграция с BIGSERIAL: продолжаем нумерацию после существующих записей (последовательность не откатывается)
+ALTER TABLE audit_events ALTER COLUMN id SET DEFAULT nextval('audit_events_seq');
+SELECT setval('audit_events_seq', GREATEST((SELECT last_value FROM audit_events_seq),
+                                           (SELECT COALESCE(MAX(id), 0) + 50 FROM audit_events)));
+
+-- Миграция несекционированной audit_events: прежняя таблица становится секцией audit_events_legacy
+-- (до начала текущих суток UTC) и удаляется очисткой целиком, когда все её строки устареют.
+-- Строки с начала суток переносятся в секцию по умолчанию, оттуда - в суточные секции при их создании.
+-- Прежние индексы заменяются сокращённым набором ниже.
+DO $$
+DECLARE
+    bound TIMESTAMP WITH TIME ZONE := date_trunc('day', now() AT TIME ZONE 'UTC') AT TIME ZONE 'UTC';
+BEGIN
+    IF EXISTS (SELECT 1 FROM pg_class WHERE oid = to_regclass('audit_events') AND relkind = 'r') THEN
+        ALTER TABLE audit_events RENAME TO audit_events_legacy;
+        ALTER INDEX IF EXISTS audit_events_pkey RENAME TO audit_events_legacy_pkey;
+        DROP INDEX IF EXISTS idx_audit_events_timestamp, idx_audit_events_type, idx_audit_events_category,
+            idx_audit_events_card_id, idx_audit_events_reader_id, idx_audit_events_success, idx_audit_events_ip,
+            idx_audit_events_access_timestamp, idx_audit_events_card_timestamp, idx_audit_events_reader_timestamp,
+            idx_audit_events_success_timestamp, idx_audit_events_failures;
+
+        CREATE TABLE audit_events (LIKE audit_events_legacy INCLUDING DEFAULTS) PARTITION BY RANGE (event_timestamp);
+        ALTER TABLE audit_events ADD PRIMARY KEY (event_timestamp, id);
+        CREATE TABLE audit_events_default PARTITION OF audit_events DEFAULT;
+
+        INSERT INTO audit_events_default SELECT * FROM audit_events_legacy WHERE event_timestamp >= bound;
+        DELETE FROM audit_events_legacy WHERE event_timestamp >= bound;
+        EXECUTE format('ALTER TABLE audit_events ATTACH PARTITION audit_events_legacy FOR VALUES FROM (MINVALUE) TO (%L)',
+                       bound);
+    END IF;
+END $$;
+
+-- Секция по умолчанию: строки вне созданных секций (до их создания при старте, сильно сдвинутое время)
+CREATE TABLE IF NOT EXISTS audit_events_default PARTITION OF audit_events DEFAULT;
+
+-- Миграция: прежняя таблица access_history сохраняется как access_history_legacy
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM pg_class WHERE oid = to_regclass('access_history') AND relkind = 'r') THEN
+        ALTER TABLE access_history RENAME TO access_history_legacy;
+    END IF;
+END $$;
+
+-- Перенос строк прежней access_history в audit_events (один раз): строка доступа становится событием
+-- ACCESS_HISTORY с полями доступа, поэтому история до миграции остаётся в представлении access_history,
+-- выгрузках и статистике. Отдельный тип не удваивает ACCESS_GRANTED / ACCESS_DENIED: прежние события
+-- аудита тех же проверок лежат в audit_events без полей доступа. location сохраняется в message.
+-- Перенесённые строки получают ingested_at момента миграции и учитываются в свёртках следующим запуском.
+-- После переноса таблица переименовывается в access_history_migrated (её можно удалить).
+DO $$
+BEGIN
+    IF to_regclass('access_history_legacy') IS NOT NULL THEN
+        INSERT INTO audit_events (event_type, event_category, card_id, reader_id, owner, user_role, event_timestamp,
+                                  success, message, ip_address, user_agent, additional_data,
+                                  access_type, counter_value, failure_reason, response_time_ms)
+        SELECT 'ACCESS_HISTORY', 'AUTHENTICATION', card_id, reader_id, owner, user_role, access_timestamp,
+               success, COALESCE('Location: ' || LEFT(location, 480), 'Migrated from access_history'),
+               ip_address, device_info, additional_metadata,
+               access_type, counter_value, failure_reason, response_time_ms
+        FROM access_history_legacy;
+
+        ALTER TABLE access_history_legacy RENAME TO access_history_migrated;
+    END IF;
+END $$;
+
+-- Миграция cards (таблица создаётся Hibernate): обёрнутый ключ длиннее открытого,
+-- ключ предыдущей версии хранится до подтверждения ротации картой,
+-- индекс для keyset-пагинации списка карт по времени создания
+DO $$
+BEGIN
+    IF to_regclass('cards') IS NOT NULL THEN
+        ALTER TABLE cards ALTER COLUMN k_master_b64 TYPE VARCHAR(128);
+        ALTER TABLE cards ADD COLUMN IF NOT EXISTS prev_k_master_b64 VARCHAR(128);
+        CREATE INDEX IF NOT EXISTS idx_cards_created_at ON cards(created_at, card_id_b64);
+    END IF;
+END $$;
+
+-- История доступа: представление над audit_events, отдельной записи на тап нет
+CREATE OR REPLACE VIEW access_history AS
+SELECT
+    e.id,
+    e.card_id,
+    e.reader_id,
+    e.owner,
+    e.user_role,
+    e.event_timestamp AS access_timestamp,
+    e.access_type,
+    e.success,
+    e.counter_value,
+    e.ip_address,
+    CAST(NULL AS VARCHAR(200)) AS location,
+    e.user_agent AS device_info,
+    e.failure_reason,
+    e.response_time_ms,
+    CAST(NULL AS TEXT) AS additional_metadata
+FROM audit_events e
+WHERE e.access_type IS NOT NULL;
+
+-- Индексы (на родительской таблице, создаются в каждой секции). Журнал пишется только в конец,
+-- поэтому индексов минимум: время и keyset - первичный ключ (event_timestamp, id), остальные
+-- ведут ко времени внутри карты/ридера либо покрывают частые подмножества. Одиночные индексы
+-- по типу, категории, успешности и IP не нужны: эти фильтры применяются внутри диапазона времени.
+CREATE INDEX IF NOT EXISTS idx_audit_events_card_ts ON audit_events(card_id, event_timestamp DESC);
+CREATE INDEX IF NOT EXISTS idx_audit_events_reader_ts ON audit_events(reader_id, event_timestamp DESC);
+
+-- Частичный индекс для выборок истории доступа (представление access_history)
+CREATE INDEX IF NOT EXISTS idx_audit_events_access_ts ON audit_events(event_timestamp DESC, id DESC) WHERE access_type IS NOT NULL;
+
+-- Индекс для поиска подозрительной активности
+CREATE INDEX IF NOT EXISTS idx_audit_events_failed_ts ON audit_events(event_timestamp DESC) WHERE success = FALSE;
+
+-- Индекс для свёртки по моменту записи (AuditRollupService)
+CREATE INDEX IF NOT EXISTS idx_audit_events_ingested ON audit_events(ingested_at);
+
+-- Свёртки аудита (AuditRollupService): число событий по часам и по суткам (UTC).
+-- Пустая строка в access_type / reader_id / card_id - NULL исходной строки (NULL не участвует в первичном ключе).
+-- Почасовые строки старше app.audit.rollup.hourly-retention-days удаляются, суточные хранятся
+-- и после очистки audit_events.
+CREATE TABLE IF NOT EXISTS audit_rollup_hourly (
+    bucket_start TIMESTAMP WITH TIME ZONE NOT NULL,
+    event_type VARCHAR(50) NOT NULL,
+    access_type VARCHAR(20) NOT NULL,
     reader_id VARCHAR(64) NOT NULL,
-    owner VARCHAR(100),
-    user_role VARCHAR(32),
-    access_timestamp TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    success BOOLEAN NOT NULL,
+    event_count BIGINT NOT NULL,
+    PRIMARY KEY (bucket_start, event_type, access_type, reader_id, success)
+);
+
+CREATE TABLE IF NOT EXISTS audit_rollup_daily (
+    bucket_start TIMESTAMP WITH TIME ZONE NOT NULL,
+    event_type VARCHAR(50) NOT NULL,
     access_type VARCHAR(20) NOT NULL,
-    success BOOLEAN NOT NULL DEFAULT FALSE,
-    counter_value BIGINT,
-    ip_address VARCHAR(45),
-    location VARCHAR(200),
-    device_info VARCHAR(500),
-    failure_reason VARCHAR(200),
-    response_time_ms BIGINT,
-    additional_metadata TEXT
+    reader_id VARCHAR(64) NOT NULL,
+    card_id VARCHAR(64) NOT NULL,
+    success BOOLEAN NOT NULL,
+    event_count BIGINT NOT NULL,
+    PRIMARY KEY (bucket_start, event_type, access_type, reader_id, card_id, success)
+);
+
+-- Момент записи (ingested_at), до которого строки audit_events учтены в свёртках
+CREATE TABLE IF NOT EXISTS audit_rollup_watermark (
+    name VARCHAR(50) PRIMARY KEY,
+    rolled_up_to TIMESTAMP WITH TIME ZONE NOT NULL,
+    updated_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW()
 );
 
--- Индексы для оптимизации запросов
-CREATE INDEX IF NOT EXISTS idx_audit_events_timestamp ON audit_events(event_timestamp DESC);
-CREATE INDEX IF NOT EXISTS idx_audit_events_type ON audit_events(event_type);
-CREATE INDEX IF NOT EXISTS idx_audit_events_category ON audit_events(event_category);
-CREATE INDEX IF NOT EXISTS idx_audit_events_card_id ON audit_events(card_id);
-CREATE INDEX IF NOT EXISTS idx_audit_events_reader_id ON audit_events(reader_id);
-CREATE INDEX IF NOT EXISTS idx_audit_events_success ON audit_events(success);
-CREATE INDEX IF NOT EXISTS idx_audit_events_ip ON audit_events(ip_address);
-
-CREATE INDEX IF NOT EXISTS idx_access_history_timestamp ON access_history(access_timestamp DESC);
-CREATE INDEX IF NOT EXISTS idx_access_history_card_id ON access_history(card_id);
-CREATE INDEX IF NOT EXISTS idx_access_history_reader_id ON access_history(reader_id);
-CREATE INDEX IF NOT EXISTS idx_access_history_type ON access_history(access_type);
-CREATE INDEX IF NOT EXISTS idx_access_history_success ON access_history(success);
-CREATE INDEX IF NOT EXISTS idx_access_history_ip ON access_history(ip_address);
-
--- Составные индексы для часто используемых запросов
-CREATE INDEX IF NOT EXISTS idx_audit_events_card_timestamp ON audit_events(card_id, event_timestamp DESC);
-CREATE INDEX IF NOT EXISTS idx_audit_events_reader_timestamp ON audit_events(reader_id, event_timestamp DESC);
-CREATE INDEX IF NOT EXISTS idx_audit_events_success_timestamp ON audit_events(success, event_timestamp DESC);
-
-CREATE INDEX IF NOT EXISTS idx_access_history_card_timestamp ON access_history(card_id, access_timestamp DESC);
-CREATE INDEX IF NOT EXISTS idx_access_history_reader_timestamp ON access_history(reader_id, access_timestamp DESC);
-CREATE INDEX IF NOT EXISTS idx_access_history_success_timestamp ON access_history(success, access_timestamp DESC);
-
--- Индексы для поиска подозрительной активности
-CREATE INDEX IF NOT EXISTS idx_audit_events_failures ON audit_events(success, event_timestamp DESC) WHERE success = FALSE;
-CREATE INDEX IF NOT EXISTS idx_access_history_failures ON access_history(success, access_timestamp DESC) WHERE success = FALSE;
+-- Состояние фонового задания очистки аудита (AuditRetentionService): границы хранения по категориям,
+-- курсор (event_timestamp, id) последней удалённой порции и счётчики. Курсор переносится в транзакции
+-- удаления порции, поэтому после сбоя задание продолжается с места остановки (на любом узле,
+-- когда истечёт аренда владельца).
+CREATE TABLE IF NOT EXISTS audit_retention_job (
+    name VARCHAR(50) PRIMARY KEY,
+    status VARCHAR(20) NOT NULL,
+    owner VARCHAR(64) NOT NULL,
+    policy TEXT NOT NULL,
+    range_start TIMESTAMP WITH TIME ZONE,
+    cursor_ts TIMESTAMP WITH TIME ZONE,
+    cursor_id BIGINT,
+    deleted_rows BIGINT NOT NULL DEFAULT 0,
+    chunks BIGINT NOT NULL DEFAULT 0,
+    dropped_partitions INTEGER NOT NULL DEFAULT 0,
+    started_at TIMESTAMP WITH TIME ZONE NOT NULL,
+    updated_at TIMESTAMP WITH TIME ZONE NOT NULL,
+    finished_at TIMESTAMP WITH TIME ZONE,
+    error VARCHAR(500)
+);
 
 -- Комментарии к таблицам
 COMMENT ON TABLE audit_events IS 'События аудита системы контроля доступа';
-COMMENT ON TABLE access_history IS 'История доступа к картам';
+COMMENT ON VIEW access_history IS 'История доступа к картам (строки audit_events с access_type)';
+COMMENT ON TABLE audit_rollup_hourly IS 'Почасовые свёртки audit_events (UTC)';
+COMMENT ON TABLE audit_rollup_daily IS 'Суточные свёртки audit_events (UTC), с разбивкой по картам';
 
 COMMENT ON COLUMN audit_events.event_type IS 'Тип события (CARD_CREATED, ACCESS_GRANTED, etc.)';
 COMMENT ON COLUMN audit_events.event_category IS 'Категория события (AUTHENTICATION, AUTHORIZATION, etc.)';
@@ -82,21 +233,20 @@ COMMENT ON COLUMN audit_events.user_agent IS 'User-Agent браузера/кли
 COMMENT ON COLUMN audit_events.session_id IS 'ID сессии';
 COMMENT ON COLUMN audit_events.additional_data IS 'Дополнительные данные в JSON формате';
 
-COMMENT ON COLUMN access_history.access_type IS 'Тип доступа (CARD_VERIFICATION, QR_SCAN, etc.)';
-COMMENT ON COLUMN access_history.counter_value IS 'Значение счетчика для anti-replay';
-COMMENT ON COLUMN access_history.location IS 'Местоположение доступа';
-COMMENT ON COLUMN access_history.device_info IS 'Информация об устройстве';
-COMMENT ON COLUMN access_history.failure_reason IS 'Причина неудачи (если есть)';
-COMMENT ON COLUMN access_history.response_time_ms IS 'Время ответа в миллисекундах';
-COMMENT ON COLUMN access_history.additional_metadata IS 'Дополнительные метаданные в JSON формате';
+COMMENT ON COLUMN audit_events.access_type IS 'Тип доступа (CARD_VERIFICATION, QR_SCAN, etc.), NULL для прочих событий';
+COMMENT ON COLUMN audit_events.counter_value IS 'Значение счетчика для anti-replay';
+COMMENT ON COLUMN audit_events.failure_reason IS 'Причина неудачи (если есть)';
+COMMENT ON COLUMN audit_events.response_time_ms IS 'Время ответа в миллисекундах';
+COMMENT ON COLUMN audit_events.ingested_at IS 'Момент записи строки (по нему строятся свёртки)';
 
--- Функция для автоматической очистки старых записей (опционально)
+-- Функция для ручной очистки старых записей построчно (опционально); приложение очищает
+-- аудит фоновым заданием порциями и удаляет устаревшие секции целиком (POST /api/audit/cleanup)
 CREATE OR REPLACE FUNCTION cleanup_old_audit_records()
 RETURNS void AS $$
 BEGIN
     -- Удаляем записи старше 90 дней
+    -- access_history - представление над audit_events, удаляется вместе с ней
     DELETE FROM audit_events WHERE event_timestamp < NOW() - INTERVAL '90 days';
-    DELETE FROM access_history WHERE access_timestamp < NOW() - INTERVAL '90 days';
     
     -- Логируем количество удаленных записей
     RAISE NOTICE 'Cleaned up old audit records';
@@ -0,0 +1,135 @@
+package backend.bench;
+
+import backend.util.KeyWrapService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Обёртка/развёртка ключей карт (ключей/с): прежний одиночный путь
+ * (new SecureRandom и Cipher.getInstance на вызов), wrapKey/unwrapKey и пакетные wrapAll/unwrapAll.
+ * Каждый вызов обрабатывает KEYS ключей, поэтому ops/s - это ключей/с:
+ *   ./gradlew :backend:jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyWrapBenchmark {
+
+    private static final int KEYS = 10_000;
+    private static final int KEY_LENGTH = KeyWrapService.KEY_LENGTH;
+
+    private final KeyWrapService keyWrapService = new KeyWrapService();
+    // Отдельный KEK для прежнего пути: он воспроизводится целиком
+    private final SecretKeySpec legacyKek = new SecretKeySpec(new byte[32], "AES");
+
+    private byte[] material;
+    private String[] legacyWrapped;
+    private String[] wrapped;
+    private byte[] packed;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        material = keyWrapService.generateKeys(KEYS);
+        legacyWrapped = new String[KEYS];
+        wrapped = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            legacyWrapped[i] = legacyWrap(material, i * KEY_LENGTH);
+            wrapped[i] = keyWrapService.wrapKey(Arrays.copyOfRange(material, i * KEY_LENGTH, (i + 1) * KEY_LENGTH));
+        }
+        packed = KeyWrapService.decodeWrapped(wrapped, KEY_LENGTH);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Arrays.fill(material, (byte) 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void legacySingleWrap(Blackhole bh) throws GeneralSecurityException {
+        for (int i = 0; i < KEYS; i++) {
+            bh.consume(legacyWrap(material, i * KEY_LENGTH));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void singleWrap(Blackhole bh) {
+        for (int i = 0; i < KEYS; i++) {
+            bh.consume(keyWrapService.wrapKey(Arrays.copyOfRange(material, i * KEY_LENGTH, (i + 1) * KEY_LENGTH)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public byte[] batchWrap() {
+        return keyWrapService.wrapAll(material, KEY_LENGTH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void legacySingleUnwrap(Blackhole bh) throws GeneralSecurityException {
+        for (String key : legacyWrapped) {
+            bh.consume(legacyUnwrap(key));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void singleUnwrap(Blackhole bh) {
+        for (String key : wrapped) {
+            bh.consume(keyWrapService.unwrapKey(key));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public byte[] batchUnwrap() {
+        return keyWrapService.unwrapAll(packed, KEY_LENGTH);
+    }
+
+    // Прежняя реализация KeyWrapService.wrapKey / unwrapKey
+    private String legacyWrap(byte[] keys, int offset) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, legacyKek, new GCMParameterSpec(128, iv));
+        byte[] encrypted = cipher.doFinal(keys, offset, KEY_LENGTH);
+        byte[] result = new byte[iv.length + encrypted.length];
+        System.arraycopy(iv, 0, result, 0, iv.length);
+        System.arraycopy(encrypted, 0, result, iv.length, encrypted.length);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(result);
+    }
+
+    private byte[] legacyUnwrap(String key) throws GeneralSecurityException {
+        byte[] bytes = Base64.getUrlDecoder().decode(key);
+        byte[] iv = Arrays.copyOfRange(bytes, 0, 12);
+        byte[] encrypted = Arrays.copyOfRange(bytes, 12, bytes.length);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, legacyKek, new GCMParameterSpec(128, iv));
+        return cipher.doFinal(encrypted);
+    }
+}
@@ -1,13 +1,28 @@
 package backend.api;
 
+import backend.cache.CardIdFilter;
+import backend.cache.CardKeyCache;
+import backend.cache.CardSnapshotCache;
+import backend.cache.ReplayCounterTable;
+import backend.dto.CardListFilter;
 import backend.model.CardRecord;
 import backend.repo.CardRepository;
+import backend.service.CardListService;
 import backend.service.CardService;
+import backend.service.DeniedAccessSummary;
+import backend.service.KeyRotationService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.constraints.Min;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.List;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
 import java.util.Map;
 
 @RestController
@@ -15,9 +30,28 @@ import java.util.Map;
 public class AdminController {
     private final CardService cardService;
     private final CardRepository repo;
-    public AdminController(CardService cardService, CardRepository repo) {
+    private final CardSnapshotCache cardSnapshotCache;
+    private final CardKeyCache cardKeyCache;
+    private final ReplayCounterTable replayCounterTable;
+    private final CardIdFilter cardIdFilter;
+    private final DeniedAccessSummary deniedAccessSummary;
+    private final KeyRotationService keyRotationService;
+    private final CardListService cardListService;
+    private final ObjectMapper objectMapper;
+    public AdminController(CardService cardService, CardRepository repo, CardSnapshotCache cardSnapshotCache,
+                           CardKeyCache cardKeyCache, ReplayCounterTable replayCounterTable, CardIdFilter cardIdFilter,
+                           DeniedAccessSummary deniedAccessSummary, KeyRotationService keyRotationService,
+                           CardListService cardListService, ObjectMapper objectMapper) {
         this.cardService = cardService;
         this.repo = repo;
+        this.cardSnapshotCache = cardSnapshotCache;
+        this.cardKeyCache = cardKeyCache;
+        this.replayCounterTable = replayCounterTable;
+        this.cardIdFilter = cardIdFilter;
+        this.deniedAccessSummary = deniedAccessSummary;
+        this.keyRotationService = keyRotationService;
+        this.cardListService = cardListService;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping("/revoke/{cardId}")
@@ -37,10 +71,86 @@ public class AdminController {
         return repo.findById(cardId).map(ResponseEntity::ok).orElseGet(() -> ResponseEntity.notFound().build());
     }
 
+    /**
+     * Список карт (CardSummary) JSON-массивом. С limit - одна страница, курсор следующей в X-Next-Cursor;
+     * без limit - весь отфильтрованный список потоком (начиная после cursor, если он задан)
+     */
     @GetMapping("/list")
-    public ResponseEntity<List<CardRecord>> list() {
-        return ResponseEntity.ok(repo.findAll());
+    public void list(@RequestParam(required = false) String role,
+                     @RequestParam(required = false) Boolean active,
+                     @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant expiresAfter,
+                     @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant expiresBefore,
+                     @RequestParam(required = false) String sort,
+                     @RequestParam(required = false) String cursor,
+                     @RequestParam(required = false) Integer limit,
+                     HttpServletResponse response) throws IOException {
+        CardListFilter filter = new CardListFilter();
+        filter.setUserRole(role);
+        filter.setActive(active);
+        filter.setExpiresAfter(expiresAfter);
+        filter.setExpiresBefore(expiresBefore);
+        CardListService.Page page = null;
+        try {
+            filter.setOrderByCreatedAt(CardListService.orderByCreatedAt(sort));
+            if (limit != null) {
+                if (limit < 1 || limit > cardListService.getMaxLimit()) {
+                    throw new IllegalArgumentException("Unsupported limit: " + limit);
+                }
+                page = cardListService.page(filter, cursor, limit);
+            } else {
+                // Курсор проверяется до начала записи ответа
+                cardListService.checkCursor(filter, cursor);
+            }
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.getWriter().write(objectMapper.writeValueAsString(Map.of("status", "FAIL")));
+            return;
+        }
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        if (page != null) {
+            if (page.getNextCursor() != null) {
+                response.setHeader("X-Next-Cursor", page.getNextCursor());
+            }
+            cardListService.writeArray(page.getItems(), response.getOutputStream());
+        } else {
+            cardListService.writeAll(filter, cursor, response.getOutputStream());
+        }
+    }
+
+    @GetMapping("/cache/stats")
+    public ResponseEntity<Map<String, Object>> cacheStats() {
+        return ResponseEntity.ok(cardSnapshotCache.stats());
     }
-}
 
+    @GetMapping("/cache/keys/stats")
+    public ResponseEntity<Map<String, Object>> cardKeyCacheStats() {
+        return ResponseEntity.ok(cardKeyCache.stats());
+    }
+
+    @GetMapping("/replay/stats")
+    public ResponseEntity<Map<String, Object>> replayStats() {
+        return ResponseEntity.ok(replayCounterTable.stats());
+    }
 
+    @GetMapping("/card-filter/stats")
+    public ResponseEntity<Map<String, Object>> cardFilterStats() {
+        Map<String, Object> stats = new HashMap<>(cardIdFilter.stats());
+        stats.putAll(deniedAccessSummary.stats());
+        return ResponseEntity.ok(stats);
+    }
+
+    @PostMapping("/card-filter/rebuild")
+    public ResponseEntity<Map<String, Object>> rebuildCardFilter() {
+        cardIdFilter.rebuild();
+        return ResponseEntity.ok(cardIdFilter.stats());
+    }
+
+    @GetMapping("/rotation/stats")
+    public ResponseEntity<Map<String, Object>> rotationStats() {
+        return ResponseEntity.ok(keyRotationService.stats());
+    }
+}
@@ -1,37 +1,56 @@
 package backend.api;
 
+import backend.dto.AuditFilter;
 import backend.model.AccessHistory;
 import backend.model.AuditEvent;
+import backend.service.AuditEventStream;
+import backend.service.AuditExportService;
 import backend.service.AuditService;
-import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
 import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/api/audit")
 public class AuditController {
     
+    // Предел size в keyset-режиме списков
+    private static final int MAX_KEYSET_PAGE_SIZE = 1000;
+    
     private final AuditService auditService;
+    private final AuditExportService auditExportService;
+    private final AuditEventStream auditEventStream;
     
-    public AuditController(AuditService auditService) {
+    public AuditController(AuditService auditService, AuditExportService auditExportService,
+                           AuditEventStream auditEventStream) {
         this.auditService = auditService;
+        this.auditExportService = auditExportService;
+        this.auditEventStream = auditEventStream;
     }
     
     /**
-     * Получение событий аудита с фильтрами
+     * Получение событий аудита с фильтрами.
+     * С cursor или keyset=true - keyset-страница по (eventTimestamp, id) с фильтрами и курсором следующей
+     * страницы, COUNT(*) только при count=true; иначе прежняя страница по номеру.
      */
     @GetMapping("/events")
-    public ResponseEntity<Page<AuditEvent>> getAuditEvents(
+    public ResponseEntity<?> getAuditEvents(
             @RequestParam(required = false) String eventType,
             @RequestParam(required = false) String eventCategory,
             @RequestParam(required = false) String cardId,
@@ -42,7 +61,30 @@ public class AuditController {
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "20") int size,
             @RequestParam(defaultValue = "eventTimestamp") String sortBy,
-            @RequestParam(defaultValue = "desc") String sortDir) {
+            @RequestParam(defaultValue = "desc") String sortDir,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean keyset,
+            @RequestParam(defaultValue = "false") boolean count) {
+        
+        if (keyset || cursor != null) {
+            if (!"eventTimestamp".equals(sortBy) || size < 1 || size > MAX_KEYSET_PAGE_SIZE) {
+                return ResponseEntity.badRequest().body(Map.of("status", "FAIL"));
+            }
+            AuditFilter filter = new AuditFilter();
+            filter.setEventType(eventType);
+            filter.setEventCategory(eventCategory);
+            filter.setCardId(cardId);
+            filter.setReaderId(readerId);
+            filter.setSuccess(success);
+            filter.setStartTime(startTime);
+            filter.setEndTime(endTime);
+            try {
+                return ResponseEntity.ok(auditService.getAuditEventsAfter(filter,
+                    sortDir.equalsIgnoreCase("asc"), cursor, size, count));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(Map.of("status", "FAIL"));
+            }
+        }
         
         Sort sort = sortDir.equalsIgnoreCase("desc") ? 
             Sort.by(sortBy).descending() : Sort.by(sortBy).ascending();
@@ -54,10 +96,11 @@ public class AuditController {
     }
     
     /**
-     * Получение истории доступа с фильтрами
+     * Получение истории доступа с фильтрами.
+     * С cursor или keyset=true - keyset-страница по (accessTimestamp, id), как у /events.
      */
     @GetMapping("/access-history")
-    public ResponseEntity<Page<AccessHistory>> getAccessHistory(
+    public ResponseEntity<?> getAccessHistory(
             @RequestParam(required = false) String cardId,
             @RequestParam(required = false) String readerId,
             @RequestParam(required = false) String owner,
@@ -68,7 +111,30 @@ public class AuditController {
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "20") int size,
             @RequestParam(defaultValue = "accessTimestamp") String sortBy,
-            @RequestParam(defaultValue = "desc") String sortDir) {
+            @RequestParam(defaultValue = "desc") String sortDir,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean keyset,
+            @RequestParam(defaultValue = "false") boolean count) {
+        
+        if (keyset || cursor != null) {
+            if (!"accessTimestamp".equals(sortBy) || size < 1 || size > MAX_KEYSET_PAGE_SIZE) {
+                return ResponseEntity.badRequest().body(Map.of("status", "FAIL"));
+            }
+            AuditFilter filter = new AuditFilter();
+            filter.setCardId(cardId);
+            filter.setReaderId(readerId);
+            filter.setOwner(owner);
+            filter.setAccessType(accessType);
+            filter.setSuccess(success);
+            filter.setStartTime(startTime);
+            filter.setEndTime(endTime);
+            try {
+                return ResponseEntity.ok(auditService.getAccessHistoryAfter(filter,
+                    sortDir.equalsIgnoreCase("asc"), cursor, size, count));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(Map.of("status", "FAIL"));
+            }
+        }
         
         Sort sort = sortDir.equalsIgnoreCase("desc") ? 
             Sort.by(sortBy).descending() : Sort.by(sortBy).ascending();
@@ -117,6 +183,30 @@ public class AuditController {
         return ResponseEntity.ok(statistics);
     }
     
+    /**
+     * Состояние счётчиков статистики в памяти (засев, число учтённых записей)
+     */
+    @GetMapping("/statistics/state")
+    public ResponseEntity<Map<String, Object>> getStatisticsState() {
+        return ResponseEntity.ok(auditService.getStatisticsState());
+    }
+    
+    /**
+     * Состояние фоновой свёртки аудита (watermark, отставание, шаги)
+     */
+    @GetMapping("/rollup/stats")
+    public ResponseEntity<Map<String, Object>> getRollupStats() {
+        return ResponseEntity.ok(auditService.getRollupStats());
+    }
+    
+    /**
+     * Состояние асинхронной записи аудита (очередь, пакеты, переполнения)
+     */
+    @GetMapping("/pipeline/stats")
+    public ResponseEntity<Map<String, Object>> getPipelineStatistics() {
+        return ResponseEntity.ok(auditService.getPipelineStatistics());
+    }
+    
     /**
      * Поиск подозрительной активности
      */
@@ -147,6 +237,22 @@ public class AuditController {
         return ResponseEntity.ok(suspiciousIPs);
     }
     
+    /**
+     * Последние тревоги детектора подозрительной активности (превышение порога отказов за окно)
+     */
+    @GetMapping("/alerts")
+    public ResponseEntity<List<Map<String, Object>>> getSuspiciousAlerts() {
+        return ResponseEntity.ok(auditService.getSuspiciousAlerts());
+    }
+    
+    /**
+     * Состояние детектора подозрительной активности
+     */
+    @GetMapping("/detector/stats")
+    public ResponseEntity<Map<String, Object>> getDetectorStats() {
+        return ResponseEntity.ok(auditService.getDetectorStats());
+    }
+    
     /**
      * Получение среднего времени ответа по ридерам
      */
@@ -203,120 +309,197 @@ public class AuditController {
     }
     
     /**
-     * Очистка старых записей аудита
+     * Запуск фоновой очистки старых записей аудита (retentionDays - срок для категорий без своей политики);
+     * ход задания - GET /cleanup/status
      */
     @PostMapping("/cleanup")
-    public ResponseEntity<Map<String, String>> cleanupOldRecords(
-            @RequestParam(defaultValue = "90") int retentionDays) {
+    public ResponseEntity<Map<String, Object>> cleanupOldRecords(
+            @RequestParam(required = false) Integer retentionDays) {
+        if (retentionDays != null && retentionDays < 1) {
+            return ResponseEntity.badRequest().body(Map.of("status", "FAIL"));
+        }
+        boolean started = auditService.startCleanup(retentionDays);
         
-        auditService.cleanupOldRecords(retentionDays);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("status", started ? "STARTED" : "RUNNING");
+        result.put("job", auditService.getCleanupStatus());
         
-        Map<String, String> result = Map.of(
-            "status", "OK",
-            "message", "Cleaned up records older than " + retentionDays + " days"
-        );
+        return ResponseEntity.status(started ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT).body(result);
+    }
+    
+    /**
+     * Состояние задания очистки: границы хранения по категориям, курсор, удалено строк, скорость, прогресс
+     */
+    @GetMapping("/cleanup/status")
+    public ResponseEntity<Map<String, Object>> getCleanupStatus() {
+        return ResponseEntity.ok(auditService.getCleanupStatus());
+    }
+    
+    /**
+     * Секции audit_events (границы) и счётчики их создания и удаления
+     */
+    @GetMapping("/partitions")
+    public ResponseEntity<Map<String, Object>> getPartitionStats() {
+        return ResponseEntity.ok(auditService.getPartitionStats());
+    }
+    
+    /**
+     * Поток новых событий аудита и тревог (Server-Sent Events) с фильтрами по типам, карте, ридеру
+     * и успешности. Last-Event-ID (заголовок или параметр) - продолжение после переподключения.
+     * 503, если подписчиков уже app.audit.stream.max-subscribers; 400 - неизвестный тип
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamEvents(
+            @RequestParam(defaultValue = "access,alert") List<String> types,
+            @RequestParam(required = false) String cardId,
+            @RequestParam(required = false) String readerId,
+            @RequestParam(required = false) Boolean success,
+            @RequestParam(required = false) Long lastEventId,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventIdHeader) {
         
-        return ResponseEntity.ok(result);
+        Set<String> streamTypes = Set.copyOf(types);
+        if (!AuditEventStream.TYPES.containsAll(streamTypes)) {
+            return ResponseEntity.badRequest().build();
+        }
+        Long resumeFrom = lastEventId;
+        if (lastEventIdHeader != null && !lastEventIdHeader.isBlank()) {
+            try {
+                resumeFrom = Long.parseLong(lastEventIdHeader.trim());
+            } catch (NumberFormatException e) {
+                return ResponseEntity.badRequest().build();
+            }
+        }
+        SseEmitter emitter = auditEventStream.subscribe(
+            new AuditEventStream.Filter(streamTypes, cardId, readerId, success), resumeFrom);
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "5").build();
+        }
+        return ResponseEntity.ok(emitter);
+    }
+    
+    /**
+     * Состояние потока событий (подписчики, история, доставлено и вытеснено событий)
+     */
+    @GetMapping("/stream/stats")
+    public ResponseEntity<Map<String, Object>> getStreamStatistics() {
+        return ResponseEntity.ok(auditEventStream.stats());
     }
     
     /**
-     * Экспорт событий аудита в CSV
+     * Экспорт событий аудита в CSV или NDJSON с фильтрами, потоком из курсора БД (gzip=true - сжатый файл)
      */
     @GetMapping("/export/events")
-    public ResponseEntity<String> exportEvents(
+    public void exportEvents(
             @RequestParam(required = false) String eventType,
             @RequestParam(required = false) String eventCategory,
             @RequestParam(required = false) String cardId,
             @RequestParam(required = false) String readerId,
             @RequestParam(required = false) Boolean success,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
-            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
-        
-        // Получаем все события без пагинации для экспорта
-        Pageable pageable = PageRequest.of(0, Integer.MAX_VALUE, Sort.by("eventTimestamp").descending());
-        Page<AuditEvent> events = auditService.getAllAuditEvents(pageable);
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime,
+            @RequestParam(defaultValue = "csv") String format,
+            @RequestParam(defaultValue = "false") boolean gzip,
+            HttpServletResponse response) throws IOException {
         
-        StringBuilder csv = new StringBuilder();
-        csv.append("ID,Event Type,Event Category,Card ID,Reader ID,Owner,User Role,");
-        csv.append("Event Timestamp,Success,Message,Error Code,IP Address,User Agent,Session ID,Additional Data\n");
+        AuditFilter filter = new AuditFilter();
+        filter.setEventType(eventType);
+        filter.setEventCategory(eventCategory);
+        filter.setCardId(cardId);
+        filter.setReaderId(readerId);
+        filter.setSuccess(success);
+        filter.setStartTime(startTime);
+        filter.setEndTime(endTime);
         
-        for (AuditEvent event : events.getContent()) {
-            csv.append(event.getId()).append(",");
-            csv.append(escapeCsv(event.getEventType())).append(",");
-            csv.append(escapeCsv(event.getEventCategory())).append(",");
-            csv.append(escapeCsv(event.getCardId())).append(",");
-            csv.append(escapeCsv(event.getReaderId())).append(",");
-            csv.append(escapeCsv(event.getOwner())).append(",");
-            csv.append(escapeCsv(event.getUserRole())).append(",");
-            csv.append(event.getEventTimestamp()).append(",");
-            csv.append(event.isSuccess()).append(",");
-            csv.append(escapeCsv(event.getMessage())).append(",");
-            csv.append(escapeCsv(event.getErrorCode())).append(",");
-            csv.append(escapeCsv(event.getIpAddress())).append(",");
-            csv.append(escapeCsv(event.getUserAgent())).append(",");
-            csv.append(escapeCsv(event.getSessionId())).append(",");
-            csv.append(escapeCsv(event.getAdditionalData())).append("\n");
+        AuditExportService.Format exportFormat = startExport(format, gzip, "audit_events", response);
+        if (exportFormat != null) {
+            try {
+                auditExportService.exportEvents(filter, exportFormat, gzip, response.getOutputStream());
+            } finally {
+                auditExportService.release();
+            }
         }
-        
-        return ResponseEntity.ok()
-                .header("Content-Type", "text/csv")
-                .header("Content-Disposition", "attachment; filename=audit_events.csv")
-                .body(csv.toString());
     }
     
     /**
-     * Экспорт истории доступа в CSV
+     * Экспорт истории доступа в CSV или NDJSON с фильтрами, потоком из курсора БД (gzip=true - сжатый файл)
      */
     @GetMapping("/export/access-history")
-    public ResponseEntity<String> exportAccessHistory(
+    public void exportAccessHistory(
             @RequestParam(required = false) String cardId,
             @RequestParam(required = false) String readerId,
             @RequestParam(required = false) String owner,
             @RequestParam(required = false) String accessType,
             @RequestParam(required = false) Boolean success,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
-            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
-        
-        // Получаем всю историю без пагинации для экспорта
-        Pageable pageable = PageRequest.of(0, Integer.MAX_VALUE, Sort.by("accessTimestamp").descending());
-        Page<AccessHistory> history = auditService.getAllAccessHistory(pageable);
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime,
+            @RequestParam(defaultValue = "csv") String format,
+            @RequestParam(defaultValue = "false") boolean gzip,
+            HttpServletResponse response) throws IOException {
         
-        StringBuilder csv = new StringBuilder();
-        csv.append("ID,Card ID,Reader ID,Owner,User Role,Access Timestamp,Access Type,");
-        csv.append("Success,Counter Value,IP Address,Location,Device Info,Failure Reason,Response Time MS,Additional Metadata\n");
+        AuditFilter filter = new AuditFilter();
+        filter.setCardId(cardId);
+        filter.setReaderId(readerId);
+        filter.setOwner(owner);
+        filter.setAccessType(accessType);
+        filter.setSuccess(success);
+        filter.setStartTime(startTime);
+        filter.setEndTime(endTime);
         
-        for (AccessHistory access : history.getContent()) {
-            csv.append(access.getId()).append(",");
-            csv.append(escapeCsv(access.getCardId())).append(",");
-            csv.append(escapeCsv(access.getReaderId())).append(",");
-            csv.append(escapeCsv(access.getOwner())).append(",");
-            csv.append(escapeCsv(access.getUserRole())).append(",");
-            csv.append(access.getAccessTimestamp()).append(",");
-            csv.append(escapeCsv(access.getAccessType())).append(",");
-            csv.append(access.isSuccess()).append(",");
-            csv.append(access.getCounterValue()).append(",");
-            csv.append(escapeCsv(access.getIpAddress())).append(",");
-            csv.append(escapeCsv(access.getLocation())).append(",");
-            csv.append(escapeCsv(access.getDeviceInfo())).append(",");
-            csv.append(escapeCsv(access.getFailureReason())).append(",");
-            csv.append(access.getResponseTimeMs()).append(",");
-            csv.append(escapeCsv(access.getAdditionalMetadata())).append("\n");
+        AuditExportService.Format exportFormat = startExport(format, gzip, "access_history", response);
+        if (exportFormat != null) {
+            try {
+                auditExportService.exportAccessHistory(filter, exportFormat, gzip, response.getOutputStream());
+            } finally {
+                auditExportService.release();
+            }
         }
-        
-        return ResponseEntity.ok()
-                .header("Content-Type", "text/csv")
-                .header("Content-Disposition", "attachment; filename=access_history.csv")
-                .body(csv.toString());
     }
     
     /**
-     * Экранирование CSV значений
+     * Состояние выгрузок (активные, отклонённые, выгружено строк)
+     */
+    @GetMapping("/export/stats")
+    public ResponseEntity<Map<String, Object>> getExportStatistics() {
+        return ResponseEntity.ok(auditExportService.stats());
+    }
+    
+    /**
+     * Проверка формата, резерв места под выгрузку и заголовки ответа; null - ответ с ошибкой уже записан.
+     * Ненулевой результат - место занято, вызывающий освобождает его через release() в finally
      */
-    private String escapeCsv(String value) {
-        if (value == null) return "";
-        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
-            return "\"" + value.replace("\"", "\"\"") + "\"";
+    private AuditExportService.Format startExport(String format, boolean gzip, String fileName,
+                                                  HttpServletResponse response) throws IOException {
+        AuditExportService.Format exportFormat;
+        if ("csv".equalsIgnoreCase(format)) {
+            exportFormat = AuditExportService.Format.CSV;
+        } else if ("ndjson".equalsIgnoreCase(format)) {
+            exportFormat = AuditExportService.Format.NDJSON;
+        } else {
+            writeStatus(response, HttpStatus.BAD_REQUEST, "FAIL");
+            return null;
+        }
+        if (!auditExportService.tryAcquire()) {
+            response.setHeader("Retry-After", "5");
+            writeStatus(response, HttpStatus.SERVICE_UNAVAILABLE, "BUSY");
+            return null;
         }
-        return value;
+        
+        String extension = exportFormat == AuditExportService.Format.CSV ? ".csv" : ".ndjson";
+        response.setStatus(HttpStatus.OK.value());
+        if (gzip) {
+            response.setContentType("application/gzip");
+            response.setHeader("Content-Disposition", "attachment; filename=" + fileName + extension + ".gz");
+        } else {
+            response.setContentType(exportFormat == AuditExportService.Format.CSV ? "text/csv" : MediaType.APPLICATION_NDJSON_VALUE);
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader("Content-Disposition", "attachment; filename=" + fileName + extension);
+        }
+        return exportFormat;
+    }
+    
+    private static void writeStatus(HttpServletResponse response, HttpStatus status, String value) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getWriter().write("{\"status\":\"" + value + "\"}");
     }
 }
@@ -4,21 +4,43 @@ import backend.dto.CreateCardRequest;
 import backend.dto.CreateCardResponse;
 import backend.dto.VerifyRequest;
 import backend.model.CardRecord;
+import backend.service.BulkProvisioningService;
 import backend.service.CardService;
+import backend.service.VerifyRateLimiter;
 import backend.util.B64Url;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 @RestController
 @RequestMapping("/api/cards")
 public class CardController {
 
     private final CardService cardService;
+    private final VerifyRateLimiter verifyRateLimiter;
+    private final BulkProvisioningService bulkProvisioningService;
+    private final int maxBatchSize;
 
-    public CardController(CardService cardService) {
+    public CardController(CardService cardService,
+                          VerifyRateLimiter verifyRateLimiter,
+                          BulkProvisioningService bulkProvisioningService,
+                          @Value("${app.verify.batch.max-size:500}") int maxBatchSize) {
         this.cardService = cardService;
+        this.verifyRateLimiter = verifyRateLimiter;
+        this.bulkProvisioningService = bulkProvisioningService;
+        this.maxBatchSize = maxBatchSize;
     }
 
     @PostMapping
@@ -27,6 +49,20 @@ public class CardController {
         return ResponseEntity.ok(response);
     }
 
+    /**
+     * Массовый выпуск карт: вход NDJSON (объекты как у POST /api/cards) или CSV с заголовком,
+     * ответ NDJSON - строка результата на каждую входную строку и итоговая строка summary
+     */
+    @PostMapping(value = "/bulk", consumes = {MediaType.APPLICATION_NDJSON_VALUE, "text/csv"})
+    public void bulkCreate(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+        String contentType = httpRequest.getContentType();
+        boolean csv = contentType != null && contentType.toLowerCase(java.util.Locale.ROOT).startsWith("text/csv");
+        httpResponse.setStatus(HttpStatus.OK.value());
+        httpResponse.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        httpResponse.setCharacterEncoding("UTF-8");
+        bulkProvisioningService.provision(httpRequest.getInputStream(), csv, httpResponse.getOutputStream(), httpRequest);
+    }
+
     @PostMapping("/verify")
     public ResponseEntity<java.util.Map<String, String>> verify(
             @Valid @RequestBody VerifyRequest request,
@@ -37,12 +73,44 @@ public class CardController {
             return ResponseEntity.badRequest()
                 .body(java.util.Collections.singletonMap("status", "FAIL"));
         }
+        if (!verifyRateLimiter.tryAcquire(readerId, httpRequest, 1)) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .body(java.util.Collections.singletonMap("status", "FAIL"));
+        }
         
         byte[] ctr = B64Url.decode(request.getCtr());
         byte[] tag = B64Url.decode(request.getTag());
         boolean ok = cardService.verifyTruncTag(request.getCardId(), ctr, tag, readerId, httpRequest);
         return ResponseEntity.ok(java.util.Collections.singletonMap("status", ok ? "OK" : "FAIL"));
     }
-}
-
 
+    @PostMapping("/verify/batch")
+    public ResponseEntity<List<Map<String, String>>> verifyBatch(
+            @RequestBody List<VerifyRequest> requests,
+            @RequestHeader(value = "X-Reader-Id", required = false) String readerId,
+            HttpServletRequest httpRequest) {
+        
+        if (requests == null || requests.isEmpty() || requests.size() > maxBatchSize) {
+            return ResponseEntity.badRequest()
+                .body(Collections.singletonList(Collections.singletonMap("status", "FAIL")));
+        }
+        // Пакет расходует по токену на элемент из лимита ридера шлюза
+        if (!verifyRateLimiter.tryAcquire(readerId, httpRequest, requests.size())) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .body(Collections.singletonList(Collections.singletonMap("status", "FAIL")));
+        }
+        
+        List<Boolean> results = cardService.verifyBatch(requests, readerId, httpRequest);
+        List<Map<String, String>> response = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Map<String, String> item = new HashMap<>();
+            item.put("status", results.get(i) ? "OK" : "FAIL");
+            VerifyRequest request = requests.get(i);
+            if (request != null && request.getCardId() != null) {
+                item.put("cardId", request.getCardId());
+            }
+            response.add(item);
+        }
+        return ResponseEntity.ok(response);
+    }
+}
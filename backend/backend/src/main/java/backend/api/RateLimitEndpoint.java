@@ -0,0 +1,38 @@
+package backend.api;
+
+import backend.config.DbConcurrencyLimiter;
+import backend.service.DeniedAccessSummary;
+import backend.service.VerifyRateLimiter;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Счётчики ограничения частоты проверок и лимита параллелизма по пулу БД: GET /actuator/ratelimit
+ */
+@Component
+@Endpoint(id = "ratelimit")
+public class RateLimitEndpoint {
+
+    private final VerifyRateLimiter verifyRateLimiter;
+    private final DeniedAccessSummary deniedAccessSummary;
+    private final DbConcurrencyLimiter dbConcurrencyLimiter;
+
+    public RateLimitEndpoint(VerifyRateLimiter verifyRateLimiter, DeniedAccessSummary deniedAccessSummary,
+                             DbConcurrencyLimiter dbConcurrencyLimiter) {
+        this.verifyRateLimiter = verifyRateLimiter;
+        this.deniedAccessSummary = deniedAccessSummary;
+        this.dbConcurrencyLimiter = dbConcurrencyLimiter;
+    }
+
+    @ReadOperation
+    public Map<String, Object> rateLimit() {
+        Map<String, Object> stats = new HashMap<>(verifyRateLimiter.stats());
+        stats.put("deniedSummary", deniedAccessSummary.stats());
+        stats.put("dbConcurrency", dbConcurrencyLimiter.stats());
+        return stats;
+    }
+}
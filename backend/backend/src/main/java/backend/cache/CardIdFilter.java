@@ -0,0 +1,233 @@
+package backend.cache;
+
+import backend.repo.CardRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Фильтр Блума по всем выпущенным cardId: пропускает известные карты без обращения к БД.
+ * Ложноположительные ответы (с вероятностью app.cache.card-filter.false-positive-rate)
+ * проходят обычную проверку. Строится при старте из cards, пополняется после сохранения
+ * новой карты на этом узле; установка битов lock-free (CAS по словам AtomicLongArray).
+ * Фильтр узла не последнее слово: карта, выпущенная другим узлом после построения фильтра,
+ * в нём отсутствует, поэтому промах фильтра проверяется по cards (одним запросом на пакет).
+ * Найденная карта добавляется в фильтр, отсутствующая - в ограниченный по размеру и времени
+ * кэш отрицательных ответов (app.cache.card-filter.negative-*), чтобы перебор неизвестных
+ * cardId не превращался в запрос к БД на каждую попытку.
+ */
+@Component
+public class CardIdFilter {
+
+    private final CardRepository cardRepository;
+    private final long expectedCards;
+    private final double falsePositiveRate;
+
+    private volatile Bits current;
+    // Фильтр, который сейчас перестраивается: новые карты пишутся и в него
+    private volatile Bits building;
+    // Карты, зарегистрированные с начала перестройки: могли не попасть в снимок findAllCardIds()
+    private volatile Set<String> pending;
+
+    // cardId, которых нет в cards на момент проверки
+    private final Cache<String, Boolean> absent;
+
+    private final LongAdder inserted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder dbChecks = new LongAdder();
+    private final LongAdder learned = new LongAdder();
+
+    public CardIdFilter(CardRepository cardRepository,
+                        @Value("${app.cache.card-filter.expected-cards:1000000}") long expectedCards,
+                        @Value("${app.cache.card-filter.false-positive-rate:0.001}") double falsePositiveRate,
+                        @Value("${app.cache.card-filter.negative-max-size:100000}") long negativeMaxSize,
+                        @Value("${app.cache.card-filter.negative-ttl-seconds:10}") long negativeTtlSeconds) {
+        this.cardRepository = cardRepository;
+        this.expectedCards = expectedCards;
+        this.falsePositiveRate = falsePositiveRate;
+        this.current = new Bits(expectedCards, falsePositiveRate);
+        this.absent = Caffeine.newBuilder()
+            .maximumSize(negativeMaxSize)
+            .expireAfterWrite(Duration.ofSeconds(negativeTtlSeconds))
+            .build();
+    }
+
+    /**
+     * Полная перестройка фильтра из таблицы cards.
+     * Карты, сохранённые во время запроса, копятся в pending и переносятся в новый фильтр до подмены
+     */
+    @PostConstruct
+    public synchronized void rebuild() {
+        Set<String> concurrent = ConcurrentHashMap.newKeySet();
+        pending = concurrent;
+        try {
+            List<String> cardIds = cardRepository.findAllCardIds();
+            Bits fresh = new Bits(Math.max(expectedCards, cardIds.size() * 2L), falsePositiveRate);
+            for (String cardId : cardIds) {
+                fresh.put(cardId);
+            }
+            building = fresh;
+            // put(), не увидевший building, уже записал карту в pending
+            for (String cardId : concurrent) {
+                fresh.put(cardId);
+            }
+            current = fresh;
+            inserted.reset();
+            inserted.add(cardIds.size() + concurrent.size());
+        } finally {
+            building = null;
+            pending = null;
+        }
+    }
+
+    /**
+     * Регистрация новой карты; вызывать после сохранения в БД
+     */
+    public void put(String cardId) {
+        // Порядок важен: pending, затем building, затем current - карта попадает в фильтр,
+        // который останется после подмены, при любом чередовании с rebuild()
+        Set<String> concurrent = pending;
+        if (concurrent != null) {
+            concurrent.add(cardId);
+        }
+        Bits next = building;
+        if (next != null) {
+            next.put(cardId);
+        }
+        current.put(cardId);
+        absent.invalidate(cardId);
+        inserted.increment();
+    }
+
+    /**
+     * false - карты нет в cards; true - карта, возможно, существует.
+     * Промах фильтра проверяется по БД (или по кэшу отрицательных ответов)
+     */
+    public boolean mightContain(String cardId) {
+        return unknownOf(List.of(cardId)).isEmpty();
+    }
+
+    /**
+     * cardId из набора, которых нет в cards; промахи фильтра проверяются одним запросом к БД
+     */
+    public Set<String> unknownOf(Collection<String> cardIds) {
+        Set<String> unknown = new HashSet<>();
+        List<String> toCheck = new ArrayList<>();
+        Bits bits = current;
+        for (String cardId : cardIds) {
+            if (bits.mightContain(cardId)) {
+                passed.increment();
+            } else if (absent.getIfPresent(cardId) != null) {
+                unknown.add(cardId);
+            } else {
+                toCheck.add(cardId);
+            }
+        }
+        if (!toCheck.isEmpty()) {
+            dbChecks.add(toCheck.size());
+            Set<String> existing = new HashSet<>(cardRepository.findExistingCardIds(toCheck));
+            for (String cardId : toCheck) {
+                if (existing.contains(cardId)) {
+                    // Карта выпущена другим узлом (или после построения фильтра)
+                    learned.increment();
+                    passed.increment();
+                    put(cardId);
+                } else {
+                    absent.put(cardId, Boolean.TRUE);
+                    unknown.add(cardId);
+                }
+            }
+        }
+        rejected.add(unknown.size());
+        return unknown;
+    }
+
+    public Map<String, Object> stats() {
+        Bits bits = current;
+        long n = inserted.sum();
+        return Map.of(
+            "bits", bits.size,
+            "hashes", bits.hashes,
+            "cards", n,
+            "expectedFalsePositiveRate", Math.pow(1 - Math.exp(-(double) bits.hashes * n / bits.size), bits.hashes),
+            "rejected", rejected.sum(),
+            "passed", passed.sum(),
+            "dbChecks", dbChecks.sum(),
+            "learned", learned.sum(),
+            "negativeCached", absent.estimatedSize()
+        );
+    }
+
+    private static final class Bits {
+        private final AtomicLongArray words;
+        private final long size;
+        private final int hashes;
+
+        Bits(long expected, double fpp) {
+            long bits = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.words = new AtomicLongArray((int) ((bits + 63) >>> 6));
+            this.size = (long) words.length() << 6;
+            this.hashes = Math.max(1, (int) Math.round((double) size / expected * Math.log(2)));
+        }
+
+        void put(String cardId) {
+            long h1 = hash(cardId);
+            long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1L;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, size);
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word;
+                do {
+                    word = words.get(index);
+                    if ((word & mask) != 0) {
+                        break;
+                    }
+                } while (!words.compareAndSet(index, word, word | mask));
+            }
+        }
+
+        boolean mightContain(String cardId) {
+            long h1 = hash(cardId);
+            long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1L;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, size);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // FNV-1a по байтам с финальным перемешиванием (splitmix64)
+        private static long hash(String cardId) {
+            long h = 0xCBF29CE484222325L;
+            for (byte b : cardId.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b & 0xFF;
+                h *= 0x100000001B3L;
+            }
+            return mix(h);
+        }
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package backend.cache;
+
+import backend.util.HmacEngine;
+import backend.util.KeyWrapService;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.SecretKey;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш развёрнутых ключей карт для горячего пути проверки.
+ * В БД и в CardSnapshot ключи хранятся только обёрнутыми (KeyWrapService, AES-GCM);
+ * развёртка выполняется при первой проверке карты после старта или ротации.
+ * Запись действительна для версии ключа карты; размер ограничен (Caffeine: чтение без общей блокировки).
+ * Байты вытесненных и инвалидированных ключей обнуляются после короткой паузы
+ * (app.cache.card-keys.zeroize-delay-ms), чтобы не испортить проверку, которая уже взяла ключ.
+ */
+@Component
+public class CardKeyCache {
+
+    private final KeyWrapService keyWrapService;
+    private final int maxSize;
+    private final long zeroizeDelayNanos;
+
+    private final Cache<String, Entry> entries;
+    private final ConcurrentLinkedQueue<Entry> retired = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder zeroized = new LongAdder();
+
+    public CardKeyCache(KeyWrapService keyWrapService,
+                        @Value("${app.cache.card-keys.max-size:100000}") int maxSize,
+                        @Value("${app.cache.card-keys.zeroize-delay-ms:1000}") long zeroizeDelayMs) {
+        this.keyWrapService = keyWrapService;
+        this.maxSize = maxSize;
+        this.zeroizeDelayNanos = TimeUnit.MILLISECONDS.toNanos(zeroizeDelayMs);
+        // Слушатель вытеснения вызывается синхронно; явное удаление и замену обрабатывают сами методы кэша
+        this.entries = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .evictionListener((String cardId, Entry entry, RemovalCause cause) -> {
+                evictions.increment();
+                retire(entry);
+            })
+            .build();
+    }
+
+    /**
+     * Проверка тега текущим ключом карты, а до подтверждения ротации - и ключом предыдущей версии
+     */
+    public CardSnapshot.KeyMatch match(CardSnapshot card, byte[] ctrLE, byte[] tag16) throws InvalidKeyException {
+        Entry keys = keysOf(card);
+        if (HmacEngine.verify(keys.current, card.cardIdBytes(), ctrLE, tag16)) {
+            return CardSnapshot.KeyMatch.CURRENT;
+        }
+        if (keys.previous != null && HmacEngine.verify(keys.previous, card.cardIdBytes(), ctrLE, tag16)) {
+            return CardSnapshot.KeyMatch.PREVIOUS;
+        }
+        return CardSnapshot.KeyMatch.NONE;
+    }
+
+    /**
+     * Вычисление тега текущим ключом карты в буфер вызывающей стороны
+     */
+    public void computeTag(CardSnapshot card, byte[] ctrLE, byte[] out, int outOff) throws InvalidKeyException {
+        HmacEngine.tag(keysOf(card).current, card.cardIdBytes(), ctrLE, out, outOff);
+    }
+
+    private Entry keysOf(CardSnapshot card) throws InvalidKeyException {
+        Entry cached = entries.getIfPresent(card.getCardId());
+        if (cached != null && cached.matches(card)) {
+            hits.increment();
+            return cached;
+        }
+
+        misses.increment();
+        Entry loaded = new Entry(card.getKeyVersion(), card.getWrappedKey(), card.getWrappedPreviousKey(),
+            unwrap(card.getWrappedKey()),
+            card.getWrappedPreviousKey() != null ? unwrap(card.getWrappedPreviousKey()) : null);
+        Entry replaced = entries.asMap().put(card.getCardId(), loaded);
+        if (replaced != null) {
+            retire(replaced);
+        }
+        return loaded;
+    }
+
+    /**
+     * Прогрев: ключи карт, которых нет в кэше, разворачиваются одним пакетом (unwrapAll).
+     * Используется пакетной проверкой; при ошибке пакета ключи развернутся по одному при проверке.
+     */
+    public void preload(Collection<CardSnapshot> cards) {
+        List<CardSnapshot> missing = new ArrayList<>();
+        List<String> wrappedKeys = new ArrayList<>();
+        for (CardSnapshot card : cards) {
+            Entry cached = entries.getIfPresent(card.getCardId());
+            if (cached == null || !cached.matches(card)) {
+                missing.add(card);
+                wrappedKeys.add(card.getWrappedKey());
+                if (card.getWrappedPreviousKey() != null) {
+                    wrappedKeys.add(card.getWrappedPreviousKey());
+                }
+            }
+        }
+        if (missing.size() < 2) {
+            return;
+        }
+
+        byte[] keys;
+        try {
+            keys = keyWrapService.unwrapAll(
+                KeyWrapService.decodeWrapped(wrappedKeys.toArray(new String[0]), KeyWrapService.KEY_LENGTH),
+                KeyWrapService.KEY_LENGTH);
+        } catch (RuntimeException e) {
+            return;
+        }
+        misses.add(missing.size());
+        List<Entry> replaced = new ArrayList<>();
+        try {
+            int index = 0;
+            for (CardSnapshot card : missing) {
+                CardKey current = keyAt(keys, index++);
+                CardKey previous = card.getWrappedPreviousKey() != null ? keyAt(keys, index++) : null;
+                Entry old = entries.asMap().put(card.getCardId(), new Entry(card.getKeyVersion(), card.getWrappedKey(),
+                    card.getWrappedPreviousKey(), current, previous));
+                if (old != null) {
+                    replaced.add(old);
+                }
+            }
+        } finally {
+            Arrays.fill(keys, (byte) 0);
+        }
+        replaced.forEach(this::retire);
+    }
+
+    private static CardKey keyAt(byte[] keys, int index) {
+        int length = KeyWrapService.KEY_LENGTH;
+        return new CardKey(Arrays.copyOfRange(keys, index * length, (index + 1) * length));
+    }
+
+    private CardKey unwrap(String wrappedKey) throws InvalidKeyException {
+        byte[] material;
+        try {
+            material = keyWrapService.unwrapKey(wrappedKey);
+        } catch (RuntimeException e) {
+            throw new InvalidKeyException("Failed to unwrap card key", e);
+        }
+        return new CardKey(material);
+    }
+
+    /**
+     * Удаление ключей карты; вызывается при любой инвалидации снимка (в т.ч. после ротации)
+     */
+    public void invalidate(String cardId) {
+        Entry removed = entries.asMap().remove(cardId);
+        if (removed != null) {
+            invalidations.increment();
+            retire(removed);
+        }
+    }
+
+    public void invalidateAll() {
+        for (String cardId : entries.asMap().keySet()) {
+            Entry removed = entries.asMap().remove(cardId);
+            if (removed != null) {
+                retire(removed);
+            }
+        }
+        invalidations.increment();
+    }
+
+    private void retire(Entry entry) {
+        entry.retiredAtNanos = System.nanoTime();
+        retired.add(entry);
+    }
+
+    /**
+     * Обнуление ключей, выведенных из кэша дольше zeroize-delay-ms назад
+     */
+    @Scheduled(fixedDelayString = "${app.cache.card-keys.zeroize-delay-ms:1000}")
+    public void zeroizeRetired() {
+        long now = System.nanoTime();
+        boolean destroyed = false;
+        Entry entry;
+        while ((entry = retired.peek()) != null && now - entry.retiredAtNanos >= zeroizeDelayNanos) {
+            retired.poll();
+            entry.destroy();
+            zeroized.increment();
+            destroyed = true;
+        }
+        // Пул Mac не должен хранить ссылки и ipad/opad обнулённых ключей
+        if (destroyed) {
+            HmacEngine.forgetDestroyedKeys();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return Map.of(
+            "size", entries.estimatedSize(),
+            "maxSize", maxSize,
+            "hits", h,
+            "unwraps", m,
+            "hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m),
+            "evictions", evictions.sum(),
+            "invalidations", invalidations.sum(),
+            "pendingZeroize", retired.size(),
+            "zeroized", zeroized.sum()
+        );
+    }
+
+    private static final class Entry {
+        private final int keyVersion;
+        private final String wrappedKey;
+        private final String wrappedPreviousKey;
+        private final CardKey current;
+        private final CardKey previous;
+        private volatile long retiredAtNanos;
+
+        Entry(int keyVersion, String wrappedKey, String wrappedPreviousKey, CardKey current, CardKey previous) {
+            this.keyVersion = keyVersion;
+            this.wrappedKey = wrappedKey;
+            this.wrappedPreviousKey = wrappedPreviousKey;
+            this.current = current;
+            this.previous = previous;
+        }
+
+        // Та же версия и те же обёрнутые ключи (подтверждение ротации удаляет предыдущий ключ без смены версии)
+        boolean matches(CardSnapshot card) {
+            return keyVersion == card.getKeyVersion()
+                && wrappedKey.equals(card.getWrappedKey())
+                && Objects.equals(wrappedPreviousKey, card.getWrappedPreviousKey());
+        }
+
+        void destroy() {
+            current.destroy();
+            if (previous != null) {
+                previous.destroy();
+            }
+        }
+    }
+
+    /**
+     * Ключ HMAC с обнуляемым материалом: в отличие от SecretKeySpec, destroy() затирает байты
+     */
+    private static final class CardKey implements SecretKey {
+        private final byte[] material;
+        private volatile boolean destroyed;
+
+        CardKey(byte[] material) {
+            this.material = material;
+        }
+
+        @Override
+        public String getAlgorithm() { return HmacEngine.ALGORITHM; }
+
+        @Override
+        public String getFormat() { return "RAW"; }
+
+        // Копия: провайдер Mac затирает полученный массив после инициализации
+        @Override
+        public byte[] getEncoded() { return material.clone(); }
+
+        @Override
+        public void destroy() {
+            Arrays.fill(material, (byte) 0);
+            destroyed = true;
+        }
+
+        @Override
+        public boolean isDestroyed() { return destroyed; }
+    }
+}
@@ -0,0 +1,72 @@
+package backend.cache;
+
+import backend.model.CardRecord;
+import backend.util.B64Url;
+
+import java.time.Instant;
+
+/**
+ * Неизменяемое представление карты для горячего пути проверки.
+ * Ключи хранятся только в обёрнутом виде; развёрнутый ключ выдаёт CardKeyCache.
+ */
+public final class CardSnapshot {
+    private final String cardId;
+    private final byte[] cardIdBytes;
+    private final String owner;
+    private final String userRole;
+    private final boolean active;
+    private final Instant expiresAt;
+    private final int keyVersion;
+    private final Instant nextRotationAt;
+    private final String wrappedKey;
+    private final String wrappedPreviousKey;
+
+    /**
+     * Каким ключом подтверждён тег
+     */
+    public enum KeyMatch { NONE, CURRENT, PREVIOUS }
+
+    private CardSnapshot(CardRecord card) {
+        this.cardId = card.getCardId();
+        this.cardIdBytes = B64Url.decode(card.getCardId());
+        this.owner = card.getOwner();
+        this.userRole = card.getUserRole();
+        this.active = card.isActive();
+        this.expiresAt = card.getExpiresAt();
+        this.keyVersion = card.getKeyVersion() != null ? card.getKeyVersion() : 1;
+        this.nextRotationAt = card.getNextRotationAt();
+        this.wrappedKey = card.getkMaster();
+        this.wrappedPreviousKey = card.getPrevKMaster();
+    }
+
+    public static CardSnapshot from(CardRecord card) {
+        return new CardSnapshot(card);
+    }
+
+    public String getCardId() { return cardId; }
+    public String getOwner() { return owner; }
+    public String getUserRole() { return userRole; }
+    public boolean isActive() { return active; }
+    public Instant getExpiresAt() { return expiresAt; }
+    public int getKeyVersion() { return keyVersion; }
+    public Instant getNextRotationAt() { return nextRotationAt; }
+    String getWrappedKey() { return wrappedKey; }
+    String getWrappedPreviousKey() { return wrappedPreviousKey; }
+
+    // Без копирования: только для CardKeyCache, массив не изменяется
+    byte[] cardIdBytes() { return cardIdBytes; }
+
+    /**
+     * Копия идентификатора карты (16 байт), чтобы снимок нельзя было изменить снаружи
+     */
+    public byte[] getCardIdBytes() { return cardIdBytes.clone(); }
+
+    /**
+     * Новый ключ выдан ротацией, но карта ещё не предъявила тег с ним
+     */
+    public boolean hasPendingKey() { return wrappedPreviousKey != null; }
+
+    public boolean isExpired(Instant now) {
+        return expiresAt != null && now.isAfter(expiresAt);
+    }
+}
@@ -0,0 +1,169 @@
+package backend.cache;
+
+import backend.model.CardRecord;
+import backend.repo.CardRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through кэш снимков карт перед CardRepository.
+ * Ограничен по размеру и по времени жизни записи (Caffeine: чтение без общей блокировки,
+ * вытеснение W-TinyLFU); изменения карты
+ * (отзыв, продление, ротация ключа) должны синхронно вызывать invalidate;
+ * вместе со снимком инвалидируются развёрнутые ключи карты в CardKeyCache.
+ */
+@Component
+public class CardSnapshotCache {
+
+    private final CardRepository cardRepository;
+    private final CardKeyCache cardKeyCache;
+    private final int maxSize;
+
+    private final Cache<String, CardSnapshot> entries;
+
+    // Увеличивается при каждой инвалидации: загрузка, начатая до инвалидации, не попадёт в кэш
+    private final AtomicLong invalidationEpoch = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public CardSnapshotCache(CardRepository cardRepository, CardKeyCache cardKeyCache,
+                             @Value("${app.cache.cards.max-size:100000}") int maxSize,
+                             @Value("${app.cache.cards.ttl-seconds:300}") long ttlSeconds) {
+        this.cardRepository = cardRepository;
+        this.cardKeyCache = cardKeyCache;
+        this.maxSize = maxSize;
+        this.entries = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+            .evictionListener((String cardId, CardSnapshot snapshot, RemovalCause cause) -> evictions.increment())
+            .build();
+    }
+
+    /**
+     * Получение снимка карты; при промахе карта читается из БД
+     */
+    public Optional<CardSnapshot> get(String cardId) {
+        CardSnapshot cached = entries.getIfPresent(cardId);
+        if (cached != null) {
+            hits.increment();
+            return Optional.of(cached);
+        }
+
+        misses.increment();
+        long epoch = invalidationEpoch.get();
+        Optional<CardSnapshot> loaded = cardRepository.findById(cardId).map(CardSnapshot::from);
+        loaded.ifPresent(snapshot -> store(List.of(snapshot), epoch));
+        return loaded;
+    }
+
+    /**
+     * Получение снимков нескольких карт; все промахи читаются из БД одним запросом.
+     * Отсутствующие в БД карты в результат не попадают.
+     */
+    public Map<String, CardSnapshot> getAll(Collection<String> cardIds) {
+        Map<String, CardSnapshot> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String cardId : cardIds) {
+            CardSnapshot cached = entries.getIfPresent(cardId);
+            if (cached != null) {
+                result.put(cardId, cached);
+            } else {
+                missing.add(cardId);
+            }
+        }
+        hits.add(result.size());
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        misses.add(missing.size());
+        long epoch = invalidationEpoch.get();
+        List<CardSnapshot> loaded = new ArrayList<>(missing.size());
+        for (CardRecord card : cardRepository.findAllById(missing)) {
+            CardSnapshot snapshot = CardSnapshot.from(card);
+            loaded.add(snapshot);
+            result.put(snapshot.getCardId(), snapshot);
+        }
+        store(loaded, epoch);
+        return result;
+    }
+
+    // Запись без блокировки: если инвалидация прошла во время записи, вставленные снимки убираются
+    // (инвалидация увеличивает epoch до удаления, поэтому либо она удалит запись, либо её увидит проверка)
+    private void store(List<CardSnapshot> snapshots, long epoch) {
+        if (invalidationEpoch.get() != epoch) {
+            return;
+        }
+        for (CardSnapshot snapshot : snapshots) {
+            entries.put(snapshot.getCardId(), snapshot);
+        }
+        if (invalidationEpoch.get() != epoch) {
+            for (CardSnapshot snapshot : snapshots) {
+                entries.asMap().remove(snapshot.getCardId(), snapshot);
+            }
+        }
+    }
+
+    /**
+     * Синхронная инвалидация записи после изменения карты.
+     * Внутри транзакции запись удаляется ещё раз после коммита, чтобы
+     * параллельное чтение не вернуло в кэш незакоммиченное старое состояние.
+     */
+    public void invalidate(String cardId) {
+        evict(cardId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(cardId);
+                }
+            });
+        }
+    }
+
+    private void evict(String cardId) {
+        invalidationEpoch.incrementAndGet();
+        entries.invalidate(cardId);
+        cardKeyCache.invalidate(cardId);
+        invalidations.increment();
+    }
+
+    public void invalidateAll() {
+        invalidationEpoch.incrementAndGet();
+        entries.invalidateAll();
+        cardKeyCache.invalidateAll();
+        invalidations.increment();
+    }
+
+    public Map<String, Object> stats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return Map.of(
+            "size", entries.estimatedSize(),
+            "maxSize", maxSize,
+            "hits", h,
+            "misses", m,
+            "hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m),
+            "evictions", evictions.sum(),
+            "invalidations", invalidations.sum()
+        );
+    }
+}
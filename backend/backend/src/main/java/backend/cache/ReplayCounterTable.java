@@ -0,0 +1,214 @@
+package backend.cache;
+
+import backend.repo.CardRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Таблица последних принятых счётчиков (anti-replay) в памяти.
+ * Проверка "ctr > last" выполняется lock-free через compare-and-set. Режим app.replay.write-mode:
+ *   SYNCHRONOUS - после CAS в памяти счётчик продвигается условным UPDATE cards.last_ctr в том же вызове,
+ *     и БД остаётся источником истины: для нескольких узлов и без окна повтора при падении (по умолчанию);
+ *   WRITE_BEHIND - максимальные значения пакетами сбрасываются в cards.last_ctr.
+ *     Только для одного узла: другой узел не видит принятых здесь счётчиков до сброса, а при падении
+ *     теряются продвижения за последние flush-interval-ms - теги, принятые в этом окне, можно повторить
+ *     после рестарта.
+ * Если условный UPDATE не изменил строку, другой узел уже принял такой же или больший счётчик:
+ * запись карты перечитывается из БД (в SYNCHRONOUS проверка при этом отклоняется).
+ * При старте таблица восстанавливается из БД; карта, которой нет в таблице, читается из БД вне блокировок
+ * ConcurrentHashMap. Ошибка БД пробрасывается как DataAccessException, продвижение в памяти откатывается.
+ */
+@Component
+public class ReplayCounterTable {
+
+    public enum WriteMode { WRITE_BEHIND, SYNCHRONOUS }
+
+    static final long NO_COUNTER = -1L;
+
+    private static final String FLUSH_SQL =
+        "update cards set last_ctr = ? where card_id_b64 = ? and (last_ctr is null or last_ctr < ?)";
+
+    private final CardRepository cardRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final int flushBatchSize;
+    private final WriteMode writeMode;
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder flushedRows = new LongAdder();
+    private final LongAdder flushFailures = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    public ReplayCounterTable(CardRepository cardRepository, JdbcTemplate jdbcTemplate,
+                              @Value("${app.replay.flush-batch-size:500}") int flushBatchSize,
+                              @Value("${app.replay.write-mode:SYNCHRONOUS}") WriteMode writeMode) {
+        this.cardRepository = cardRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.flushBatchSize = flushBatchSize;
+        this.writeMode = writeMode;
+    }
+
+    /**
+     * Восстановление счётчиков из cards.last_ctr при старте
+     */
+    @PostConstruct
+    public void reload() {
+        for (Object[] row : cardRepository.findAllLastCtr()) {
+            counters.put((String) row[0], new AtomicLong((Long) row[1]));
+        }
+    }
+
+    /**
+     * Атомарно продвигает счётчик карты, если ctr строго больше последнего принятого
+     * (в SYNCHRONOUS - и в cards.last_ctr).
+     * @return false, если значение уже было использовано (повтор)
+     * @throws org.springframework.dao.DataAccessException если БД недоступна; счётчик не продвинут
+     */
+    public boolean tryAdvance(String cardId, long ctr) {
+        if (ctr < 0) {
+            rejected.increment();
+            return false;
+        }
+        AtomicLong last = counterOf(cardId);
+        long current;
+        do {
+            current = last.get();
+            if (ctr <= current) {
+                rejected.increment();
+                return false;
+            }
+        } while (!last.compareAndSet(current, ctr));
+        if (writeMode == WriteMode.SYNCHRONOUS) {
+            int updated;
+            try {
+                updated = jdbcTemplate.update(FLUSH_SQL, ctr, cardId, ctr);
+            } catch (RuntimeException e) {
+                // Проверка отклоняется, поэтому продвижение в памяти откатывается (если его не обогнали).
+                // Если UPDATE всё же прошёл, следующий условный UPDATE не изменит строку и запись перечитается
+                last.compareAndSet(ctr, current);
+                throw e;
+            }
+            if (updated == 0) {
+                conflict(cardId);
+                rejected.increment();
+                return false;
+            }
+        } else {
+            dirty.add(cardId);
+        }
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * Последний принятый счётчик карты или null, если карта ещё не использовалась
+     */
+    public Long lastCounter(String cardId) {
+        long value = counterOf(cardId).get();
+        return value == NO_COUNTER ? null : value;
+    }
+
+    // Чтение из БД не под блокировкой корзины computeIfAbsent: медленная БД не задерживает другие карты
+    private AtomicLong counterOf(String cardId) {
+        AtomicLong last = counters.get(cardId);
+        if (last != null) {
+            return last;
+        }
+        AtomicLong loaded = new AtomicLong(cardRepository.findLastCtr(cardId).orElse(NO_COUNTER));
+        AtomicLong raced = counters.putIfAbsent(cardId, loaded);
+        return raced != null ? raced : loaded;
+    }
+
+    // В БД счётчик не меньше нашего (его продвинул другой узел): поднимаем запись до значения из БД
+    private void conflict(String cardId) {
+        conflicts.increment();
+        long stored = cardRepository.findLastCtr(cardId).orElse(NO_COUNTER);
+        AtomicLong last = counters.get(cardId);
+        if (last != null) {
+            last.accumulateAndGet(stored, Math::max);
+        }
+    }
+
+    /**
+     * Пакетная запись максимальных счётчиков в cards.last_ctr
+     */
+    @Scheduled(fixedDelayString = "${app.replay.flush-interval-ms:1000}")
+    public synchronized void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>();
+        List<Object[]> batch = new ArrayList<>();
+        Iterator<String> it = dirty.iterator();
+        while (it.hasNext()) {
+            // Сначала снимаем отметку, затем читаем значение: продвижение после чтения снова пометит карту
+            String cardId = it.next();
+            it.remove();
+            AtomicLong value = counters.get(cardId);
+            if (value == null) {
+                continue;
+            }
+            long ctr = value.get();
+            ids.add(cardId);
+            batch.add(new Object[]{ctr, cardId, ctr});
+            if (batch.size() >= flushBatchSize) {
+                writeBatch(ids, batch);
+                ids = new ArrayList<>();
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(ids, batch);
+        }
+    }
+
+    private void writeBatch(List<String> ids, List<Object[]> batch) {
+        try {
+            int[] updated = jdbcTemplate.batchUpdate(FLUSH_SQL, batch);
+            flushedRows.add(batch.size());
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i] == 0) {
+                    conflict(ids.get(i));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Не теряем значения: повторим при следующем сбросе
+            dirty.addAll(ids);
+            flushFailures.increment();
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+
+    public Map<String, Object> stats() {
+        return Map.of(
+            "writeMode", writeMode.name(),
+            "cards", counters.size(),
+            "pending", dirty.size(),
+            "accepted", accepted.sum(),
+            "rejected", rejected.sum(),
+            "flushedRows", flushedRows.sum(),
+            "flushFailures", flushFailures.sum(),
+            "conflicts", conflicts.sum()
+        );
+    }
+}
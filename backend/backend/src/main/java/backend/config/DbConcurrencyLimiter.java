@@ -0,0 +1,82 @@
+package backend.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограничение числа одновременно обрабатываемых API-запросов по размеру пула
+ * соединений Hikari. С виртуальными потоками Tomcat больше не ограничивает
+ * параллелизм, и без этого лимита очередь просто переезжает в ожидание
+ * соединения Hikari (с таймаутом и исключением вместо аккуратного отказа).
+ * Запрос, не получивший разрешение за acquire-timeout-ms, получает 503.
+ * По умолчанию включено вместе с spring.threads.virtual.enabled.
+ */
+@Component
+public class DbConcurrencyLimiter implements HandlerInterceptor {
+
+    private static final String PERMIT_ATTRIBUTE = DbConcurrencyLimiter.class.getName() + ".permit";
+
+    private final boolean enabled;
+    private final int permits;
+    private final long acquireTimeoutMs;
+    private final Semaphore semaphore;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public DbConcurrencyLimiter(@Value("${app.db-concurrency.enabled:${spring.threads.virtual.enabled:false}}") boolean enabled,
+                                @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize,
+                                @Value("${app.db-concurrency.permits-per-connection:2}") int permitsPerConnection,
+                                @Value("${app.db-concurrency.acquire-timeout-ms:2000}") long acquireTimeoutMs) {
+        this.enabled = enabled;
+        this.permits = poolSize * permitsPerConnection;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.semaphore = new Semaphore(permits);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!enabled || request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+            return true;
+        }
+        if (!semaphore.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+            rejected.increment();
+            response.setStatus(503);
+            response.setHeader("Retry-After", "1");
+            response.setContentType("application/json");
+            response.getWriter().write("{\"status\":\"BUSY\"}");
+            return false;
+        }
+        request.setAttribute(PERMIT_ATTRIBUTE, Boolean.TRUE);
+        admitted.increment();
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        if (request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+            request.removeAttribute(PERMIT_ATTRIBUTE);
+            semaphore.release();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("permits", permits);
+        stats.put("inUse", permits - semaphore.availablePermits());
+        stats.put("waiting", semaphore.getQueueLength());
+        stats.put("admitted", admitted.sum());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+}
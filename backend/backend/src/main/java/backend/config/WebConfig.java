@@ -0,0 +1,21 @@
+package backend.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+    private final DbConcurrencyLimiter dbConcurrencyLimiter;
+
+    public WebConfig(DbConcurrencyLimiter dbConcurrencyLimiter) {
+        this.dbConcurrencyLimiter = dbConcurrencyLimiter;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // Поток событий аудита не обращается к БД и держит запрос открытым: разрешение ему не нужно
+        registry.addInterceptor(dbConcurrencyLimiter).addPathPatterns("/api/**")
+            .excludePathPatterns("/api/audit/stream");
+    }
+}
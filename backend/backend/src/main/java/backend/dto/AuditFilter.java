@@ -0,0 +1,38 @@
+package backend.dto;
+
+import java.time.Instant;
+
+/**
+ * Фильтры выборок событий аудита и истории доступа; null - без ограничения.
+ * eventType и eventCategory применяются только к событиям, owner и accessType - только к истории доступа.
+ */
+public class AuditFilter {
+    private String eventType;
+    private String eventCategory;
+    private String accessType;
+    private String cardId;
+    private String readerId;
+    private String owner;
+    private Boolean success;
+    private Instant startTime;
+    private Instant endTime;
+
+    public String getEventType() { return eventType; }
+    public void setEventType(String eventType) { this.eventType = eventType; }
+    public String getEventCategory() { return eventCategory; }
+    public void setEventCategory(String eventCategory) { this.eventCategory = eventCategory; }
+    public String getAccessType() { return accessType; }
+    public void setAccessType(String accessType) { this.accessType = accessType; }
+    public String getCardId() { return cardId; }
+    public void setCardId(String cardId) { this.cardId = cardId; }
+    public String getReaderId() { return readerId; }
+    public void setReaderId(String readerId) { this.readerId = readerId; }
+    public String getOwner() { return owner; }
+    public void setOwner(String owner) { this.owner = owner; }
+    public Boolean getSuccess() { return success; }
+    public void setSuccess(Boolean success) { this.success = success; }
+    public Instant getStartTime() { return startTime; }
+    public void setStartTime(Instant startTime) { this.startTime = startTime; }
+    public Instant getEndTime() { return endTime; }
+    public void setEndTime(Instant endTime) { this.endTime = endTime; }
+}
@@ -0,0 +1,26 @@
+package backend.dto;
+
+import java.time.Instant;
+
+/**
+ * Фильтры и порядок списка карт; null - без ограничения
+ */
+public class CardListFilter {
+    private String userRole;
+    private Boolean active;
+    private Instant expiresAfter;
+    private Instant expiresBefore;
+    // false - по card_id_b64, true - по (created_at, card_id_b64); карты без created_at в этот порядок не попадают
+    private boolean orderByCreatedAt;
+
+    public String getUserRole() { return userRole; }
+    public void setUserRole(String userRole) { this.userRole = userRole; }
+    public Boolean getActive() { return active; }
+    public void setActive(Boolean active) { this.active = active; }
+    public Instant getExpiresAfter() { return expiresAfter; }
+    public void setExpiresAfter(Instant expiresAfter) { this.expiresAfter = expiresAfter; }
+    public Instant getExpiresBefore() { return expiresBefore; }
+    public void setExpiresBefore(Instant expiresBefore) { this.expiresBefore = expiresBefore; }
+    public boolean isOrderByCreatedAt() { return orderByCreatedAt; }
+    public void setOrderByCreatedAt(boolean orderByCreatedAt) { this.orderByCreatedAt = orderByCreatedAt; }
+}
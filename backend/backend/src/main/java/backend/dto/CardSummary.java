@@ -0,0 +1,41 @@
+package backend.dto;
+
+import java.time.Instant;
+
+/**
+ * Облегчённое представление карты для списков: без ключей и QR кода
+ */
+public class CardSummary {
+    private final String cardId;
+    private final String owner;
+    private final Instant createdAt;
+    private final Instant expiresAt;
+    private final boolean active;
+    private final String userRole;
+    private final Integer keyVersion;
+    private final Instant nextRotationAt;
+    private final Long lastCtr;
+
+    public CardSummary(String cardId, String owner, Instant createdAt, Instant expiresAt, boolean active,
+                       String userRole, Integer keyVersion, Instant nextRotationAt, Long lastCtr) {
+        this.cardId = cardId;
+        this.owner = owner;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+        this.active = active;
+        this.userRole = userRole;
+        this.keyVersion = keyVersion;
+        this.nextRotationAt = nextRotationAt;
+        this.lastCtr = lastCtr;
+    }
+
+    public String getCardId() { return cardId; }
+    public String getOwner() { return owner; }
+    public Instant getCreatedAt() { return createdAt; }
+    public Instant getExpiresAt() { return expiresAt; }
+    public boolean isActive() { return active; }
+    public String getUserRole() { return userRole; }
+    public Integer getKeyVersion() { return keyVersion; }
+    public Instant getNextRotationAt() { return nextRotationAt; }
+    public Long getLastCtr() { return lastCtr; }
+}
@@ -0,0 +1,27 @@
+package backend.dto;
+
+import java.util.List;
+
+/**
+ * Страница keyset-пагинации: nextCursor - null на последней странице,
+ * totalElements - только по запросу (count=true), иначе null
+ */
+public class CursorPage<T> {
+    private final List<T> content;
+    private final int size;
+    private final String nextCursor;
+    private final Long totalElements;
+
+    public CursorPage(List<T> content, int size, String nextCursor, Long totalElements) {
+        this.content = content;
+        this.size = size;
+        this.nextCursor = nextCursor;
+        this.totalElements = totalElements;
+    }
+
+    public List<T> getContent() { return content; }
+    public int getSize() { return size; }
+    public String getNextCursor() { return nextCursor; }
+    public boolean isHasNext() { return nextCursor != null; }
+    public Long getTotalElements() { return totalElements; }
+}
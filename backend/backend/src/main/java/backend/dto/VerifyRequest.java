@@ -12,12 +12,17 @@ public class VerifyRequest {
     @NotBlank
     private String tag;
 
+    // Идентификатор ридера для пакетной проверки; если не задан, берётся X-Reader-Id
+    private String readerId;
+
     public String getCardId() { return cardId; }
     public void setCardId(String cardId) { this.cardId = cardId; }
     public String getCtr() { return ctr; }
     public void setCtr(String ctr) { this.ctr = ctr; }
     public String getTag() { return tag; }
     public void setTag(String tag) { this.tag = tag; }
+    public String getReaderId() { return readerId; }
+    public void setReaderId(String readerId) { this.readerId = readerId; }
 }
 
 
@@ -1,23 +1,34 @@
 package backend.model;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.Immutable;
+import org.hibernate.annotations.Subselect;
+import org.hibernate.annotations.Synchronize;
 import java.time.Instant;
 
 /**
- * Модель для истории доступа к картам
+ * Модель для истории доступа к картам.
+ * Только чтение: отдельной таблицы нет, записи строятся из строк audit_events
+ * с заполненным access_type (один INSERT на проверку карты).
  */
 @Entity
-@Table(name = "access_history")
+@Immutable
+@Subselect("SELECT e.id, e.card_id, e.reader_id, e.owner, e.user_role, " +
+           "e.event_timestamp AS access_timestamp, e.access_type, e.success, e.counter_value, " +
+           "e.ip_address, CAST(NULL AS VARCHAR(200)) AS location, e.user_agent AS device_info, " +
+           "e.failure_reason, e.response_time_ms, CAST(NULL AS TEXT) AS additional_metadata " +
+           "FROM audit_events e WHERE e.access_type IS NOT NULL")
+@Synchronize("audit_events")
 public class AccessHistory {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
     
-    @Column(name = "card_id", nullable = false, length = 64)
+    // Пусты у отклонённых некорректных запросов (элемент пакета без полей, кадр TCP без ридера)
+    @Column(name = "card_id", length = 64)
     private String cardId;
     
-    @Column(name = "reader_id", nullable = false, length = 64)
+    @Column(name = "reader_id", length = 64)
     private String readerId;
     
     @Column(name = "owner", length = 100)
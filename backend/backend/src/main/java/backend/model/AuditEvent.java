@@ -10,8 +10,12 @@ import java.time.Instant;
 @Table(name = "audit_events")
 public class AuditEvent {
     
+    // Шаг последовательности audit_events_seq: один nextval резервирует блок идентификаторов
+    public static final int ID_ALLOCATION_SIZE = 50;
+    
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "audit_events_seq")
+    @SequenceGenerator(name = "audit_events_seq", sequenceName = "audit_events_seq", allocationSize = ID_ALLOCATION_SIZE)
     private Long id;
     
     @Column(name = "event_type", nullable = false, length = 50)
@@ -56,6 +60,19 @@ public class AuditEvent {
     @Column(name = "additional_data", columnDefinition = "TEXT")
     private String additionalData;
     
+    // Поля доступа: заполняются только для проверок карт, из них строится access_history
+    @Column(name = "access_type", length = 20)
+    private String accessType;
+    
+    @Column(name = "counter_value")
+    private Long counterValue;
+    
+    @Column(name = "failure_reason", length = 200)
+    private String failureReason;
+    
+    @Column(name = "response_time_ms")
+    private Long responseTimeMs;
+    
     // Конструкторы
     public AuditEvent() {}
     
@@ -118,6 +135,18 @@ public class AuditEvent {
     public String getAdditionalData() { return additionalData; }
     public void setAdditionalData(String additionalData) { this.additionalData = additionalData; }
     
+    public String getAccessType() { return accessType; }
+    public void setAccessType(String accessType) { this.accessType = accessType; }
+    
+    public Long getCounterValue() { return counterValue; }
+    public void setCounterValue(Long counterValue) { this.counterValue = counterValue; }
+    
+    public String getFailureReason() { return failureReason; }
+    public void setFailureReason(String failureReason) { this.failureReason = failureReason; }
+    
+    public Long getResponseTimeMs() { return responseTimeMs; }
+    public void setResponseTimeMs(Long responseTimeMs) { this.responseTimeMs = responseTimeMs; }
+    
     // Константы для типов событий
     public static class EventType {
         public static final String CARD_CREATED = "CARD_CREATED";
@@ -130,6 +159,8 @@ public class AuditEvent {
         public static final String KEY_ROTATED = "KEY_ROTATED";
         public static final String ACCESS_GRANTED = "ACCESS_GRANTED";
         public static final String ACCESS_DENIED = "ACCESS_DENIED";
+        // Строка прежней access_history, перенесённая в audit_events миграцией audit_tables.sql
+        public static final String ACCESS_HISTORY = "ACCESS_HISTORY";
         public static final String ADMIN_ACTION = "ADMIN_ACTION";
         public static final String SYSTEM_EVENT = "SYSTEM_EVENT";
     }
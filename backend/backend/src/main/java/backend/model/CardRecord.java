@@ -3,21 +3,31 @@ package backend.model;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import java.time.Instant;
 
 @Entity
-@Table(name = "cards")
+@Table(name = "cards", indexes = {
+    // keyset-пагинация списка карт в порядке создания
+    @Index(name = "idx_cards_created_at", columnList = "created_at, card_id_b64")
+})
 public class CardRecord {
     @Id
     @Column(name = "card_id_b64", nullable = false, length = 32)
     private String cardId;
 
-    @Column(name = "k_master_b64", nullable = false, length = 64)
+    // Ключ карты, обёрнутый KEK (KeyWrapService): base64url(iv || ciphertext || tag)
+    @Column(name = "k_master_b64", nullable = false, length = 128)
     @JsonIgnore
     private String kMaster;
 
+    // Ключ предыдущей версии: принимается, пока карта не подтвердит новый ключ
+    @Column(name = "prev_k_master_b64", length = 128)
+    @JsonIgnore
+    private String prevKMaster;
+
     @Column(name = "owner", nullable = true, length = 128)
     private String owner;
 
@@ -56,6 +66,8 @@ public class CardRecord {
     public void setCardId(String cardId) { this.cardId = cardId; }
     public String getkMaster() { return kMaster; }
     public void setkMaster(String kMaster) { this.kMaster = kMaster; }
+    public String getPrevKMaster() { return prevKMaster; }
+    public void setPrevKMaster(String prevKMaster) { this.prevKMaster = prevKMaster; }
     public String getOwner() { return owner; }
     public void setOwner(String owner) { this.owner = owner; }
     public Instant getCreatedAt() { return createdAt; }
@@ -0,0 +1,67 @@
+package backend.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Бинарный кадр протокола ридера фиксированной длины.
+ * <pre>
+ * Запрос (64 байта):
+ *   0..7    requestId  uint64 big-endian, возвращается в ответе как есть
+ *   8..23   cardId     16 байт
+ *   24..31  ctr        LE64, как его формирует карта
+ *   32..47  tag        Trunc16(HMAC-SHA256)
+ *   48..63  readerId   ASCII, дополнен нулями
+ * Ответ (16 байт):
+ *   0..7    requestId
+ *   8       status     0 = OK, 1 = FAIL, 2 = BAD_FRAME, 3 = BUSY
+ *   9..15   резерв
+ * </pre>
+ */
+public final class ReaderFrame {
+    public static final int REQUEST_LENGTH = 64;
+    public static final int RESPONSE_LENGTH = 16;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_FAIL = 1;
+    public static final byte STATUS_BAD_FRAME = 2;
+    public static final byte STATUS_BUSY = 3;
+
+    private static final int READER_ID_LENGTH = 16;
+
+    final long requestId;
+    final byte[] cardId = new byte[16];
+    final byte[] ctr = new byte[8];
+    final byte[] tag = new byte[16];
+    final String readerId;
+
+    private ReaderFrame(ByteBuffer in) {
+        this.requestId = in.getLong();
+        in.get(cardId);
+        in.get(ctr);
+        in.get(tag);
+        byte[] reader = new byte[READER_ID_LENGTH];
+        in.get(reader);
+        int len = 0;
+        while (len < READER_ID_LENGTH && reader[len] != 0) {
+            len++;
+        }
+        this.readerId = len == 0 ? null : new String(reader, 0, len, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Чтение одного кадра; буфер должен содержать не меньше REQUEST_LENGTH байт
+     */
+    static ReaderFrame read(ByteBuffer in) {
+        return new ReaderFrame(in);
+    }
+
+    static ByteBuffer response(long requestId, byte status) {
+        ByteBuffer out = ByteBuffer.allocate(RESPONSE_LENGTH);
+        out.putLong(requestId);
+        out.put(status);
+        out.position(RESPONSE_LENGTH);
+        out.flip();
+        return out;
+    }
+}
@@ -0,0 +1,292 @@
+package backend.reader;
+
+import backend.service.CardService;
+import backend.service.VerifyRateLimiter;
+import backend.util.B64Url;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Неблокирующий TCP-листенер бинарного протокола ридеров (см. ReaderFrame).
+ * Один поток-селектор читает кадры, проверка выполняется пулом воркеров через
+ * CardService.verifyTruncTag; на одном соединении допускается много запросов
+ * в полёте, ответы сопоставляются по requestId и могут приходить не по порядку.
+ * Включается свойством app.reader-tcp.enabled.
+ */
+@Component
+@ConditionalOnProperty(name = "app.reader-tcp.enabled", havingValue = "true")
+public class ReaderTcpServer {
+
+    private static final Logger log = LoggerFactory.getLogger(ReaderTcpServer.class);
+
+    // Столько ошибок select() подряд означают, что селектор сломан: листенер останавливается
+    private static final int MAX_SELECT_FAILURES = 10;
+    private static final long MAX_SELECT_BACKOFF_MS = 1000;
+
+    private final CardService cardService;
+    private final VerifyRateLimiter verifyRateLimiter;
+    private final int port;
+    private final int maxInFlightPerConnection;
+    private final ThreadPoolExecutor workers;
+
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    public ReaderTcpServer(CardService cardService,
+                           VerifyRateLimiter verifyRateLimiter,
+                           @Value("${app.reader-tcp.port:9090}") int port,
+                           @Value("${app.reader-tcp.workers:16}") int workerThreads,
+                           @Value("${app.reader-tcp.queue-capacity:10000}") int queueCapacity,
+                           @Value("${app.reader-tcp.max-in-flight:256}") int maxInFlightPerConnection) {
+        this.cardService = cardService;
+        this.verifyRateLimiter = verifyRateLimiter;
+        this.port = port;
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            r -> {
+                Thread t = new Thread(r, "reader-tcp-worker-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "reader-tcp-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        running = false;
+        selector.wakeup();
+        selectorThread.join(5000);
+        workers.shutdown();
+        workers.awaitTermination(5, TimeUnit.SECONDS);
+        serverChannel.close();
+        if (selector.isOpen()) {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    private void selectLoop() {
+        int failures = 0;
+        while (running) {
+            try {
+                selector.select();
+                failures = 0;
+                Connection pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    pending.updateInterest();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() instanceof Connection connection) {
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!running) {
+                    return;
+                }
+                failures++;
+                if (e instanceof ClosedSelectorException || failures >= MAX_SELECT_FAILURES) {
+                    log.error("Reader TCP selector failed {} times in a row, stopping listener on port {}", failures, port, e);
+                    running = false;
+                    closeQuietly();
+                    return;
+                }
+                // Единичная ошибка не останавливает листенер; в лог - первая из серии, пауза растёт
+                if (failures == 1) {
+                    log.warn("Reader TCP select failed, retrying", e);
+                }
+                try {
+                    Thread.sleep(Math.min(MAX_SELECT_BACKOFF_MS, 10L << failures));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Закрытие листенера и соединений из потока-селектора после отказа селектора
+    private void closeQuietly() {
+        try {
+            serverChannel.close();
+            if (selector.isOpen()) {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close reader TCP listener", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void handle(Connection connection, ReaderFrame frame) {
+        byte status;
+        try {
+            if (frame.readerId == null) {
+                status = ReaderFrame.STATUS_BAD_FRAME;
+            } else if (!verifyRateLimiter.tryAcquire(frame.readerId, connection.remoteIp, 1)) {
+                status = ReaderFrame.STATUS_BUSY;
+            } else {
+                boolean ok = cardService.verifyTruncTag(B64Url.encode(frame.cardId), frame.ctr, frame.tag, frame.readerId, null);
+                status = ok ? ReaderFrame.STATUS_OK : ReaderFrame.STATUS_FAIL;
+            }
+        } catch (RuntimeException e) {
+            status = ReaderFrame.STATUS_FAIL;
+        }
+        connection.respond(ReaderFrame.response(frame.requestId, status));
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(ReaderFrame.REQUEST_LENGTH * 64);
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final String remoteIp;
+        private SelectionKey key;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.remoteIp = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        // Вызывается только из потока-селектора
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= ReaderFrame.REQUEST_LENGTH) {
+                ReaderFrame frame = ReaderFrame.read(in);
+                inFlight.incrementAndGet();
+                try {
+                    workers.execute(() -> handle(this, frame));
+                } catch (RejectedExecutionException e) {
+                    respond(ReaderFrame.response(frame.requestId, ReaderFrame.STATUS_BUSY));
+                }
+            }
+            in.compact();
+            updateInterest();
+        }
+
+        // Вызывается только из потока-селектора
+        void write() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = out.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                out.poll();
+            }
+            updateInterest();
+        }
+
+        // Может вызываться из воркеров
+        void respond(ByteBuffer response) {
+            out.add(response);
+            inFlight.decrementAndGet();
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        // Обратное давление: при превышении лимита запросов в полёте перестаём читать соединение
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (inFlight.get() < maxInFlightPerConnection) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!out.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // соединение уже закрыто
+            }
+        }
+    }
+}
@@ -110,9 +110,6 @@ public interface AccessHistoryRepository extends JpaRepository<AccessHistory, Lo
            "GROUP BY ah.readerId")
     List<Object[]> getAverageResponseTimeByReader(@Param("startTime") Instant startTime);
     
-    // Удаление старой истории доступа
-    void deleteByAccessTimestampBefore(Instant cutoffTime);
-    
     // Подсчет записей за период
     long countByAccessTimestampBetween(Instant start, Instant end);
     
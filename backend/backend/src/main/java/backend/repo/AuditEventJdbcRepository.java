@@ -0,0 +1,283 @@
+package backend.repo;
+
+import backend.dto.AuditFilter;
+import backend.model.AccessHistory;
+import backend.model.AuditEvent;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Пакетная вставка событий аудита через JDBC без persistence context (stateless).
+ * Идентификаторы берутся из audit_events_seq блоками по AuditEvent.ID_ALLOCATION_SIZE
+ * так же, как их резервирует pooled-генератор Hibernate: значение hi закрепляет
+ * диапазон (hi - size, hi], поэтому вставки через JPA и через этот путь не пересекаются.
+ * Чтение для выгрузок - потоком по курсору БД без построения сущностей,
+ * для списков - keyset-страницами по (event_timestamp, id).
+ */
+@Repository
+public class AuditEventJdbcRepository {
+
+    private static final String INSERT_SQL =
+        "insert into audit_events (id, event_type, event_category, card_id, reader_id, owner, user_role, " +
+        "event_timestamp, success, message, error_code, ip_address, user_agent, session_id, additional_data, " +
+        "access_type, counter_value, failure_reason, response_time_ms) " +
+        "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String NEXT_BLOCKS_SQL = "select nextval('audit_events_seq') from generate_series(1, ?)";
+
+    // Колонки выгрузки событий: в порядке CSV-заголовка AuditExportService
+    public static final String EVENT_COLUMNS =
+        "id, event_type, event_category, card_id, reader_id, owner, user_role, event_timestamp, success, " +
+        "message, error_code, ip_address, user_agent, session_id, additional_data";
+
+    // Колонки истории доступа: как у представления access_history
+    public static final String ACCESS_COLUMNS =
+        "id, card_id, reader_id, owner, user_role, event_timestamp as access_timestamp, access_type, success, " +
+        "counter_value, ip_address, cast(null as varchar(200)) as location, user_agent as device_info, " +
+        "failure_reason, response_time_ms, cast(null as text) as additional_metadata";
+
+    private static final String ALL_EVENT_COLUMNS =
+        EVENT_COLUMNS + ", access_type, counter_value, failure_reason, response_time_ms";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AuditEventJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Вставка событий JDBC-пакетами по batchSize строк; событиям присваиваются id
+     */
+    public void insertAll(List<AuditEvent> events, int batchSize) {
+        if (events.isEmpty()) {
+            return;
+        }
+        long[] ids = allocateIds(events.size());
+        for (int i = 0; i < ids.length; i++) {
+            events.get(i).setId(ids[i]);
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, events, batchSize, (ps, e) -> {
+            ps.setLong(1, e.getId());
+            ps.setString(2, e.getEventType());
+            ps.setString(3, e.getEventCategory());
+            ps.setString(4, e.getCardId());
+            ps.setString(5, e.getReaderId());
+            ps.setString(6, e.getOwner());
+            ps.setString(7, e.getUserRole());
+            ps.setTimestamp(8, Timestamp.from(e.getEventTimestamp()));
+            ps.setBoolean(9, e.isSuccess());
+            ps.setString(10, e.getMessage());
+            ps.setString(11, e.getErrorCode());
+            ps.setString(12, e.getIpAddress());
+            ps.setString(13, e.getUserAgent());
+            ps.setString(14, e.getSessionId());
+            ps.setString(15, e.getAdditionalData());
+            ps.setString(16, e.getAccessType());
+            ps.setObject(17, e.getCounterValue(), Types.BIGINT);
+            ps.setString(18, e.getFailureReason());
+            ps.setObject(19, e.getResponseTimeMs(), Types.BIGINT);
+        });
+    }
+
+    private long[] allocateIds(int count) {
+        int size = AuditEvent.ID_ALLOCATION_SIZE;
+        long[] ids = new long[count];
+        int filled = 0;
+        while (filled < count) {
+            int blocks = (count - filled + size - 1) / size;
+            for (Long hi : jdbcTemplate.queryForList(NEXT_BLOCKS_SQL, Long.class, blocks)) {
+                // Начальные значения последовательности (< size) Hibernate трактует особо - пропускаем
+                if (hi < size) {
+                    continue;
+                }
+                for (long id = hi - size + 1; id <= hi && filled < count; id++) {
+                    ids[filled++] = id;
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Все события под фильтром, от новых к старым, построчно в handler.
+     * Строки читаются курсором порциями по fetchSize; вызывать внутри транзакции
+     * (иначе драйвер PostgreSQL загружает весь результат в память).
+     */
+    public void streamEvents(AuditFilter filter, int fetchSize, RowCallbackHandler handler) {
+        Where where = eventsWhere(filter);
+        stream("select " + EVENT_COLUMNS + " from audit_events" + where.sql + " order by event_timestamp desc, id desc",
+            where.args, fetchSize, handler);
+    }
+
+    /**
+     * История доступа под фильтром, от новых записей к старым; условия как у streamEvents
+     */
+    public void streamAccessHistory(AuditFilter filter, int fetchSize, RowCallbackHandler handler) {
+        Where where = accessWhere(filter);
+        stream("select " + ACCESS_COLUMNS + " from audit_events" + where.sql + " order by event_timestamp desc, id desc",
+            where.args, fetchSize, handler);
+    }
+
+    /**
+     * Страница событий после строки (afterTimestamp, afterId) (null - с начала) в порядке
+     * event_timestamp, id по убыванию или возрастанию, без OFFSET
+     */
+    public List<AuditEvent> findEvents(AuditFilter filter, boolean ascending, Instant afterTimestamp, Long afterId,
+                                       int limit) {
+        Where where = eventsWhere(filter);
+        return page("select " + ALL_EVENT_COLUMNS + " from audit_events", where, ascending, afterTimestamp, afterId,
+            limit, AuditEventJdbcRepository::eventOf);
+    }
+
+    /**
+     * Страница истории доступа; порядок и seek как у findEvents
+     */
+    public List<AccessHistory> findAccessHistory(AuditFilter filter, boolean ascending, Instant afterTimestamp,
+                                                 Long afterId, int limit) {
+        Where where = accessWhere(filter);
+        return page("select " + ACCESS_COLUMNS + " from audit_events", where, ascending, afterTimestamp, afterId,
+            limit, AuditEventJdbcRepository::accessOf);
+    }
+
+    public long countEvents(AuditFilter filter) {
+        return count(eventsWhere(filter));
+    }
+
+    public long countAccessHistory(AuditFilter filter) {
+        return count(accessWhere(filter));
+    }
+
+    private long count(Where where) {
+        Long count = jdbcTemplate.queryForObject("select count(*) from audit_events" + where.sql, Long.class,
+            where.args.toArray());
+        return count != null ? count : 0L;
+    }
+
+    // Условие по event_timestamp отдельно от пары (event_timestamp, id): его берёт индекс по времени
+    private <T> List<T> page(String select, Where where, boolean ascending, Instant afterTimestamp, Long afterId,
+                             int limit, RowMapper<T> mapper) {
+        if (afterTimestamp != null) {
+            String cmp = ascending ? ">" : "<";
+            Timestamp ts = Timestamp.from(afterTimestamp);
+            where.sql.append(" and event_timestamp ").append(cmp).append("= ?")
+                .append(" and (event_timestamp ").append(cmp).append(" ? or id ").append(cmp).append(" ?)");
+            where.args.add(ts);
+            where.args.add(ts);
+            where.args.add(afterId);
+        }
+        String direction = ascending ? " asc" : " desc";
+        String sql = select + where.sql + " order by event_timestamp" + direction + ", id" + direction + " limit ?";
+        where.args.add(limit);
+        return jdbcTemplate.query(sql, mapper, where.args.toArray());
+    }
+
+    private static AuditEvent eventOf(ResultSet rs, int rowNum) throws SQLException {
+        AuditEvent e = new AuditEvent();
+        e.setId(rs.getLong("id"));
+        e.setEventType(rs.getString("event_type"));
+        e.setEventCategory(rs.getString("event_category"));
+        e.setCardId(rs.getString("card_id"));
+        e.setReaderId(rs.getString("reader_id"));
+        e.setOwner(rs.getString("owner"));
+        e.setUserRole(rs.getString("user_role"));
+        e.setEventTimestamp(rs.getTimestamp("event_timestamp").toInstant());
+        e.setSuccess(rs.getBoolean("success"));
+        e.setMessage(rs.getString("message"));
+        e.setErrorCode(rs.getString("error_code"));
+        e.setIpAddress(rs.getString("ip_address"));
+        e.setUserAgent(rs.getString("user_agent"));
+        e.setSessionId(rs.getString("session_id"));
+        e.setAdditionalData(rs.getString("additional_data"));
+        e.setAccessType(rs.getString("access_type"));
+        e.setCounterValue(rs.getObject("counter_value", Long.class));
+        e.setFailureReason(rs.getString("failure_reason"));
+        e.setResponseTimeMs(rs.getObject("response_time_ms", Long.class));
+        return e;
+    }
+
+    private static AccessHistory accessOf(ResultSet rs, int rowNum) throws SQLException {
+        AccessHistory a = new AccessHistory();
+        a.setId(rs.getLong("id"));
+        a.setCardId(rs.getString("card_id"));
+        a.setReaderId(rs.getString("reader_id"));
+        a.setOwner(rs.getString("owner"));
+        a.setUserRole(rs.getString("user_role"));
+        a.setAccessTimestamp(rs.getTimestamp("access_timestamp").toInstant());
+        a.setAccessType(rs.getString("access_type"));
+        a.setSuccess(rs.getBoolean("success"));
+        a.setCounterValue(rs.getObject("counter_value", Long.class));
+        a.setIpAddress(rs.getString("ip_address"));
+        a.setLocation(rs.getString("location"));
+        a.setDeviceInfo(rs.getString("device_info"));
+        a.setFailureReason(rs.getString("failure_reason"));
+        a.setResponseTimeMs(rs.getObject("response_time_ms", Long.class));
+        a.setAdditionalMetadata(rs.getString("additional_metadata"));
+        return a;
+    }
+
+    private void stream(String sql, List<Object> args, int fetchSize, RowCallbackHandler handler) {
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            for (int i = 0; i < args.size(); i++) {
+                ps.setObject(i + 1, args.get(i));
+            }
+            return ps;
+        }, handler);
+    }
+
+    private static Where eventsWhere(AuditFilter filter) {
+        Where where = new Where();
+        where.eq("event_type", filter.getEventType());
+        where.eq("event_category", filter.getEventCategory());
+        common(where, filter);
+        return where;
+    }
+
+    private static Where accessWhere(AuditFilter filter) {
+        Where where = new Where();
+        where.sql.append(" and access_type is not null");
+        where.eq("access_type", filter.getAccessType());
+        where.eq("owner", filter.getOwner());
+        common(where, filter);
+        return where;
+    }
+
+    // Как в findWithFilters: границы периода включительно
+    private static void common(Where where, AuditFilter filter) {
+        where.eq("card_id", filter.getCardId());
+        where.eq("reader_id", filter.getReaderId());
+        where.eq("success", filter.getSuccess());
+        if (filter.getStartTime() != null) {
+            where.sql.append(" and event_timestamp >= ?");
+            where.args.add(Timestamp.from(filter.getStartTime()));
+        }
+        if (filter.getEndTime() != null) {
+            where.sql.append(" and event_timestamp <= ?");
+            where.args.add(Timestamp.from(filter.getEndTime()));
+        }
+    }
+
+    private static final class Where {
+        private final StringBuilder sql = new StringBuilder(" where 1 = 1");
+        private final List<Object> args = new ArrayList<>();
+
+        void eq(String column, Object value) {
+            if (value != null) {
+                sql.append(" and ").append(column).append(" = ?");
+                args.add(value);
+            }
+        }
+    }
+}
@@ -90,9 +90,6 @@ public interface AuditEventRepository extends JpaRepository<AuditEvent, Long> {
            "ae.cardId IN (SELECT ae3.cardId FROM AuditEvent ae3 WHERE ae3.success = false AND ae3.eventTimestamp >= :startTime GROUP BY ae3.cardId HAVING COUNT(ae3) > :maxFailures))")
     List<AuditEvent> findSuspiciousActivity(@Param("startTime") Instant startTime, @Param("maxFailures") Long maxFailures);
     
-    // Удаление старых событий
-    void deleteByEventTimestampBefore(Instant cutoffTime);
-    
     // Подсчет событий за период
     long countByEventTimestampBetween(Instant start, Instant end);
     
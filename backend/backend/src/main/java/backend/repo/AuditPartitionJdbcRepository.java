@@ -0,0 +1,98 @@
+package backend.repo;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * DDL секций audit_events (секционирование по диапазонам event_timestamp, см. audit_tables.sql).
+ * Имена секций формирует AuditPartitionService, в SQL они подставляются как есть.
+ * Изменения секций выполняются под advisory-блокировкой транзакции: несколько узлов
+ * не создают и не удаляют одну секцию одновременно.
+ */
+@Repository
+public class AuditPartitionJdbcRepository {
+
+    public static final String PARENT = "audit_events";
+    public static final String DEFAULT_PARTITION = "audit_events_default";
+
+    // Верхняя граница секции из её определения; NULL - MAXVALUE или секция по умолчанию
+    private static final String PARTITIONS_SQL =
+        "select c.relname, " +
+        "(regexp_match(pg_get_expr(c.relpartbound, c.oid), 'TO \\(''([^'']+)''\\)'))[1]::timestamptz " +
+        "from pg_inherits i join pg_class c on c.oid = i.inhrelid " +
+        "where i.inhparent = to_regclass(?) order by 2 nulls last, 1";
+
+    /**
+     * Секция audit_events: имя и верхняя граница (исключая); upperBound null - секция по умолчанию
+     */
+    public record Partition(String name, Instant upperBound) {}
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AuditPartitionJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public List<Partition> partitions() {
+        return jdbcTemplate.query(PARTITIONS_SQL, (rs, rowNum) -> {
+            Timestamp upper = rs.getTimestamp(2);
+            return new Partition(rs.getString(1), upper != null ? upper.toInstant() : null);
+        }, PARENT);
+    }
+
+    public boolean isPartitioned() {
+        Boolean partitioned = jdbcTemplate.queryForObject(
+            "select exists (select 1 from pg_partitioned_table where partrelid = to_regclass(?))", Boolean.class, PARENT);
+        return Boolean.TRUE.equals(partitioned);
+    }
+
+    /**
+     * Блокировка изменений секций до конца транзакции
+     */
+    public void lock() {
+        jdbcTemplate.execute("select pg_advisory_xact_lock(hashtext('" + PARENT + ".partitions'))");
+    }
+
+    public boolean exists(String name) {
+        Boolean exists = jdbcTemplate.queryForObject("select to_regclass(?) is not null", Boolean.class, name);
+        return Boolean.TRUE.equals(exists);
+    }
+
+    /**
+     * Создание секции [from, to); вызывать в транзакции. Строки диапазона, уже попавшие в секцию
+     * по умолчанию, переносятся в новую секцию до её подключения. Подключение (ATTACH) не блокирует
+     * вставку в другие секции, индексы родителя строятся на ещё пустой секции.
+     * Возвращает число перенесённых строк.
+     */
+    public int createPartition(String name, Instant from, Instant to) {
+        jdbcTemplate.execute("create table " + name + " (like " + PARENT + " including defaults)");
+        int moved = 0;
+        if (exists(DEFAULT_PARTITION)) {
+            moved = jdbcTemplate.update(
+                "with moved as (delete from " + DEFAULT_PARTITION + " where event_timestamp >= ? and event_timestamp < ? " +
+                "returning *) insert into " + name + " select * from moved",
+                Timestamp.from(from), Timestamp.from(to));
+        }
+        jdbcTemplate.execute("alter table " + PARENT + " attach partition " + name +
+            " for values from ('" + from + "') to ('" + to + "')");
+        return moved;
+    }
+
+    /**
+     * Удаление секции целиком; вызывать в транзакции
+     */
+    public void dropPartition(String name) {
+        jdbcTemplate.execute("drop table " + name);
+    }
+
+    /**
+     * Отключение секции: таблица остаётся (архив, перенос в холодное хранилище), в audit_events её строк больше нет
+     */
+    public void detachPartition(String name) {
+        jdbcTemplate.execute("alter table " + PARENT + " detach partition " + name);
+    }
+}
@@ -0,0 +1,180 @@
+package backend.repo;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Очистка audit_events порциями по первичному ключу (event_timestamp, id) и состояние
+ * задания очистки в audit_retention_job. Порция - диапазон ключа между курсором и границей,
+ * из него удаляются строки старше границы хранения своей категории (остальные категории - по умолчанию).
+ * Изменения состояния условны по владельцу: узел, потерявший задание, больше его не продвигает.
+ */
+@Repository
+public class AuditRetentionJdbcRepository {
+
+    private static final String JOB_NAME = "audit_events";
+
+    public static final String RUNNING = "RUNNING";
+    public static final String COMPLETED = "COMPLETED";
+    public static final String FAILED = "FAILED";
+
+    private static final String JOB_COLUMNS =
+        "select status, owner, policy, range_start, cursor_ts, cursor_id, deleted_rows, chunks, dropped_partitions, " +
+        "started_at, updated_at, finished_at, error from audit_retention_job where name = ?";
+
+    /**
+     * Строка audit_retention_job; policy - границы хранения в формате AuditRetentionService
+     */
+    public record Job(String status, String owner, String policy, Instant rangeStart, Instant cursorTimestamp,
+                      Long cursorId, long deletedRows, long chunks, int droppedPartitions, Instant startedAt,
+                      Instant updatedAt, Instant finishedAt, String error) {}
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AuditRetentionJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public Job job() {
+        List<Job> rows = jdbcTemplate.query(JOB_COLUMNS, (rs, rowNum) -> jobOf(rs), JOB_NAME);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /**
+     * Новое задание: занимает строку, если задание не выполняется или аренда владельца истекла
+     */
+    public boolean claim(String owner, String policy, Instant rangeStart, long leaseMs) {
+        return jdbcTemplate.update(
+            "insert into audit_retention_job (name, status, owner, policy, range_start, started_at, updated_at) " +
+            "values (?, 'RUNNING', ?, ?, ?, now(), now()) " +
+            "on conflict (name) do update set status = 'RUNNING', owner = excluded.owner, policy = excluded.policy, " +
+            "range_start = excluded.range_start, cursor_ts = null, cursor_id = null, deleted_rows = 0, chunks = 0, " +
+            "dropped_partitions = 0, started_at = now(), updated_at = now(), finished_at = null, error = null " +
+            "where audit_retention_job.status <> 'RUNNING' " +
+            "or audit_retention_job.updated_at < now() - ? * interval '1 millisecond'",
+            JOB_NAME, owner, policy, rangeStart != null ? Timestamp.from(rangeStart) : null, leaseMs) > 0;
+    }
+
+    /**
+     * Продолжение прерванного задания: владелец не продлевал аренду дольше leaseMs (узел упал или остановлен)
+     */
+    public boolean takeOver(String owner, long leaseMs) {
+        return jdbcTemplate.update(
+            "update audit_retention_job set owner = ?, updated_at = now() " +
+            "where name = ? and status = 'RUNNING' and updated_at < now() - ? * interval '1 millisecond'",
+            owner, JOB_NAME, leaseMs) > 0;
+    }
+
+    public Instant oldestEventTimestamp() {
+        Timestamp oldest = jdbcTemplate.queryForObject("select min(event_timestamp) from audit_events", Timestamp.class);
+        return oldest != null ? oldest.toInstant() : null;
+    }
+
+    /**
+     * Ключ (event_timestamp, id) chunkSize-й строки после курсора среди строк до before;
+     * null - строк меньше chunkSize, порция последняя
+     */
+    public Object[] chunkBound(Instant cursorTimestamp, Long cursorId, Instant before, int chunkSize) {
+        StringBuilder sql = new StringBuilder("select event_timestamp, id from audit_events where event_timestamp < ?");
+        List<Object> args = new ArrayList<>(List.of(Timestamp.from(before)));
+        afterCursor(sql, args, cursorTimestamp, cursorId);
+        sql.append(" order by event_timestamp, id offset ? limit 1");
+        args.add(chunkSize - 1);
+        List<Object[]> rows = jdbcTemplate.query(sql.toString(),
+            (rs, rowNum) -> new Object[] {rs.getTimestamp(1).toInstant(), rs.getLong(2)}, args.toArray());
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /**
+     * Удаление порции: строки после курсора до границы включительно (boundId null - все строки до boundTimestamp),
+     * старше границы хранения своей категории
+     */
+    public int deleteChunk(Instant cursorTimestamp, Long cursorId, Instant boundTimestamp, Long boundId,
+                           Map<String, Instant> categoryCutoffs, Instant defaultCutoff) {
+        StringBuilder sql = new StringBuilder("delete from audit_events where ");
+        List<Object> args = new ArrayList<>();
+        if (boundId != null) {
+            sql.append("(event_timestamp, id) <= (?, ?)");
+            args.add(Timestamp.from(boundTimestamp));
+            args.add(boundId);
+        } else {
+            sql.append("event_timestamp < ?");
+            args.add(Timestamp.from(boundTimestamp));
+        }
+        afterCursor(sql, args, cursorTimestamp, cursorId);
+        if (categoryCutoffs.isEmpty()) {
+            sql.append(" and event_timestamp < ?");
+        } else {
+            sql.append(" and event_timestamp < case event_category");
+            categoryCutoffs.forEach((category, cutoff) -> {
+                sql.append(" when ? then ?::timestamptz");
+                args.add(category);
+                args.add(Timestamp.from(cutoff));
+            });
+            sql.append(" else ?::timestamptz end");
+        }
+        args.add(Timestamp.from(defaultCutoff));
+        return jdbcTemplate.update(sql.toString(), args.toArray());
+    }
+
+    /**
+     * Перенос курсора после порции; вызывать в транзакции удаления. false - задание перешло к другому узлу
+     */
+    public boolean advance(String owner, Instant cursorTimestamp, Long cursorId, int deleted) {
+        return jdbcTemplate.update(
+            "update audit_retention_job set cursor_ts = ?, cursor_id = ?, deleted_rows = deleted_rows + ?, " +
+            "chunks = chunks + 1, updated_at = now() where name = ? and owner = ? and status = 'RUNNING'",
+            Timestamp.from(cursorTimestamp), cursorId, deleted, JOB_NAME, owner) > 0;
+    }
+
+    public void addDroppedPartitions(String owner, int dropped) {
+        jdbcTemplate.update(
+            "update audit_retention_job set dropped_partitions = dropped_partitions + ?, updated_at = now() " +
+            "where name = ? and owner = ?", dropped, JOB_NAME, owner);
+    }
+
+    public void finish(String owner, String status, String error) {
+        jdbcTemplate.update(
+            "update audit_retention_job set status = ?, error = ?, finished_at = now(), updated_at = now() " +
+            "where name = ? and owner = ? and status = 'RUNNING'",
+            status, error != null && error.length() > 500 ? error.substring(0, 500) : error, JOB_NAME, owner);
+    }
+
+    private static void afterCursor(StringBuilder sql, List<Object> args, Instant cursorTimestamp, Long cursorId) {
+        if (cursorTimestamp != null) {
+            sql.append(" and (event_timestamp, id) > (?, ?)");
+            args.add(Timestamp.from(cursorTimestamp));
+            args.add(cursorId);
+        }
+    }
+
+    private static Job jobOf(ResultSet rs) throws SQLException {
+        return new Job(
+            rs.getString(1),
+            rs.getString(2),
+            rs.getString(3),
+            instantOf(rs.getTimestamp(4)),
+            instantOf(rs.getTimestamp(5)),
+            rs.getObject(6, Long.class),
+            rs.getLong(7),
+            rs.getLong(8),
+            rs.getInt(9),
+            instantOf(rs.getTimestamp(10)),
+            instantOf(rs.getTimestamp(11)),
+            instantOf(rs.getTimestamp(12)),
+            rs.getString(13)
+        );
+    }
+
+    private static Instant instantOf(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toInstant() : null;
+    }
+}
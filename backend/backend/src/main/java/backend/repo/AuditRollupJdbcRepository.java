@@ -0,0 +1,156 @@
+package backend.repo;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Свёртки audit_events: audit_rollup_hourly (тип события, тип доступа, ридер, исход) и
+ * audit_rollup_daily (то же и карта), границы интервалов - по UTC. Пустая строка в
+ * access_type / reader_id / card_id означает NULL исходной строки. Строки выбираются по моменту
+ * записи ingested_at, а раскладываются по event_timestamp: строка, записанная с опозданием,
+ * попадает в свёртку своего часа. audit_rollup_watermark хранит момент записи, до которого
+ * строки audit_events уже учтены в свёртках.
+ */
+@Repository
+public class AuditRollupJdbcRepository {
+
+    private static final String WATERMARK_NAME = "audit_events";
+
+    private static final String HOUR_BUCKET = "date_trunc('hour', event_timestamp at time zone 'UTC') at time zone 'UTC'";
+    private static final String DAY_BUCKET = "date_trunc('day', event_timestamp at time zone 'UTC') at time zone 'UTC'";
+
+    private static final String ROLL_UP_HOURLY_SQL =
+        "insert into audit_rollup_hourly (bucket_start, event_type, access_type, reader_id, success, event_count) " +
+        "select " + HOUR_BUCKET + ", event_type, coalesce(access_type, ''), coalesce(reader_id, ''), success, count(*) " +
+        "from audit_events where ingested_at >= ? and ingested_at < ? " +
+        "group by 1, 2, 3, 4, 5 " +
+        "on conflict (bucket_start, event_type, access_type, reader_id, success) " +
+        "do update set event_count = audit_rollup_hourly.event_count + excluded.event_count";
+
+    private static final String ROLL_UP_DAILY_SQL =
+        "insert into audit_rollup_daily (bucket_start, event_type, access_type, reader_id, card_id, success, event_count) " +
+        "select " + DAY_BUCKET + ", event_type, coalesce(access_type, ''), coalesce(reader_id, ''), " +
+        "coalesce(card_id, ''), success, count(*) " +
+        "from audit_events where ingested_at >= ? and ingested_at < ? " +
+        "group by 1, 2, 3, 4, 5, 6 " +
+        "on conflict (bucket_start, event_type, access_type, reader_id, card_id, success) " +
+        "do update set event_count = audit_rollup_daily.event_count + excluded.event_count";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AuditRollupJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Текущий watermark; null - свёртки ещё не строились
+     */
+    public Instant watermark() {
+        List<Timestamp> rows = jdbcTemplate.queryForList(
+            "select rolled_up_to from audit_rollup_watermark where name = ?", Timestamp.class, WATERMARK_NAME);
+        return rows.isEmpty() ? null : rows.get(0).toInstant();
+    }
+
+    public void initWatermark(Instant start) {
+        jdbcTemplate.update(
+            "insert into audit_rollup_watermark (name, rolled_up_to, updated_at) values (?, ?, now()) " +
+            "on conflict (name) do nothing", WATERMARK_NAME, Timestamp.from(start));
+    }
+
+    public Instant oldestIngestedAt() {
+        Timestamp oldest = jdbcTemplate.queryForObject("select min(ingested_at) from audit_events", Timestamp.class);
+        return oldest != null ? oldest.toInstant() : null;
+    }
+
+    /**
+     * Учёт строк, записанных в [from, to), в свёртках и перенос watermark с from на to; вызывать в транзакции.
+     * false - watermark уже сдвинут другим узлом (строка watermark блокируется первой, свёртки не трогаются).
+     */
+    public boolean rollUp(Instant from, Instant to) {
+        int moved = jdbcTemplate.update(
+            "update audit_rollup_watermark set rolled_up_to = ?, updated_at = now() where name = ? and rolled_up_to = ?",
+            Timestamp.from(to), WATERMARK_NAME, Timestamp.from(from));
+        if (moved == 0) {
+            return false;
+        }
+        jdbcTemplate.update(ROLL_UP_HOURLY_SQL, Timestamp.from(from), Timestamp.from(to));
+        jdbcTemplate.update(ROLL_UP_DAILY_SQL, Timestamp.from(from), Timestamp.from(to));
+        return true;
+    }
+
+    /**
+     * Прореживание: почасовые свёртки старше before удаляются, суточные остаются
+     */
+    public int pruneHourly(Instant before) {
+        return jdbcTemplate.update("delete from audit_rollup_hourly where bucket_start < ?", Timestamp.from(before));
+    }
+
+    /**
+     * Сумма почасовой (daily=false) или суточной свёртки по интервалам [from, to).
+     * eventType и success - null без ограничения, accessOnly - только записи доступа.
+     */
+    public long sumRollup(boolean daily, String eventType, boolean accessOnly, Boolean success, Instant from, Instant to) {
+        StringBuilder sql = new StringBuilder("select coalesce(sum(event_count), 0) from ")
+            .append(daily ? "audit_rollup_daily" : "audit_rollup_hourly")
+            .append(" where bucket_start >= ? and bucket_start < ?");
+        List<Object> args = new ArrayList<>(List.of(Timestamp.from(from), Timestamp.from(to)));
+        conditions(sql, args, eventType, accessOnly ? " and access_type <> ''" : "", success);
+        Long sum = jdbcTemplate.queryForObject(sql.toString(), Long.class, args.toArray());
+        return sum != null ? sum : 0L;
+    }
+
+    /**
+     * Число строк audit_events в [from, to) (toInclusive - в [from, to]) с теми же условиями, что у sumRollup
+     */
+    public long countRaw(String eventType, boolean accessOnly, Boolean success, Instant from, Instant to,
+                         boolean toInclusive) {
+        StringBuilder sql = new StringBuilder("select count(*) from audit_events where event_timestamp >= ? and event_timestamp ")
+            .append(toInclusive ? "<= ?" : "< ?");
+        List<Object> args = new ArrayList<>(List.of(Timestamp.from(from), Timestamp.from(to)));
+        conditions(sql, args, eventType, accessOnly ? " and access_type is not null" : "", success);
+        Long count = jdbcTemplate.queryForObject(sql.toString(), Long.class, args.toArray());
+        return count != null ? count : 0L;
+    }
+
+    /**
+     * [начало часа, всего, неуспешных] из почасовой свёртки за [from, to)
+     */
+    public List<Object[]> hourlySeries(boolean accessOnly, Instant from, Instant to) {
+        return jdbcTemplate.query(
+            "select bucket_start, sum(event_count), coalesce(sum(event_count) filter (where not success), 0) " +
+            "from audit_rollup_hourly where bucket_start >= ? and bucket_start < ?" +
+            (accessOnly ? " and access_type <> ''" : "") + " group by bucket_start",
+            (rs, rowNum) -> new Object[] {rs.getTimestamp(1).toInstant(), rs.getLong(2), rs.getLong(3)},
+            Timestamp.from(from), Timestamp.from(to));
+    }
+
+    /**
+     * То же по строкам audit_events за [from, to) - для хвоста, ещё не учтённого в свёртках
+     */
+    public List<Object[]> rawHourlySeries(boolean accessOnly, Instant from, Instant to) {
+        return jdbcTemplate.query(
+            "select " + HOUR_BUCKET + " as bucket, count(*), count(*) filter (where not success) " +
+            "from audit_events where event_timestamp >= ? and event_timestamp < ?" +
+            (accessOnly ? " and access_type is not null" : "") + " group by bucket",
+            (rs, rowNum) -> new Object[] {rs.getTimestamp(1).toInstant(), rs.getLong(2), rs.getLong(3)},
+            Timestamp.from(from), Timestamp.from(to));
+    }
+
+    private static void conditions(StringBuilder sql, List<Object> args, String eventType, String accessCondition,
+                                   Boolean success) {
+        if (eventType != null) {
+            sql.append(" and event_type = ?");
+            args.add(eventType);
+        }
+        sql.append(accessCondition);
+        if (success != null) {
+            sql.append(" and success = ?");
+            args.add(success);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package backend.repo;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Агрегаты audit_events для засева счётчиков AuditStatistics: учитываются строки до момента cutoff,
+ * всё, что записано позже, счётчики получают из пути записи аудита
+ */
+@Repository
+public class AuditStatisticsJdbcRepository {
+
+    private static final String ACCESS_ONLY = " and access_type is not null";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AuditStatisticsJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * [значение, число] по колонке event_type, event_category или success среди всех событий
+     */
+    public List<Object[]> countEventsBy(String column, Instant cutoff) {
+        return countBy(column, "", cutoff);
+    }
+
+    /**
+     * [значение, число] по колонке access_type, reader_id или success среди записей доступа
+     */
+    public List<Object[]> countAccessBy(String column, Instant cutoff) {
+        return countBy(column, ACCESS_ONLY, cutoff);
+    }
+
+    /**
+     * [card_id, owner, число] среди записей доступа
+     */
+    public List<Object[]> countAccessByCard(Instant cutoff) {
+        return jdbcTemplate.query(
+            "select card_id, max(owner), count(*) from audit_events where event_timestamp < ?" + ACCESS_ONLY +
+            " group by card_id",
+            (rs, rowNum) -> new Object[] {rs.getString(1), rs.getString(2), rs.getLong(3)},
+            Timestamp.from(cutoff));
+    }
+
+    /**
+     * [начало интервала, всего, неуспешных] по интервалам unit ('minute' или 'hour') в [from, cutoff)
+     */
+    public List<Object[]> countByInterval(String unit, boolean accessOnly, Instant from, Instant cutoff) {
+        if (!"minute".equals(unit) && !"hour".equals(unit)) {
+            throw new IllegalArgumentException("Unsupported unit: " + unit);
+        }
+        return jdbcTemplate.query(
+            "select date_trunc('" + unit + "', event_timestamp) as bucket, count(*), " +
+            "count(*) filter (where not success) from audit_events " +
+            "where event_timestamp >= ? and event_timestamp < ?" + (accessOnly ? ACCESS_ONLY : "") +
+            " group by bucket",
+            (rs, rowNum) -> new Object[] {rs.getTimestamp(1).toInstant(), rs.getLong(2), rs.getLong(3)},
+            Timestamp.from(from), Timestamp.from(cutoff));
+    }
+
+    private List<Object[]> countBy(String column, String condition, Instant cutoff) {
+        if (!List.of("event_type", "event_category", "access_type", "reader_id", "success").contains(column)) {
+            throw new IllegalArgumentException("Unsupported column: " + column);
+        }
+        return jdbcTemplate.query(
+            "select " + column + ", count(*) from audit_events where event_timestamp < ?" + condition +
+            " group by " + column,
+            (rs, rowNum) -> new Object[] {rs.getObject(1), rs.getLong(2)},
+            Timestamp.from(cutoff));
+    }
+}
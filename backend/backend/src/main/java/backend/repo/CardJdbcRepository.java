@@ -0,0 +1,121 @@
+package backend.repo;
+
+import backend.dto.CardListFilter;
+import backend.dto.CardSummary;
+import backend.model.CardRecord;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JDBC-доступ к cards в обход persistence context: пакетная вставка новых карт
+ * (массовый выпуск) и keyset-выборка облегчённого списка карт.
+ * Кэши и фильтр карт не затрагиваются: это делает вызывающая сторона после коммита.
+ */
+@Repository
+public class CardJdbcRepository {
+
+    private static final String INSERT_SQL =
+        "insert into cards (card_id_b64, k_master_b64, owner, created_at, expires_at, active, " +
+        "user_role, key_version, next_rotation_at, qr_code) " +
+        "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SUMMARY_COLUMNS =
+        "select card_id_b64, owner, created_at, expires_at, active, user_role, key_version, next_rotation_at, last_ctr " +
+        "from cards";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public CardJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Вставка карт JDBC-пакетами по batchSize строк
+     */
+    public void insertAll(List<CardRecord> cards, int batchSize) {
+        if (cards.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, cards, batchSize, (ps, c) -> {
+            ps.setString(1, c.getCardId());
+            ps.setString(2, c.getkMaster());
+            ps.setString(3, c.getOwner());
+            ps.setTimestamp(4, Timestamp.from(c.getCreatedAt()));
+            ps.setTimestamp(5, c.getExpiresAt() != null ? Timestamp.from(c.getExpiresAt()) : null);
+            ps.setBoolean(6, c.isActive());
+            ps.setString(7, c.getUserRole());
+            ps.setObject(8, c.getKeyVersion(), Types.INTEGER);
+            ps.setTimestamp(9, c.getNextRotationAt() != null ? Timestamp.from(c.getNextRotationAt()) : null);
+            ps.setString(10, c.getQrCode());
+        });
+    }
+
+    /**
+     * Страница списка карт после строки after (null - с начала) в порядке фильтра, не более limit строк.
+     * Поиск по индексу (card_id_b64 или created_at, card_id_b64), без OFFSET.
+     */
+    public List<CardSummary> findSummaries(CardListFilter filter, CardSummary after, int limit) {
+        StringBuilder sql = new StringBuilder(SUMMARY_COLUMNS).append(" where 1 = 1");
+        List<Object> args = new ArrayList<>();
+        if (filter.getUserRole() != null) {
+            sql.append(" and user_role = ?");
+            args.add(filter.getUserRole());
+        }
+        if (filter.getActive() != null) {
+            sql.append(" and active = ?");
+            args.add(filter.getActive());
+        }
+        if (filter.getExpiresAfter() != null) {
+            sql.append(" and expires_at >= ?");
+            args.add(Timestamp.from(filter.getExpiresAfter()));
+        }
+        if (filter.getExpiresBefore() != null) {
+            sql.append(" and expires_at < ?");
+            args.add(Timestamp.from(filter.getExpiresBefore()));
+        }
+        if (filter.isOrderByCreatedAt()) {
+            sql.append(" and created_at is not null");
+            if (after != null) {
+                sql.append(" and (created_at, card_id_b64) > (?, ?)");
+                args.add(Timestamp.from(after.getCreatedAt()));
+                args.add(after.getCardId());
+            }
+            sql.append(" order by created_at, card_id_b64");
+        } else {
+            if (after != null) {
+                sql.append(" and card_id_b64 > ?");
+                args.add(after.getCardId());
+            }
+            sql.append(" order by card_id_b64");
+        }
+        sql.append(" limit ?");
+        args.add(limit);
+        return jdbcTemplate.query(sql.toString(), (rs, rowNum) -> summaryOf(rs), args.toArray());
+    }
+
+    private static CardSummary summaryOf(ResultSet rs) throws SQLException {
+        return new CardSummary(
+            rs.getString(1),
+            rs.getString(2),
+            instantOf(rs.getTimestamp(3)),
+            instantOf(rs.getTimestamp(4)),
+            rs.getBoolean(5),
+            rs.getString(6),
+            rs.getObject(7, Integer.class),
+            instantOf(rs.getTimestamp(8)),
+            rs.getObject(9, Long.class)
+        );
+    }
+
+    private static Instant instantOf(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toInstant() : null;
+    }
+}
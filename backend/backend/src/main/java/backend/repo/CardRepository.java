@@ -1,22 +1,31 @@
 package backend.repo;
 
 import backend.model.CardRecord;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
-import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
-import org.springframework.transaction.annotation.Transactional;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
 public interface CardRepository extends JpaRepository<CardRecord, String> {
-    @Transactional
-    @Modifying
-    @Query("update CardRecord c set c.lastCtr = :newCtr where c.cardId = :cardId and (c.lastCtr is null or :newCtr > c.lastCtr)")
-    int updateLastCtrIfGreater(@Param("cardId") String cardId, @Param("newCtr") long newCtr);
+    @Query("select c.lastCtr from CardRecord c where c.cardId = :cardId")
+    Optional<Long> findLastCtr(@Param("cardId") String cardId);
     
-    @Query("select c from CardRecord c where c.nextRotationAt <= :now and c.active = true")
-    List<CardRecord> findCardsForRotation(@Param("now") Instant now);
+    @Query("select c.cardId, c.lastCtr from CardRecord c where c.lastCtr is not null")
+    List<Object[]> findAllLastCtr();
+    
+    @Query("select c.cardId from CardRecord c")
+    List<String> findAllCardIds();
+    
+    @Query("select c.cardId from CardRecord c where c.cardId in :ids")
+    List<String> findExistingCardIds(@Param("ids") Collection<String> ids);
+    
+    // Keyset-выборка карт к ротации: следующая порция после afterId в порядке cardId
+    @Query("select c from CardRecord c where c.nextRotationAt <= :now and c.active = true and c.cardId > :afterId order by c.cardId")
+    List<CardRecord> findCardsForRotationAfter(@Param("now") Instant now, @Param("afterId") String afterId, Pageable pageable);
     
     @Query("select c from CardRecord c where c.userRole = :role and c.active = true")
     List<CardRecord> findByUserRole(@Param("role") String role);
@@ -0,0 +1,308 @@
+package backend.service;
+
+import backend.model.AuditEvent;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Поток событий аудита для панелей мониторинга (Server-Sent Events): записанные события
+ * (AuditPipeline после вставки пакета) и тревоги SuspiciousActivityDetector рассылаются
+ * подписчикам из памяти, без запросов к БД.
+ * У каждого подписчика свой фильтр (типы, карта, ридер, успешность) и свой буфер на buffer-size
+ * событий: публикация не ждёт клиента, при переполнении вытесняется самое старое событие,
+ * а клиент получает событие dropped с числом потерянных. Отправку ведёт отдельный поток
+ * подписчика, поэтому медленный клиент не задерживает остальных.
+ * Последние history-size событий хранятся для продолжения с Last-Event-ID после переподключения;
+ * если часть событий уже вытеснена из истории (или id от прошлого запуска), приходит событие gap.
+ * Id начинаются с текущего времени в микросекундах, поэтому после перезапуска они продолжают расти.
+ */
+@Component
+public class AuditEventStream {
+
+    public static final String ACCESS = "access";
+    public static final String AUDIT = "audit";
+    public static final String ALERT = "alert";
+    public static final Set<String> TYPES = Set.of(ACCESS, AUDIT, ALERT);
+
+    private final int historySize;
+    private final int bufferSize;
+    private final int maxSubscribers;
+    private final long timeoutMs;
+
+    private final ArrayDeque<Item> history = new ArrayDeque<>();
+    private long nextId = System.currentTimeMillis() * 1000;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    // Не больше одной задачи отправки на подписчика: потоков не больше max-subscribers
+    private final ExecutorService sender = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "audit-stream-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder gaps = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+
+    public AuditEventStream(@Value("${app.audit.stream.history-size:10000}") int historySize,
+                            @Value("${app.audit.stream.buffer-size:1000}") int bufferSize,
+                            @Value("${app.audit.stream.max-subscribers:50}") int maxSubscribers,
+                            @Value("${app.audit.stream.timeout-ms:1800000}") long timeoutMs) {
+        this.historySize = historySize;
+        this.bufferSize = bufferSize;
+        this.maxSubscribers = maxSubscribers;
+        this.timeoutMs = timeoutMs;
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+            subscriber.emitter.complete();
+        }
+        sender.shutdownNow();
+    }
+
+    /**
+     * Рассылка записанных событий; записи доступа (accessType задан) - тип access, остальные - audit
+     */
+    public void publish(List<AuditEvent> events) {
+        for (AuditEvent event : events) {
+            publish(event.getAccessType() != null ? ACCESS : AUDIT, event,
+                event.getCardId(), event.getReaderId(), event.isSuccess());
+        }
+    }
+
+    /**
+     * Рассылка тревоги детектора; cardId / readerId - для фильтров подписчиков (null, если тревога по IP)
+     */
+    public void publishAlert(Map<String, Object> alert, String cardId, String readerId) {
+        publish(ALERT, alert, cardId, readerId, false);
+    }
+
+    // Id, история и буферы меняются под одной блокировкой: порядок у всех подписчиков одинаков,
+    // а подписка с Last-Event-ID не теряет и не повторяет события
+    private void publish(String type, Object data, String cardId, String readerId, boolean success) {
+        synchronized (history) {
+            Item item = new Item(nextId++, type, data, cardId, readerId, success);
+            if (history.size() >= historySize) {
+                history.pollFirst();
+            }
+            history.addLast(item);
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.filter.matches(item)) {
+                    subscriber.offer(item);
+                }
+            }
+        }
+        published.increment();
+    }
+
+    /**
+     * Новый подписчик; lastEventId - продолжение после этого события (null - только новые).
+     * @return null, если подписчиков уже max-subscribers
+     */
+    public SseEmitter subscribe(Filter filter, Long lastEventId) {
+        if (subscribers.size() >= maxSubscribers) {
+            rejected.increment();
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = new Subscriber(filter, emitter);
+        emitter.onCompletion(subscriber::close);
+        emitter.onTimeout(subscriber::close);
+        emitter.onError(e -> subscriber.close());
+        synchronized (history) {
+            if (lastEventId != null) {
+                replay(subscriber, lastEventId);
+            }
+            subscribers.add(subscriber);
+        }
+        subscriber.schedule();
+        return emitter;
+    }
+
+    private void replay(Subscriber subscriber, long lastEventId) {
+        resumed.increment();
+        long oldest = history.isEmpty() ? nextId : history.peekFirst().id();
+        if (lastEventId < oldest - 1 || lastEventId >= nextId) {
+            gaps.increment();
+            Map<String, Object> gap = new LinkedHashMap<>();
+            gap.put("lastEventId", lastEventId);
+            gap.put("oldestEventId", oldest);
+            subscriber.gap = gap;
+        }
+        for (Item item : history) {
+            if (item.id() > lastEventId && subscriber.filter.matches(item)) {
+                subscriber.offer(item);
+            }
+        }
+    }
+
+    /**
+     * Комментарий-пульс подписчикам: держит соединение через прокси и выявляет закрытые клиентом
+     */
+    @Scheduled(fixedDelayString = "${app.audit.stream.heartbeat-ms:15000}")
+    public void heartbeat() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.heartbeat();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("subscribers", subscribers.size());
+        stats.put("maxSubscribers", maxSubscribers);
+        stats.put("bufferSize", bufferSize);
+        synchronized (history) {
+            stats.put("history", history.size());
+            stats.put("lastEventId", nextId - 1);
+        }
+        stats.put("historySize", historySize);
+        stats.put("published", published.sum());
+        stats.put("delivered", delivered.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("resumed", resumed.sum());
+        stats.put("gaps", gaps.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("disconnected", disconnected.sum());
+        return stats;
+    }
+
+    /**
+     * Фильтр подписчика: типы событий (access, audit, alert) и, если заданы, карта, ридер и успешность
+     */
+    public record Filter(Set<String> types, String cardId, String readerId, Boolean success) {
+
+        boolean matches(Item item) {
+            return types.contains(item.type())
+                && (cardId == null || cardId.equals(item.cardId()))
+                && (readerId == null || readerId.equals(item.readerId()))
+                && (success == null || success == item.success());
+        }
+    }
+
+    private record Item(long id, String type, Object data, String cardId, String readerId, boolean success) {}
+
+    /**
+     * Буфер подписчика и его отправка: не больше одной задачи отправки одновременно (scheduled)
+     */
+    private final class Subscriber {
+        private final Filter filter;
+        private final SseEmitter emitter;
+        private final ArrayDeque<Item> buffer = new ArrayDeque<>();
+        private Map<String, Object> gap;
+        private long lost;
+        private boolean pendingHeartbeat;
+        private boolean scheduled;
+        private volatile boolean closed;
+
+        Subscriber(Filter filter, SseEmitter emitter) {
+            this.filter = filter;
+            this.emitter = emitter;
+        }
+
+        void offer(Item item) {
+            synchronized (buffer) {
+                if (buffer.size() >= bufferSize) {
+                    buffer.pollFirst();
+                    lost++;
+                    dropped.increment();
+                }
+                buffer.addLast(item);
+            }
+            schedule();
+        }
+
+        void heartbeat() {
+            synchronized (buffer) {
+                pendingHeartbeat = true;
+            }
+            schedule();
+        }
+
+        void schedule() {
+            synchronized (buffer) {
+                if (scheduled || closed) {
+                    return;
+                }
+                scheduled = true;
+            }
+            try {
+                sender.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    Item item;
+                    Map<String, Object> gapNotice;
+                    long lostCount;
+                    boolean beat;
+                    synchronized (buffer) {
+                        item = buffer.pollFirst();
+                        gapNotice = gap;
+                        lostCount = lost;
+                        beat = pendingHeartbeat;
+                        gap = null;
+                        lost = 0;
+                        pendingHeartbeat = false;
+                        if (item == null && gapNotice == null && lostCount == 0 && !beat) {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                    if (gapNotice != null) {
+                        emitter.send(SseEmitter.event().name("gap").data(gapNotice));
+                    }
+                    if (lostCount > 0) {
+                        emitter.send(SseEmitter.event().name("dropped").data(Map.of("count", lostCount)));
+                    }
+                    if (item != null) {
+                        emitter.send(SseEmitter.event().id(Long.toString(item.id())).name(item.type()).data(item.data()));
+                        delivered.increment();
+                    } else if (beat) {
+                        emitter.send(SseEmitter.event().comment("heartbeat"));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                emitter.completeWithError(e);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (subscribers.remove(this)) {
+                disconnected.increment();
+            }
+            synchronized (buffer) {
+                buffer.clear();
+            }
+        }
+    }
+}
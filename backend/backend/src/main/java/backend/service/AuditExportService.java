@@ -0,0 +1,218 @@
+package backend.service;
+
+import backend.dto.AuditFilter;
+import backend.repo.AuditEventJdbcRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Выгрузка событий аудита и истории доступа в CSV или NDJSON потоком: строки читаются
+ * курсором БД (read-only транзакция, fetch-size строк за раз) и сразу пишутся в ответ,
+ * при необходимости через gzip. Память не зависит от объёма выгрузки. Число одновременных
+ * выгрузок ограничено app.audit.export.max-concurrent: каждая держит соединение до конца
+ * передачи и не должна отнимать пул у проверок карт.
+ */
+@Service
+public class AuditExportService {
+
+    private static final String[] EVENT_HEADERS = {
+        "ID", "Event Type", "Event Category", "Card ID", "Reader ID", "Owner", "User Role",
+        "Event Timestamp", "Success", "Message", "Error Code", "IP Address", "User Agent", "Session ID", "Additional Data"
+    };
+    private static final String[] EVENT_FIELDS = {
+        "id", "eventType", "eventCategory", "cardId", "readerId", "owner", "userRole",
+        "eventTimestamp", "success", "message", "errorCode", "ipAddress", "userAgent", "sessionId", "additionalData"
+    };
+    private static final String[] ACCESS_HEADERS = {
+        "ID", "Card ID", "Reader ID", "Owner", "User Role", "Access Timestamp", "Access Type",
+        "Success", "Counter Value", "IP Address", "Location", "Device Info", "Failure Reason", "Response Time MS",
+        "Additional Metadata"
+    };
+    private static final String[] ACCESS_FIELDS = {
+        "id", "cardId", "readerId", "owner", "userRole", "accessTimestamp", "accessType",
+        "success", "counterValue", "ipAddress", "location", "deviceInfo", "failureReason", "responseTimeMs",
+        "additionalMetadata"
+    };
+
+    public enum Format { CSV, NDJSON }
+
+    private final AuditEventJdbcRepository auditEventJdbcRepository;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int fetchSize;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+
+    private final LongAdder exports = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rowsExported = new LongAdder();
+
+    public AuditExportService(AuditEventJdbcRepository auditEventJdbcRepository, ObjectMapper objectMapper,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${app.audit.export.fetch-size:1000}") int fetchSize,
+                              @Value("${app.audit.export.max-concurrent:2}") int maxConcurrent) {
+        this.auditEventJdbcRepository = auditEventJdbcRepository;
+        this.objectMapper = objectMapper;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.fetchSize = fetchSize;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Резерв места под выгрузку; false - лимит одновременных выгрузок исчерпан.
+     * После успешного резерва вызывающий обязан вызвать release() в finally, в том числе
+     * если выгрузка не началась (например, не удалось получить поток ответа).
+     */
+    public boolean tryAcquire() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Освобождение места, занятого tryAcquire
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Выгрузка событий аудита; вызывается между tryAcquire и release
+     */
+    public void exportEvents(AuditFilter filter, Format format, boolean gzip, OutputStream out) throws IOException {
+        export(format, gzip, out, EVENT_HEADERS, EVENT_FIELDS,
+            handler -> auditEventJdbcRepository.streamEvents(filter, fetchSize, handler));
+    }
+
+    /**
+     * Выгрузка истории доступа; вызывается между tryAcquire и release
+     */
+    public void exportAccessHistory(AuditFilter filter, Format format, boolean gzip, OutputStream out) throws IOException {
+        export(format, gzip, out, ACCESS_HEADERS, ACCESS_FIELDS,
+            handler -> auditEventJdbcRepository.streamAccessHistory(filter, fetchSize, handler));
+    }
+
+    private void export(Format format, boolean gzip, OutputStream out, String[] headers, String[] fields,
+                        Consumer<RowCallbackHandler> query) throws IOException {
+        exports.increment();
+        try {
+            OutputStream target = gzip ? new GZIPOutputStream(out, 64 * 1024) : out;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 64 * 1024);
+            if (format == Format.CSV) {
+                writeCsvLine(writer, headers);
+            }
+            Object[] values = new Object[fields.length];
+            try {
+                readOnlyTransaction.executeWithoutResult(status -> query.accept(rs -> {
+                    readRow(rs, values);
+                    try {
+                        if (format == Format.CSV) {
+                            writeCsvRow(writer, values);
+                        } else {
+                            writeJsonRow(writer, fields, values);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    rowsExported.increment();
+                }));
+            } catch (UncheckedIOException e) {
+                // Клиент закрыл соединение: запрос прерван, курсор закрыт вместе с транзакцией
+                throw e.getCause();
+            }
+            writer.flush();
+            if (target instanceof GZIPOutputStream gzipStream) {
+                gzipStream.finish();
+            }
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            throw e;
+        }
+    }
+
+    private static void readRow(ResultSet rs, Object[] values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            Object value = rs.getObject(i + 1);
+            values[i] = value instanceof Timestamp timestamp ? timestamp.toInstant() : value;
+        }
+    }
+
+    private static void writeCsvLine(Writer writer, String[] cells) throws IOException {
+        for (int i = 0; i < cells.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(escapeCsv(cells[i]));
+        }
+        writer.write('\n');
+    }
+
+    private static void writeCsvRow(Writer writer, Object[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            if (values[i] != null) {
+                writer.write(escapeCsv(values[i].toString()));
+            }
+        }
+        writer.write('\n');
+    }
+
+    private void writeJsonRow(Writer writer, String[] fields, Object[] values) throws IOException {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            row.put(fields[i], values[i]);
+        }
+        writer.write(objectMapper.writeValueAsString(row));
+        writer.write('\n');
+    }
+
+    /**
+     * Экранирование CSV значений
+     */
+    static String escapeCsv(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    public Map<String, Object> stats() {
+        return Map.of(
+            "maxConcurrent", maxConcurrent,
+            "active", maxConcurrent - permits.availablePermits(),
+            "exports", exports.sum(),
+            "rejected", rejected.sum(),
+            "failed", failed.sum(),
+            "rowsExported", rowsExported.sum()
+        );
+    }
+}
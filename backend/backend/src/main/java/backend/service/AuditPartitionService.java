@@ -0,0 +1,175 @@
+package backend.service;
+
+import backend.repo.AuditPartitionJdbcRepository;
+import backend.repo.AuditPartitionJdbcRepository.Partition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Обслуживание секций audit_events: секции по суткам или месяцам (UTC) создаются заранее
+ * на premake интервалов вперёд (и для пропущенных интервалов после последней секции),
+ * задание очистки удаляет (или отключает) секции, целиком лежащие до границы хранения, вместо
+ * построчного DELETE. Если audit_events ещё не секционирована (не применён audit_tables.sql),
+ * секции не создаются и очистка идёт только порциями.
+ */
+@Service
+public class AuditPartitionService {
+
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private final AuditPartitionJdbcRepository partitionRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ChronoUnit interval;
+    private final int premake;
+    private final boolean detach;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder movedFromDefault = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder detached = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile Instant lastMaintenance;
+    private volatile Instant lastDropCutoff;
+
+    public AuditPartitionService(AuditPartitionJdbcRepository partitionRepository,
+                                 PlatformTransactionManager transactionManager,
+                                 @Value("${app.audit.partitions.interval:day}") String interval,
+                                 @Value("${app.audit.partitions.premake:7}") int premake,
+                                 @Value("${app.audit.partitions.retention-mode:drop}") String retentionMode) {
+        this.partitionRepository = partitionRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.interval = switch (interval.toLowerCase()) {
+            case "day" -> ChronoUnit.DAYS;
+            case "month" -> ChronoUnit.MONTHS;
+            default -> throw new IllegalArgumentException("Unsupported partition interval: " + interval);
+        };
+        this.premake = premake;
+        this.detach = switch (retentionMode.toLowerCase()) {
+            case "drop" -> false;
+            case "detach" -> true;
+            default -> throw new IllegalArgumentException("Unsupported retention mode: " + retentionMode);
+        };
+    }
+
+    /**
+     * Создание недостающих секций от последней существующей до текущего интервала + premake;
+     * каждая секция - отдельная короткая транзакция
+     */
+    @Scheduled(initialDelayString = "${app.audit.partitions.initial-delay-ms:0}",
+               fixedDelayString = "${app.audit.partitions.maintenance-interval-ms:3600000}")
+    public void ensurePartitions() {
+        try {
+            if (!partitionRepository.isPartitioned()) {
+                return;
+            }
+            // С верхней границы последней секции: интервалы, пропущенные пока приложение не работало,
+            // тоже получают секции (их строки переносятся из секции по умолчанию)
+            Instant current = floor(Instant.now());
+            Instant from = null;
+            for (Partition partition : partitionRepository.partitions()) {
+                if (partition.upperBound() != null && (from == null || partition.upperBound().isAfter(from))) {
+                    from = partition.upperBound();
+                }
+            }
+            if (from == null) {
+                from = current;
+            }
+            Instant until = next(current, premake + 1);
+            while (from.isBefore(until)) {
+                Instant start = from;
+                Instant end = next(floor(start), 1);
+                String name = AuditPartitionJdbcRepository.PARENT + "_p" + NAME_FORMAT.format(start);
+                transactionTemplate.executeWithoutResult(status -> {
+                    partitionRepository.lock();
+                    if (!partitionRepository.exists(name)) {
+                        movedFromDefault.add(partitionRepository.createPartition(name, start, end));
+                        created.increment();
+                    }
+                });
+                from = end;
+            }
+            lastMaintenance = Instant.now();
+        } catch (RuntimeException e) {
+            failures.increment();
+        }
+    }
+
+    /**
+     * Удаление (или отключение) одной транзакцией секций с верхней границей не позже cutoff;
+     * строки до cutoff в пограничной секции удаляет задание очистки (AuditRetentionService)
+     */
+    public List<String> dropExpiredPartitions(Instant cutoff) {
+        List<String> removed = new ArrayList<>();
+        if (!partitionRepository.isPartitioned()) {
+            return removed;
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            partitionRepository.lock();
+            for (Partition partition : partitionRepository.partitions()) {
+                if (partition.upperBound() == null || partition.upperBound().isAfter(cutoff)) {
+                    continue;
+                }
+                if (detach) {
+                    partitionRepository.detachPartition(partition.name());
+                } else {
+                    partitionRepository.dropPartition(partition.name());
+                }
+                removed.add(partition.name());
+            }
+        });
+        (detach ? detached : dropped).add(removed.size());
+        lastDropCutoff = cutoff;
+        return removed;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        List<Map<String, Object>> partitions = new ArrayList<>();
+        try {
+            for (Partition partition : partitionRepository.partitions()) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("name", partition.name());
+                row.put("upperBound", partition.upperBound());
+                partitions.add(row);
+            }
+        } catch (RuntimeException e) {
+            failures.increment();
+        }
+        stats.put("interval", interval == ChronoUnit.DAYS ? "day" : "month");
+        stats.put("premake", premake);
+        stats.put("retentionMode", detach ? "detach" : "drop");
+        stats.put("partitions", partitions);
+        stats.put("created", created.sum());
+        stats.put("movedFromDefault", movedFromDefault.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("detached", detached.sum());
+        stats.put("failures", failures.sum());
+        stats.put("lastMaintenance", lastMaintenance);
+        stats.put("lastDropCutoff", lastDropCutoff);
+        return stats;
+    }
+
+    // Начало интервала (суток или месяца UTC), содержащего instant
+    private Instant floor(Instant instant) {
+        ZonedDateTime day = instant.atZone(ZoneOffset.UTC).truncatedTo(ChronoUnit.DAYS);
+        return (interval == ChronoUnit.MONTHS ? day.withDayOfMonth(1) : day).toInstant();
+    }
+
+    private Instant next(Instant intervalStart, int count) {
+        return intervalStart.atZone(ZoneOffset.UTC).plus(count, interval).toInstant();
+    }
+}
@@ -0,0 +1,334 @@
+package backend.service;
+
+import backend.model.AuditEvent;
+import backend.repo.AuditEventJdbcRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Асинхронная запись аудита: ограниченный буфер в памяти и фоновый писатель.
+ * Вызывающий поток не ждёт БД; писатель забирает из буфера всё накопленное
+ * (до max-batch-size записей), поэтому размер пакета растёт вместе с очередью.
+ * Пакет вставляется одним JDBC batch (AuditEventJdbcRepository), без persistence context;
+ * записанный пакет учитывается в счётчиках AuditStatistics и окнах SuspiciousActivityDetector
+ * и рассылается подписчикам AuditEventStream.
+ * При переполнении действует политика app.audit.pipeline.overflow-policy:
+ *   WAIT - вызывающий ждёт места в буфере не дольше offer-timeout-ms, затем запись отбрасывается
+ *     (по умолчанию: задержка проверки ограничена и не зависит от БД);
+ *   CALLER_RUNS - одна попытка записи в потоке вызывающего, без повторов;
+ *   DROP_NEWEST - новая запись отбрасывается;
+ *   DROP_OLDEST - вытесняется самая старая запись буфера.
+ * Пакет, отвергнутый БД по данным (DataIntegrityViolationException), пишется построчно: одна плохая
+ * запись не теряет остальные. Прочие ошибки (соединение, таймаут) повторяются писателем с паузой
+ * retry-backoff-ms, удваивающейся до max-retry-backoff-ms, пока БД не вернётся; буфер тем временем
+ * копится, а переполнение обрабатывается политикой. Неудачи пишутся в лог.
+ * При остановке приложения писатель заканчивает текущий пакет, затем буфер дописывается полностью
+ * (при недоступной БД - не больше max-retries повторов на пакет).
+ */
+@Component
+public class AuditPipeline {
+
+    public enum OverflowPolicy { WAIT, CALLER_RUNS, DROP_NEWEST, DROP_OLDEST }
+
+    private static final Logger log = LoggerFactory.getLogger(AuditPipeline.class);
+    private static final long CALLER_FAILURE_LOG_INTERVAL_MS = 10_000;
+
+    private final AuditEventJdbcRepository auditEventJdbcRepository;
+    private final AuditStatistics auditStatistics;
+    private final SuspiciousActivityDetector suspiciousActivityDetector;
+    private final AuditEventStream auditEventStream;
+    private final TransactionTemplate transactionTemplate;
+    private final BlockingQueue<AuditEvent> buffer;
+    private final int capacity;
+    private final int maxBatchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long offerTimeoutMs;
+    private final int maxRetries;
+    private final long retryBackoffMs;
+    private final long maxRetryBackoffMs;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder rowFallbacks = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final AtomicInteger lastBatchSize = new AtomicInteger();
+    private final AtomicLong lastCallerFailureLog = new AtomicLong();
+
+    private Thread writer;
+    private volatile boolean running;
+
+    public AuditPipeline(AuditEventJdbcRepository auditEventJdbcRepository,
+                         AuditStatistics auditStatistics,
+                         SuspiciousActivityDetector suspiciousActivityDetector,
+                         AuditEventStream auditEventStream,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${app.audit.pipeline.capacity:65536}") int capacity,
+                         @Value("${app.audit.pipeline.max-batch-size:500}") int maxBatchSize,
+                         @Value("${app.audit.pipeline.overflow-policy:WAIT}") OverflowPolicy overflowPolicy,
+                         @Value("${app.audit.pipeline.offer-timeout-ms:50}") long offerTimeoutMs,
+                         @Value("${app.audit.pipeline.max-retries:3}") int maxRetries,
+                         @Value("${app.audit.pipeline.retry-backoff-ms:200}") long retryBackoffMs,
+                         @Value("${app.audit.pipeline.max-retry-backoff-ms:5000}") long maxRetryBackoffMs) {
+        this.auditEventJdbcRepository = auditEventJdbcRepository;
+        this.auditStatistics = auditStatistics;
+        this.suspiciousActivityDetector = suspiciousActivityDetector;
+        this.auditEventStream = auditEventStream;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.capacity = capacity;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+        this.maxRetryBackoffMs = maxRetryBackoffMs;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        writer = new Thread(this::drainLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Дописывает буфер перед остановкой. Писатель не прерывается (он может быть внутри JDBC-пакета):
+     * флаг running завершает цикл после текущего пакета
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        writer.join(10000);
+        List<AuditEvent> rest = new ArrayList<>();
+        while (buffer.drainTo(rest, maxBatchSize) > 0) {
+            persist(rest);
+            rest.clear();
+        }
+    }
+
+    public void submit(AuditEvent event) {
+        offer(event);
+    }
+
+    public void submitAll(List<AuditEvent> events) {
+        for (AuditEvent event : events) {
+            offer(event);
+        }
+    }
+
+    private void offer(AuditEvent record) {
+        if (buffer.offer(record)) {
+            enqueued.increment();
+            return;
+        }
+        switch (overflowPolicy) {
+            case WAIT:
+                try {
+                    if (buffer.offer(record, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                        enqueued.increment();
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                dropped.increment();
+                break;
+            case DROP_NEWEST:
+                dropped.increment();
+                break;
+            case DROP_OLDEST:
+                while (!buffer.offer(record)) {
+                    if (buffer.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                enqueued.increment();
+                break;
+            default:
+                callerRuns.increment();
+                writeOnce(record);
+        }
+    }
+
+    // CALLER_RUNS: одна попытка без повторов и пауз, чтобы поток проверки не ждал восстановления БД
+    private void writeOnce(AuditEvent record) {
+        try {
+            transactionTemplate.executeWithoutResult(
+                status -> auditEventJdbcRepository.insertAll(List.of(record), 1));
+        } catch (RuntimeException e) {
+            failed.increment();
+            long now = System.currentTimeMillis();
+            long last = lastCallerFailureLog.get();
+            if (now - last >= CALLER_FAILURE_LOG_INTERVAL_MS && lastCallerFailureLog.compareAndSet(last, now)) {
+                log.warn("Audit buffer full and caller write failed, record lost ({} lost in total)", failed.sum(), e);
+            }
+            return;
+        }
+        written.increment();
+        published(List.of(record));
+    }
+
+    private void drainLoop() {
+        List<AuditEvent> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                AuditEvent first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, maxBatchSize - 1);
+                persist(batch);
+            } catch (InterruptedException e) {
+                // остаток дописывается в stop()
+                Thread.currentThread().interrupt();
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void persist(List<AuditEvent> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        List<AuditEvent> persisted = insertBatch(records);
+        written.add(persisted.size());
+        batches.increment();
+        lastBatchSize.set(records.size());
+        published(persisted);
+    }
+
+    private void published(List<AuditEvent> persisted) {
+        if (persisted.isEmpty()) {
+            return;
+        }
+        auditStatistics.record(persisted);
+        // События - подписчикам раньше тревог, которые они вызвали
+        auditEventStream.publish(persisted);
+        suspiciousActivityDetector.record(persisted);
+    }
+
+    /**
+     * Пакет целиком. Ошибка данных - построчная запись; остальные ошибки повторяются с растущей паузой,
+     * пока писатель работает (после остановки - не больше max-retries раз). Возвращает записанные записи
+     */
+    private List<AuditEvent> insertBatch(List<AuditEvent> records) {
+        long backoff = retryBackoffMs;
+        boolean outage = false;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                transactionTemplate.executeWithoutResult(
+                    status -> auditEventJdbcRepository.insertAll(records, maxBatchSize));
+                if (outage) {
+                    log.info("Audit batch of {} records written after {} attempts", records.size(), attempt + 1);
+                }
+                return records;
+            } catch (DataIntegrityViolationException e) {
+                log.warn("Audit batch of {} records rejected by the database, writing row by row", records.size(), e);
+                return insertRowByRow(records);
+            } catch (RuntimeException e) {
+                if (attempt >= maxRetries) {
+                    if (!running) {
+                        return lost(records, e);
+                    }
+                    if (!outage) {
+                        log.warn("Audit batch of {} records failed {} times, retrying until the database is available",
+                            records.size(), attempt + 1, e);
+                        outage = true;
+                    }
+                }
+                retries.increment();
+                if (!pause(backoff)) {
+                    return lost(records, e);
+                }
+                backoff = Math.min(backoff * 2, maxRetryBackoffMs);
+            }
+        }
+    }
+
+    private List<AuditEvent> lost(List<AuditEvent> records, RuntimeException e) {
+        failed.add(records.size());
+        log.error("Lost {} audit records: database unavailable while stopping", records.size(), e);
+        return List.of();
+    }
+
+    // Только после ошибки данных: каждая запись в своей транзакции, ошибка одной не мешает остальным
+    private List<AuditEvent> insertRowByRow(List<AuditEvent> records) {
+        rowFallbacks.increment();
+        List<AuditEvent> persisted = new ArrayList<>(records.size());
+        AuditEvent firstLost = null;
+        RuntimeException firstError = null;
+        for (AuditEvent record : records) {
+            try {
+                transactionTemplate.executeWithoutResult(
+                    status -> auditEventJdbcRepository.insertAll(List.of(record), 1));
+                persisted.add(record);
+            } catch (RuntimeException e) {
+                if (firstLost == null) {
+                    firstLost = record;
+                    firstError = e;
+                }
+            }
+        }
+        int lost = records.size() - persisted.size();
+        if (lost > 0) {
+            failed.add(lost);
+            log.error("Lost {} of {} audit records (first: {} at {}, card {})", lost, records.size(),
+                firstLost.getEventType(), firstLost.getEventTimestamp(), firstLost.getCardId(), firstError);
+        }
+        return persisted;
+    }
+
+    private static boolean pause(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", buffer.size());
+        stats.put("capacity", capacity);
+        stats.put("overflowPolicy", overflowPolicy.name());
+        stats.put("offerTimeoutMs", offerTimeoutMs);
+        stats.put("enqueued", enqueued.sum());
+        stats.put("written", written.sum());
+        stats.put("batches", batches.sum());
+        stats.put("lastBatchSize", lastBatchSize.get());
+        stats.put("dropped", dropped.sum());
+        stats.put("callerRuns", callerRuns.sum());
+        stats.put("failed", failed.sum());
+        stats.put("retries", retries.sum());
+        stats.put("rowFallbacks", rowFallbacks.sum());
+        return stats;
+    }
+}
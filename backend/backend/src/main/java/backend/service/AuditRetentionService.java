@@ -0,0 +1,269 @@
+package backend.service;
+
+import backend.repo.AuditRetentionJdbcRepository;
+import backend.repo.AuditRetentionJdbcRepository.Job;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Фоновое задание очистки аудита. Границы хранения задаются по категориям событий
+ * (app.audit.retention.category-days, "CATEGORY:дней"), остальные категории хранятся default-days.
+ * Сначала удаляются секции audit_events, целиком лежащие до самой ранней границы (AuditPartitionService),
+ * затем строки удаляются порциями по chunk-size строк первичного ключа (event_timestamp, id)
+ * с паузой pause-ms между порциями, чтобы не отнимать соединения и ввод-вывод у проверок.
+ * Каждая порция - короткая транзакция вместе с переносом курсора в audit_retention_job:
+ * после сбоя задание продолжается с курсора - этим узлом или другим, когда истечёт аренда lease-ms.
+ */
+@Service
+public class AuditRetentionService {
+
+    private static final String DEFAULT_POLICY = "*";
+
+    private final AuditRetentionJdbcRepository retentionRepository;
+    private final AuditPartitionService auditPartitionService;
+    private final AuditStatistics auditStatistics;
+    private final TransactionTemplate transactionTemplate;
+    private final int defaultDays;
+    private final Map<String, Integer> categoryDays = new TreeMap<>();
+    private final int chunkSize;
+    private final long pauseMs;
+    private final long leaseMs;
+    // Владелец задания в audit_retention_job: экземпляр приложения
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "audit-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Instant runStartedAt;
+    private volatile long runDeletedRows;
+    private volatile long lastChunkMillis;
+
+    public AuditRetentionService(AuditRetentionJdbcRepository retentionRepository,
+                                 AuditPartitionService auditPartitionService,
+                                 AuditStatistics auditStatistics,
+                                 PlatformTransactionManager transactionManager,
+                                 @Value("${app.audit.retention.default-days:90}") int defaultDays,
+                                 @Value("${app.audit.retention.category-days:}") List<String> categoryDays,
+                                 @Value("${app.audit.retention.chunk-size:5000}") int chunkSize,
+                                 @Value("${app.audit.retention.pause-ms:200}") long pauseMs,
+                                 @Value("${app.audit.retention.lease-ms:300000}") long leaseMs) {
+        this.retentionRepository = retentionRepository;
+        this.auditPartitionService = auditPartitionService;
+        this.auditStatistics = auditStatistics;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.defaultDays = defaultDays;
+        for (String spec : categoryDays) {
+            if (spec.isBlank()) {
+                continue;
+            }
+            String[] parts = spec.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid retention policy, expected CATEGORY:days - " + spec);
+            }
+            this.categoryDays.put(parts[0], Integer.parseInt(parts[1]));
+        }
+        this.chunkSize = chunkSize;
+        this.pauseMs = pauseMs;
+        this.leaseMs = leaseMs;
+    }
+
+    @PreDestroy
+    public void stop() {
+        // Задание остаётся RUNNING и продолжится после перезапуска (или на другом узле)
+        worker.shutdownNow();
+    }
+
+    /**
+     * Запуск очистки; retentionDays (если задан) заменяет default-days для категорий без своей политики.
+     * @return false, если задание уже выполняется (на этом или другом узле)
+     */
+    public boolean start(Integer retentionDays) {
+        Instant now = Instant.now();
+        Map<String, Instant> cutoffs = new TreeMap<>();
+        categoryDays.forEach((category, days) -> cutoffs.put(category, now.minus(days, ChronoUnit.DAYS)));
+        cutoffs.put(DEFAULT_POLICY, now.minus(retentionDays != null ? retentionDays : defaultDays, ChronoUnit.DAYS));
+        if (!retentionRepository.claim(nodeId, encode(cutoffs), retentionRepository.oldestEventTimestamp(), leaseMs)) {
+            return false;
+        }
+        submit();
+        return true;
+    }
+
+    /**
+     * Продолжение задания, владелец которого перестал продлевать аренду
+     */
+    @Scheduled(initialDelayString = "${app.audit.retention.resume-check-ms:60000}",
+               fixedDelayString = "${app.audit.retention.resume-check-ms:60000}")
+    public void resumeAbandoned() {
+        if (!running.get() && retentionRepository.takeOver(nodeId, leaseMs)) {
+            submit();
+        }
+    }
+
+    private void submit() {
+        try {
+            worker.execute(this::run);
+        } catch (RejectedExecutionException e) {
+            // Приложение останавливается: задание продолжит следующий владелец
+        }
+    }
+
+    private void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        runStartedAt = Instant.now();
+        runDeletedRows = 0;
+        try {
+            Job job = retentionRepository.job();
+            if (job == null || !nodeId.equals(job.owner()) || !AuditRetentionJdbcRepository.RUNNING.equals(job.status())) {
+                return;
+            }
+            Map<String, Instant> cutoffs = decode(job.policy());
+            Instant defaultCutoff = cutoffs.remove(DEFAULT_POLICY);
+            Instant earliest = defaultCutoff;
+            Instant latest = defaultCutoff;
+            for (Instant cutoff : cutoffs.values()) {
+                earliest = cutoff.isBefore(earliest) ? cutoff : earliest;
+                latest = cutoff.isAfter(latest) ? cutoff : latest;
+            }
+
+            // Секции, в которых устарели строки всех категорий, удаляются целиком (повтор после сбоя безопасен)
+            retentionRepository.addDroppedPartitions(nodeId, auditPartitionService.dropExpiredPartitions(earliest).size());
+
+            Instant cursorTimestamp = job.cursorTimestamp();
+            Long cursorId = job.cursorId();
+            while (!Thread.currentThread().isInterrupted()) {
+                long started = System.nanoTime();
+                Object[] bound = retentionRepository.chunkBound(cursorTimestamp, cursorId, latest, chunkSize);
+                Instant boundTimestamp = bound != null ? (Instant) bound[0] : latest;
+                Long boundId = bound != null ? (Long) bound[1] : null;
+                Instant fromTimestamp = cursorTimestamp;
+                Long fromId = cursorId;
+                Integer deleted = transactionTemplate.execute(status -> {
+                    int count = retentionRepository.deleteChunk(fromTimestamp, fromId, boundTimestamp, boundId,
+                        cutoffs, defaultCutoff);
+                    if (!retentionRepository.advance(nodeId, boundTimestamp, boundId != null ? boundId : Long.MAX_VALUE, count)) {
+                        // Задание перешло к другому узлу: порция откатывается
+                        status.setRollbackOnly();
+                        return null;
+                    }
+                    return count;
+                });
+                if (deleted == null) {
+                    return;
+                }
+                runDeletedRows += deleted;
+                lastChunkMillis = (System.nanoTime() - started) / 1_000_000;
+                if (bound == null) {
+                    retentionRepository.finish(nodeId, AuditRetentionJdbcRepository.COMPLETED, null);
+                    // Счётчики за всё время включали удалённые записи
+                    auditStatistics.requestReseed();
+                    return;
+                }
+                cursorTimestamp = boundTimestamp;
+                cursorId = boundId;
+                Thread.sleep(pauseMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            retentionRepository.finish(nodeId, AuditRetentionJdbcRepository.FAILED, String.valueOf(e.getMessage()));
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Состояние задания: границы хранения, курсор, удалено строк и порций, скорость и доля пройденного диапазона
+     */
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        Map<String, Object> policies = new LinkedHashMap<>();
+        policies.put(DEFAULT_POLICY, defaultDays);
+        policies.putAll(categoryDays);
+        status.put("policyDays", policies);
+        status.put("chunkSize", chunkSize);
+        status.put("pauseMs", pauseMs);
+
+        Job job = retentionRepository.job();
+        if (job == null) {
+            status.put("status", "NEVER_RUN");
+            return status;
+        }
+        Map<String, Instant> cutoffs = decode(job.policy());
+        status.put("status", job.status());
+        status.put("runningHere", running.get() && nodeId.equals(job.owner()));
+        status.put("cutoffs", cutoffs);
+        status.put("startedAt", job.startedAt());
+        status.put("updatedAt", job.updatedAt());
+        status.put("finishedAt", job.finishedAt());
+        status.put("cursorTimestamp", job.cursorTimestamp());
+        status.put("deletedRows", job.deletedRows());
+        status.put("chunks", job.chunks());
+        status.put("droppedPartitions", job.droppedPartitions());
+        status.put("progress", progress(job, cutoffs));
+        Instant end = job.finishedAt() != null ? job.finishedAt() : job.updatedAt();
+        long seconds = Math.max(1, Duration.between(job.startedAt(), end).getSeconds());
+        status.put("rowsPerSecond", job.deletedRows() / seconds);
+        if (running.get()) {
+            status.put("runDeletedRows", runDeletedRows);
+            status.put("runStartedAt", runStartedAt);
+            status.put("lastChunkMillis", lastChunkMillis);
+        }
+        status.put("error", job.error());
+        return status;
+    }
+
+    // Доля диапазона [самая старая запись на старте, самая поздняя граница], пройденная курсором
+    private static double progress(Job job, Map<String, Instant> cutoffs) {
+        if (AuditRetentionJdbcRepository.COMPLETED.equals(job.status())) {
+            return 1.0;
+        }
+        Instant latest = cutoffs.values().stream().max(Instant::compareTo).orElse(null);
+        if (job.rangeStart() == null || job.cursorTimestamp() == null || latest == null
+                || !latest.isAfter(job.rangeStart())) {
+            return 0.0;
+        }
+        double done = Duration.between(job.rangeStart(), job.cursorTimestamp()).toMillis();
+        return Math.min(1.0, Math.max(0.0, done / Duration.between(job.rangeStart(), latest).toMillis()));
+    }
+
+    // Границы хранения в audit_retention_job.policy: строки "CATEGORY=момент", "*" - прочие категории
+    private static String encode(Map<String, Instant> cutoffs) {
+        StringBuilder policy = new StringBuilder();
+        cutoffs.forEach((category, cutoff) -> policy.append(category).append('=').append(cutoff).append('\n'));
+        return policy.toString();
+    }
+
+    private static Map<String, Instant> decode(String policy) {
+        Map<String, Instant> cutoffs = new TreeMap<>();
+        for (String line : policy.split("\n")) {
+            int separator = line.lastIndexOf('=');
+            if (separator > 0) {
+                cutoffs.put(line.substring(0, separator), Instant.parse(line.substring(separator + 1)));
+            }
+        }
+        return cutoffs;
+    }
+}
@@ -0,0 +1,236 @@
+package backend.service;
+
+import backend.repo.AuditRollupJdbcRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Фоновая свёртка аудита в почасовые и суточные таблицы (AuditRollupJdbcRepository).
+ * Раз в interval-ms строки audit_events, записанные (ingested_at) от watermark до (сейчас - settle-ms),
+ * учитываются в свёртках шагами по step-hours; каждый шаг - одна транзакция вместе с переносом watermark,
+ * поэтому строка учитывается ровно один раз. Watermark идёт по моменту записи, а не по event_timestamp:
+ * строки, дошедшие с опозданием (очередь и повторы AuditPipeline, перенос access_history), учитываются
+ * следующим запуском; settle-ms - запас только на незакрытые транзакции записи и расхождение часов.
+ * Почасовые свёртки старше hourly-retention-days удаляются (остаются суточные).
+ * Подсчёты за период складываются из свёрток по целым интервалам и строк audit_events
+ * на краях периода и после watermark: стоимость зависит от числа интервалов, а не строк.
+ * Строка, записанная позже watermark с event_timestamp до него, видна в подсчётах после
+ * ближайшей свёртки.
+ */
+@Service
+public class AuditRollupService {
+
+    private final AuditRollupJdbcRepository rollupRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration settle;
+    private final Duration step;
+    private final int maxStepsPerRun;
+    private final int hourlyRetentionDays;
+
+    private volatile Instant watermark;
+    private final LongAdder steps = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder hourlyPruned = new LongAdder();
+    private volatile long lastRunMillis;
+
+    public AuditRollupService(AuditRollupJdbcRepository rollupRepository,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${app.audit.rollup.settle-ms:120000}") long settleMs,
+                              @Value("${app.audit.rollup.step-hours:24}") int stepHours,
+                              @Value("${app.audit.rollup.max-steps-per-run:48}") int maxStepsPerRun,
+                              @Value("${app.audit.rollup.hourly-retention-days:90}") int hourlyRetentionDays) {
+        this.rollupRepository = rollupRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.settle = Duration.ofMillis(settleMs);
+        this.step = Duration.ofHours(stepHours);
+        this.maxStepsPerRun = maxStepsPerRun;
+        this.hourlyRetentionDays = hourlyRetentionDays;
+    }
+
+    @Scheduled(initialDelayString = "${app.audit.rollup.initial-delay-ms:10000}",
+               fixedDelayString = "${app.audit.rollup.interval-ms:60000}")
+    public void rollUp() {
+        long started = System.nanoTime();
+        try {
+            Instant upTo = Instant.now().minus(settle);
+            Instant from = rollupRepository.watermark();
+            if (from == null) {
+                // Первый запуск: свёртки строятся с самой старой записи
+                Instant oldest = rollupRepository.oldestIngestedAt();
+                rollupRepository.initWatermark(oldest != null && oldest.isBefore(upTo) ? oldest : upTo);
+                from = rollupRepository.watermark();
+            }
+            for (int i = 0; i < maxStepsPerRun && from.isBefore(upTo); i++) {
+                Instant stepFrom = from;
+                Instant stepTo = stepFrom.plus(step).isBefore(upTo) ? stepFrom.plus(step) : upTo;
+                Boolean moved = transactionTemplate.execute(status -> rollupRepository.rollUp(stepFrom, stepTo));
+                if (!Boolean.TRUE.equals(moved)) {
+                    // Другой узел сдвинул watermark - продолжим со следующего запуска
+                    conflicts.increment();
+                    from = rollupRepository.watermark();
+                    break;
+                }
+                steps.increment();
+                from = stepTo;
+            }
+            watermark = from;
+            hourlyPruned.add(rollupRepository.pruneHourly(hourlyFloor()));
+        } catch (RuntimeException e) {
+            failures.increment();
+        } finally {
+            lastRunMillis = (System.nanoTime() - started) / 1_000_000;
+        }
+    }
+
+    /**
+     * Число событий в [start, end] (eventType null - все типы)
+     */
+    public long countEvents(String eventType, Instant start, Instant end) {
+        return count(eventType, false, null, start, end);
+    }
+
+    /**
+     * Число записей доступа в [start, end] (success null - с любым исходом)
+     */
+    public long countAccess(Boolean success, Instant start, Instant end) {
+        return count(null, true, success, start, end);
+    }
+
+    private long count(String eventType, boolean accessOnly, Boolean success, Instant start, Instant end) {
+        Instant wm = currentWatermark();
+        if (wm == null) {
+            return rollupRepository.countRaw(eventType, accessOnly, success, start, end, true);
+        }
+        // [a, b) - целые часы внутри периода, полностью учтённые в свёртках
+        Instant a = ceil(start, ChronoUnit.HOURS);
+        Instant b = min(end.truncatedTo(ChronoUnit.HOURS), wm.truncatedTo(ChronoUnit.HOURS));
+        if (!a.isBefore(b)) {
+            return rollupRepository.countRaw(eventType, accessOnly, success, start, end, true);
+        }
+        long total = rollupRepository.countRaw(eventType, accessOnly, success, start, a, false)
+            + rollupRepository.countRaw(eventType, accessOnly, success, b, end, true);
+
+        // Почасовые свёртки есть начиная с hourlyFloor, раньше - только суточные
+        Instant x = max(a, min(b, hourlyFloor()));
+        if (x.isBefore(b)) {
+            total += rollupRepository.sumRollup(false, eventType, accessOnly, success, x, b);
+        }
+        if (a.isBefore(x)) {
+            Instant da = ceil(a, ChronoUnit.DAYS);
+            Instant db = x.truncatedTo(ChronoUnit.DAYS);
+            if (da.isBefore(db)) {
+                total += rollupRepository.sumRollup(true, eventType, accessOnly, success, da, db)
+                    + rollupRepository.countRaw(eventType, accessOnly, success, a, da, false)
+                    + rollupRepository.countRaw(eventType, accessOnly, success, db, x, false);
+            } else {
+                total += rollupRepository.countRaw(eventType, accessOnly, success, a, x, false);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * [начало часа, всего, неуспешных] за [from, to) по возрастанию: из почасовых свёрток до watermark,
+     * дальше - из audit_events. from не раньше hourly-retention-days назад.
+     */
+    public List<Object[]> hourlySeries(boolean accessOnly, Instant from, Instant to) {
+        Instant wm = currentWatermark();
+        Instant split = wm != null ? max(from, min(to, wm.truncatedTo(ChronoUnit.HOURS))) : from;
+        List<Object[]> rows = new ArrayList<>();
+        if (from.isBefore(split)) {
+            rows.addAll(rollupRepository.hourlySeries(accessOnly, from, split));
+        }
+        if (split.isBefore(to)) {
+            rows.addAll(rollupRepository.rawHourlySeries(accessOnly, split, to));
+        }
+        rows.sort(Comparator.comparing(row -> (Instant) row[0]));
+        return rows;
+    }
+
+    /**
+     * [начало суток (UTC), число] за последние days суток, включая текущие
+     */
+    public List<Object[]> dailyTotals(boolean accessOnly, int days) {
+        Instant to = Instant.now();
+        Instant from = to.truncatedTo(ChronoUnit.DAYS).minus(days - 1L, ChronoUnit.DAYS);
+        Map<Instant, Long> byDay = new TreeMap<>();
+        for (Object[] row : hourlySeries(accessOnly, from, to)) {
+            byDay.merge(((Instant) row[0]).truncatedTo(ChronoUnit.DAYS), (Long) row[1], Long::sum);
+        }
+        List<Object[]> result = new ArrayList<>(byDay.size());
+        byDay.forEach((day, count) -> result.add(new Object[] {day, count}));
+        return result;
+    }
+
+    /**
+     * [час суток (UTC), число] записей доступа за последние days суток
+     */
+    public List<Object[]> hourOfDayTotals(int days) {
+        Instant to = Instant.now();
+        long[] byHour = new long[24];
+        for (Object[] row : hourlySeries(true, to.minus(days, ChronoUnit.DAYS).truncatedTo(ChronoUnit.HOURS), to)) {
+            byHour[(int) ((((Instant) row[0]).getEpochSecond() / 3600) % 24)] += (Long) row[1];
+        }
+        List<Object[]> result = new ArrayList<>();
+        for (int hour = 0; hour < 24; hour++) {
+            if (byHour[hour] > 0) {
+                result.add(new Object[] {hour, byHour[hour]});
+            }
+        }
+        return result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("watermark", watermark);
+        stats.put("lagSeconds", watermark != null ? Duration.between(watermark, Instant.now()).getSeconds() : null);
+        stats.put("steps", steps.sum());
+        stats.put("conflicts", conflicts.sum());
+        stats.put("failures", failures.sum());
+        stats.put("hourlyPruned", hourlyPruned.sum());
+        stats.put("lastRunMillis", lastRunMillis);
+        stats.put("hourlyRetentionDays", hourlyRetentionDays);
+        return stats;
+    }
+
+    private Instant currentWatermark() {
+        Instant wm = watermark;
+        if (wm == null) {
+            wm = rollupRepository.watermark();
+            watermark = wm;
+        }
+        return wm;
+    }
+
+    private Instant hourlyFloor() {
+        return Instant.now().truncatedTo(ChronoUnit.DAYS).minus(hourlyRetentionDays, ChronoUnit.DAYS);
+    }
+
+    private static Instant ceil(Instant instant, ChronoUnit unit) {
+        Instant floor = instant.truncatedTo(unit);
+        return floor.equals(instant) ? floor : floor.plus(1, unit);
+    }
+
+    private static Instant min(Instant a, Instant b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static Instant max(Instant a, Instant b) {
+        return a.isAfter(b) ? a : b;
+    }
+}
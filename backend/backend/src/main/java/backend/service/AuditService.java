@@ -1,16 +1,20 @@
 package backend.service;
 
+import backend.dto.AuditFilter;
+import backend.dto.CursorPage;
 import backend.model.AccessHistory;
 import backend.model.AuditEvent;
 import backend.repo.AccessHistoryRepository;
+import backend.repo.AuditEventJdbcRepository;
 import backend.repo.AuditEventRepository;
+import backend.util.PageCursor;
 import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Map;
@@ -21,43 +25,74 @@ public class AuditService {
     
     private final AuditEventRepository auditEventRepository;
     private final AccessHistoryRepository accessHistoryRepository;
+    private final AuditPipeline auditPipeline;
+    private final AuditEventJdbcRepository auditEventJdbcRepository;
+    private final AuditStatistics auditStatistics;
+    private final AuditRollupService auditRollupService;
+    private final AuditPartitionService auditPartitionService;
+    private final AuditRetentionService auditRetentionService;
+    private final SuspiciousActivityDetector suspiciousActivityDetector;
     
     public AuditService(AuditEventRepository auditEventRepository, 
-                       AccessHistoryRepository accessHistoryRepository) {
+                       AccessHistoryRepository accessHistoryRepository,
+                       AuditPipeline auditPipeline,
+                       AuditEventJdbcRepository auditEventJdbcRepository,
+                       AuditStatistics auditStatistics,
+                       AuditRollupService auditRollupService,
+                       AuditPartitionService auditPartitionService,
+                       AuditRetentionService auditRetentionService,
+                       SuspiciousActivityDetector suspiciousActivityDetector) {
         this.auditEventRepository = auditEventRepository;
         this.accessHistoryRepository = accessHistoryRepository;
+        this.auditPipeline = auditPipeline;
+        this.auditEventJdbcRepository = auditEventJdbcRepository;
+        this.auditStatistics = auditStatistics;
+        this.auditRollupService = auditRollupService;
+        this.auditPartitionService = auditPartitionService;
+        this.auditRetentionService = auditRetentionService;
+        this.suspiciousActivityDetector = suspiciousActivityDetector;
     }
     
     /**
-     * Логирование события аудита
+     * Логирование события аудита (асинхронно, через AuditPipeline)
      */
-    @Transactional
     public void logEvent(String eventType, String eventCategory, String cardId, String readerId,
                         String owner, String userRole, boolean success, String message, 
                         HttpServletRequest request) {
-        AuditEvent event = new AuditEvent(eventType, eventCategory, cardId, readerId, 
-                                        owner, userRole, success, message);
-        
-        if (request != null) {
-            event.setIpAddress(getClientIpAddress(request));
-            String userAgent = request.getHeader("User-Agent");
-            if (userAgent != null && userAgent.length() > 500) {
-                userAgent = userAgent.substring(0, 500);
-            }
-            event.setUserAgent(userAgent);
-            event.setSessionId(request.getSession().getId());
-        }
-        
-        auditEventRepository.save(event);
+        auditPipeline.submit(buildEvent(eventType, eventCategory, cardId, readerId, owner, userRole,
+                                             success, message, null, null, request));
     }
     
     /**
      * Логирование события аудита с дополнительными данными
      */
-    @Transactional
     public void logEvent(String eventType, String eventCategory, String cardId, String readerId,
                         String owner, String userRole, boolean success, String message,
                         String errorCode, String additionalData, HttpServletRequest request) {
+        auditPipeline.submit(buildEvent(eventType, eventCategory, cardId, readerId, owner, userRole,
+                                             success, message, errorCode, additionalData, request));
+    }
+    
+    /**
+     * Пакетная передача событий аудита в AuditPipeline
+     */
+    public void logBatch(List<AuditEvent> events) {
+        auditPipeline.submitAll(events);
+    }
+    
+    /**
+     * Состояние очереди асинхронной записи аудита
+     */
+    public Map<String, Object> getPipelineStatistics() {
+        return auditPipeline.stats();
+    }
+    
+    /**
+     * Подготовка события аудита без сохранения
+     */
+    public AuditEvent buildEvent(String eventType, String eventCategory, String cardId, String readerId,
+                                 String owner, String userRole, boolean success, String message,
+                                 String errorCode, String additionalData, HttpServletRequest request) {
         AuditEvent event = new AuditEvent(eventType, eventCategory, cardId, readerId, 
                                         owner, userRole, success, message);
         
@@ -77,37 +112,23 @@ public class AuditService {
             event.setSessionId(request.getSession().getId());
         }
         
-        auditEventRepository.save(event);
+        return event;
     }
     
     /**
-     * Логирование истории доступа
+     * Заполнение полей доступа у события проверки карты.
+     * Такое событие одновременно является записью access_history (см. AccessHistory).
      */
-    @Transactional
-    public void logAccess(String cardId, String readerId, String owner, String userRole,
-                        String accessType, boolean success, Long counterValue,
-                        String failureReason, Long responseTimeMs, String additionalMetadata,
-                        HttpServletRequest request) {
-        AccessHistory history = new AccessHistory(cardId, readerId, owner, userRole, accessType, success);
-        
-        history.setCounterValue(counterValue);
+    public AuditEvent withAccess(AuditEvent event, String accessType, Long counterValue,
+                                 String failureReason, Long responseTimeMs) {
+        event.setAccessType(accessType);
+        event.setCounterValue(counterValue);
         if (failureReason != null && failureReason.length() > 200) {
             failureReason = failureReason.substring(0, 200);
         }
-        history.setFailureReason(failureReason);
-        history.setResponseTimeMs(responseTimeMs);
-        history.setAdditionalMetadata(additionalMetadata);
-        
-        if (request != null) {
-            history.setIpAddress(getClientIpAddress(request));
-            String deviceInfo = request.getHeader("User-Agent");
-            if (deviceInfo != null && deviceInfo.length() > 500) {
-                deviceInfo = deviceInfo.substring(0, 500);
-            }
-            history.setDeviceInfo(deviceInfo);
-        }
-        
-        accessHistoryRepository.save(history);
+        event.setFailureReason(failureReason);
+        event.setResponseTimeMs(responseTimeMs);
+        return event;
     }
     
     /**
@@ -127,6 +148,57 @@ public class AuditService {
         return auditEventRepository.findAll(pageable);
     }
     
+    /**
+     * Keyset-страница событий аудита после курсора (null - первая страница), без COUNT(*), если count=false.
+     * IllegalArgumentException - курсор от другого списка или порядка.
+     */
+    public CursorPage<AuditEvent> getAuditEventsAfter(AuditFilter filter, boolean ascending, String cursor,
+                                                      int size, boolean count) {
+        String kind = ascending ? "events-asc" : "events-desc";
+        Object[] after = decodeCursor(kind, cursor);
+        List<AuditEvent> rows = auditEventJdbcRepository.findEvents(filter, ascending,
+            (Instant) after[0], (Long) after[1], size + 1);
+        String nextCursor = null;
+        if (rows.size() > size) {
+            rows = rows.subList(0, size);
+            AuditEvent last = rows.get(size - 1);
+            nextCursor = PageCursor.encode(kind, last.getEventTimestamp().toString(), last.getId().toString());
+        }
+        return new CursorPage<>(rows, size, nextCursor, count ? auditEventJdbcRepository.countEvents(filter) : null);
+    }
+    
+    /**
+     * Keyset-страница истории доступа; см. getAuditEventsAfter
+     */
+    public CursorPage<AccessHistory> getAccessHistoryAfter(AuditFilter filter, boolean ascending, String cursor,
+                                                           int size, boolean count) {
+        String kind = ascending ? "access-asc" : "access-desc";
+        Object[] after = decodeCursor(kind, cursor);
+        List<AccessHistory> rows = auditEventJdbcRepository.findAccessHistory(filter, ascending,
+            (Instant) after[0], (Long) after[1], size + 1);
+        String nextCursor = null;
+        if (rows.size() > size) {
+            rows = rows.subList(0, size);
+            AccessHistory last = rows.get(size - 1);
+            nextCursor = PageCursor.encode(kind, last.getAccessTimestamp().toString(), last.getId().toString());
+        }
+        return new CursorPage<>(rows, size, nextCursor,
+            count ? auditEventJdbcRepository.countAccessHistory(filter) : null);
+    }
+    
+    // {время, id} последней строки предыдущей страницы или {null, null}
+    private static Object[] decodeCursor(String kind, String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return new Object[] {null, null};
+        }
+        String[] parts = PageCursor.decode(cursor, kind, 3);
+        try {
+            return new Object[] {Instant.parse(parts[1]), Long.valueOf(parts[2])};
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+    
     /**
      * Получение истории доступа с фильтрами
      */
@@ -159,35 +231,45 @@ public class AuditService {
     }
     
     /**
-     * Получение статистики событий
+     * Получение статистики событий: из счётчиков в памяти, до окончания их засева - из БД
      */
     public Map<String, Object> getEventStatistics() {
+        if (auditStatistics.ready()) {
+            return auditStatistics.eventStatistics();
+        }
         return Map.of(
             "eventTypes", auditEventRepository.getEventTypeStatistics(),
             "eventCategories", auditEventRepository.getEventCategoryStatistics(),
             "successStats", auditEventRepository.getSuccessStatistics(),
-            "dailyStats", auditEventRepository.getDailyStatistics(Instant.now().minus(30, ChronoUnit.DAYS))
+            "dailyStats", auditRollupService.dailyTotals(false, 30)
         );
     }
     
     /**
-     * Получение статистики доступа
+     * Получение статистики доступа: из счётчиков в памяти, до окончания их засева - из БД
      */
     public Map<String, Object> getAccessStatistics() {
+        if (auditStatistics.ready()) {
+            return auditStatistics.accessStatistics();
+        }
         return Map.of(
             "accessTypes", accessHistoryRepository.getAccessTypeStatistics(),
             "readerStats", accessHistoryRepository.getReaderStatistics(),
             "cardStats", accessHistoryRepository.getCardStatistics(),
             "successStats", accessHistoryRepository.getSuccessStatistics(),
-            "dailyStats", accessHistoryRepository.getDailyStatistics(Instant.now().minus(30, ChronoUnit.DAYS)),
-            "hourlyStats", accessHistoryRepository.getHourlyStatistics(Instant.now().minus(7, ChronoUnit.DAYS))
+            "dailyStats", auditRollupService.dailyTotals(true, 30),
+            "hourlyStats", auditRollupService.hourOfDayTotals(7)
         );
     }
     
     /**
-     * Поиск подозрительной активности
+     * Поиск подозрительной активности: недавние неуспешные события карт и IP, превысивших
+     * maxFailures отказов за окно (SuspiciousActivityDetector); до засева окон - запрос к БД
      */
     public List<AuditEvent> findSuspiciousActivity(Long maxFailures) {
+        if (suspiciousActivityDetector.ready()) {
+            return suspiciousActivityDetector.suspiciousActivity(maxFailures);
+        }
         Instant startTime = Instant.now().minus(24, ChronoUnit.HOURS);
         return auditEventRepository.findSuspiciousActivity(startTime, maxFailures);
     }
@@ -196,6 +278,9 @@ public class AuditService {
      * Поиск частых неудачных попыток доступа
      */
     public List<Object[]> findFrequentFailures(Long maxFailures) {
+        if (suspiciousActivityDetector.ready()) {
+            return suspiciousActivityDetector.frequentFailures(maxFailures);
+        }
         Instant startTime = Instant.now().minus(24, ChronoUnit.HOURS);
         return accessHistoryRepository.findFrequentFailures(startTime, maxFailures);
     }
@@ -204,10 +289,27 @@ public class AuditService {
      * Поиск подозрительных IP адресов
      */
     public List<Object[]> findSuspiciousIPs(Long maxFailures) {
+        if (suspiciousActivityDetector.ready()) {
+            return suspiciousActivityDetector.suspiciousIps(maxFailures);
+        }
         Instant startTime = Instant.now().minus(24, ChronoUnit.HOURS);
         return accessHistoryRepository.findSuspiciousIPs(startTime, maxFailures);
     }
     
+    /**
+     * Последние тревоги детектора подозрительной активности
+     */
+    public List<Map<String, Object>> getSuspiciousAlerts() {
+        return suspiciousActivityDetector.alerts();
+    }
+    
+    /**
+     * Состояние детектора подозрительной активности (окна, ключи, тревоги)
+     */
+    public Map<String, Object> getDetectorStats() {
+        return suspiciousActivityDetector.stats();
+    }
+    
     /**
      * Получение среднего времени ответа по ридерам
      */
@@ -217,19 +319,46 @@ public class AuditService {
     }
     
     /**
-     * Очистка старых записей аудита
+     * Запуск фонового задания очистки аудита и истории доступа (AuditRetentionService);
+     * access_history строится из audit_events, отдельная очистка не нужна.
+     * @return false, если задание уже выполняется
+     */
+    public boolean startCleanup(Integer retentionDays) {
+        return auditRetentionService.start(retentionDays);
+    }
+    
+    /**
+     * Состояние задания очистки: границы хранения, прогресс, скорость
+     */
+    public Map<String, Object> getCleanupStatus() {
+        return auditRetentionService.status();
+    }
+    
+    /**
+     * Секции audit_events и результаты их обслуживания
+     */
+    public Map<String, Object> getPartitionStats() {
+        return auditPartitionService.stats();
+    }
+    
+    /**
+     * Состояние счётчиков статистики в памяти
+     */
+    public Map<String, Object> getStatisticsState() {
+        return auditStatistics.stats();
+    }
+    
+    /**
+     * Состояние фоновой свёртки аудита
      */
-    @Transactional
-    public void cleanupOldRecords(int retentionDays) {
-        Instant cutoffTime = Instant.now().minus(retentionDays, ChronoUnit.DAYS);
-        auditEventRepository.deleteByEventTimestampBefore(cutoffTime);
-        accessHistoryRepository.deleteByAccessTimestampBefore(cutoffTime);
+    public Map<String, Object> getRollupStats() {
+        return auditRollupService.stats();
     }
     
     /**
      * Получение IP адреса клиента
      */
-    private String getClientIpAddress(HttpServletRequest request) {
+    public String getClientIpAddress(HttpServletRequest request) {
         String xForwardedFor = request.getHeader("X-Forwarded-For");
         if (xForwardedFor != null && !xForwardedFor.isEmpty()) {
             return xForwardedFor.split(",")[0].trim();
@@ -244,37 +373,37 @@ public class AuditService {
     }
     
     /**
-     * Получение количества событий за период
+     * Получение количества событий за период (границы включаются): из свёрток AuditRollupService и краёв периода в audit_events
      */
     public long getEventCount(Instant start, Instant end) {
-        return auditEventRepository.countByEventTimestampBetween(start, end);
+        return auditRollupService.countEvents(null, start, end);
     }
     
     /**
      * Получение количества событий по типу за период
      */
     public long getEventCountByType(String eventType, Instant start, Instant end) {
-        return auditEventRepository.countByEventTypeAndEventTimestampBetween(eventType, start, end);
+        return auditRollupService.countEvents(eventType, start, end);
     }
     
     /**
      * Получение количества записей доступа за период
      */
     public long getAccessCount(Instant start, Instant end) {
-        return accessHistoryRepository.countByAccessTimestampBetween(start, end);
+        return auditRollupService.countAccess(null, start, end);
     }
     
     /**
      * Получение количества успешных доступов за период
      */
     public long getSuccessfulAccessCount(Instant start, Instant end) {
-        return accessHistoryRepository.countBySuccessAndAccessTimestampBetween(true, start, end);
+        return auditRollupService.countAccess(true, start, end);
     }
     
     /**
      * Получение количества неуспешных доступов за период
      */
     public long getFailedAccessCount(Instant start, Instant end) {
-        return accessHistoryRepository.countBySuccessAndAccessTimestampBetween(false, start, end);
+        return auditRollupService.countAccess(false, start, end);
     }
 }
@@ -0,0 +1,403 @@
+package backend.service;
+
+import backend.model.AuditEvent;
+import backend.repo.AuditStatisticsJdbcRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика аудита в памяти: счётчики по типам, категориям, ридерам, картам и исходу
+ * плюс кольца интервалов (минуты, часы, дни) с числом всех и неуспешных записей.
+ * Счётчики пополняет AuditPipeline после записи каждого пакета, эндпоинты статистики
+ * читают их без обращения к БД.
+ * Засев: при старте (в фоне) и после очистки аудита счётчики строятся заново агрегатами
+ * audit_events до момента cutoff; записи не раньше cutoff, пришедшие во время засева,
+ * добавляются и в новый набор. Пока первый засев не закончен, ready() = false.
+ */
+@Component
+public class AuditStatistics {
+
+    private static final long MINUTE_MS = 60_000L;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+    // ConcurrentHashMap не хранит null-ключи; null (например, ридер не указан) хранится под этим ключом
+    private static final String NULL_KEY = "\u0000";
+
+    private final AuditStatisticsJdbcRepository repository;
+    private final AuditRollupService rollupService;
+    private final int dailyDays;
+    private final int hourlyDays;
+    private final int recentMinutes;
+
+    private final ExecutorService seeder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "audit-stats-seed");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean seedRequested = new AtomicBoolean();
+
+    private volatile State state;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder seeds = new LongAdder();
+    private final LongAdder seedFailures = new LongAdder();
+    private volatile long lastSeedMillis;
+    private volatile Instant lastSeedCutoff;
+
+    public AuditStatistics(AuditStatisticsJdbcRepository repository,
+                           AuditRollupService rollupService,
+                           @Value("${app.audit.statistics.daily-days:30}") int dailyDays,
+                           @Value("${app.audit.statistics.hourly-days:7}") int hourlyDays,
+                           @Value("${app.audit.statistics.recent-minutes:60}") int recentMinutes) {
+        this.repository = repository;
+        this.rollupService = rollupService;
+        this.dailyDays = dailyDays;
+        this.hourlyDays = hourlyDays;
+        this.recentMinutes = recentMinutes;
+        this.state = new State(newCounters(), null, null, false);
+    }
+
+    @PostConstruct
+    public void start() {
+        requestReseed();
+    }
+
+    @PreDestroy
+    public void stop() {
+        seeder.shutdownNow();
+    }
+
+    public boolean ready() {
+        return state.ready;
+    }
+
+    /**
+     * Учёт записанных событий; вызывается после успешной вставки пакета
+     */
+    public void record(List<AuditEvent> events) {
+        State s = state;
+        for (AuditEvent event : events) {
+            s.current.add(event);
+            if (s.pending != null && !event.getEventTimestamp().isBefore(s.pendingCutoff)) {
+                s.pending.add(event);
+            }
+        }
+        recorded.add(events.size());
+    }
+
+    /**
+     * Пересчёт счётчиков из БД в фоне; повторные запросы во время засева объединяются
+     */
+    public void requestReseed() {
+        if (seedRequested.compareAndSet(false, true)) {
+            seeder.execute(() -> {
+                seedRequested.set(false);
+                reseed();
+            });
+        }
+    }
+
+    private void reseed() {
+        long started = System.nanoTime();
+        Instant cutoff = Instant.now();
+        Counters next = newCounters();
+        State before = state;
+        state = new State(before.current, next, cutoff, before.ready);
+        try {
+            seed(next, cutoff);
+            state = new State(next, null, null, true);
+            seeds.increment();
+            lastSeedCutoff = cutoff;
+            lastSeedMillis = (System.nanoTime() - started) / 1_000_000;
+        } catch (RuntimeException e) {
+            seedFailures.increment();
+            State failed = state;
+            state = new State(failed.current, null, null, failed.ready);
+        }
+    }
+
+    private void seed(Counters c, Instant cutoff) {
+        for (Object[] row : repository.countEventsBy("event_type", cutoff)) {
+            adder(c.eventTypes, (String) row[0]).add((Long) row[1]);
+        }
+        for (Object[] row : repository.countEventsBy("event_category", cutoff)) {
+            adder(c.eventCategories, (String) row[0]).add((Long) row[1]);
+        }
+        for (Object[] row : repository.countEventsBy("success", cutoff)) {
+            (Boolean.TRUE.equals(row[0]) ? c.eventSuccess : c.eventFailure).add((Long) row[1]);
+        }
+        for (Object[] row : repository.countAccessBy("access_type", cutoff)) {
+            adder(c.accessTypes, (String) row[0]).add((Long) row[1]);
+        }
+        for (Object[] row : repository.countAccessBy("reader_id", cutoff)) {
+            adder(c.readers, (String) row[0]).add((Long) row[1]);
+        }
+        for (Object[] row : repository.countAccessBy("success", cutoff)) {
+            (Boolean.TRUE.equals(row[0]) ? c.accessSuccess : c.accessFailure).add((Long) row[1]);
+        }
+        for (Object[] row : repository.countAccessByCard(cutoff)) {
+            c.cards.computeIfAbsent(key((String) row[0]), k -> new CardCount()).add((String) row[1], (Long) row[2]);
+        }
+
+        // Дни и часы - из почасовых свёрток (AuditRollupService) и хвоста audit_events после их watermark
+        Instant hoursFrom = Instant.ofEpochMilli(Math.floorDiv(cutoff.toEpochMilli(), DAY_MS) * DAY_MS)
+            .minusMillis(dailyDays * DAY_MS);
+        for (Object[] row : rollupService.hourlySeries(false, hoursFrom, cutoff)) {
+            c.eventDays.add(((Instant) row[0]).toEpochMilli(), (Long) row[1], (Long) row[2]);
+        }
+        for (Object[] row : rollupService.hourlySeries(true, hoursFrom, cutoff)) {
+            long at = ((Instant) row[0]).toEpochMilli();
+            c.accessDays.add(at, (Long) row[1], (Long) row[2]);
+            c.accessHours.add(at, (Long) row[1], (Long) row[2]);
+        }
+        Instant minutesFrom = cutoff.minusMillis(recentMinutes * MINUTE_MS);
+        for (Object[] row : repository.countByInterval("minute", false, minutesFrom, cutoff)) {
+            c.eventMinutes.add(((Instant) row[0]).toEpochMilli(), (Long) row[1], (Long) row[2]);
+        }
+        for (Object[] row : repository.countByInterval("minute", true, minutesFrom, cutoff)) {
+            c.accessMinutes.add(((Instant) row[0]).toEpochMilli(), (Long) row[1], (Long) row[2]);
+        }
+    }
+
+    /**
+     * Статистика событий в формате AuditService.getEventStatistics
+     */
+    public Map<String, Object> eventStatistics() {
+        Counters c = state.current;
+        long now = System.currentTimeMillis();
+        return Map.of(
+            "eventTypes", sortedByCount(c.eventTypes),
+            "eventCategories", sortedByCount(c.eventCategories),
+            "successStats", successStats(c.eventSuccess, c.eventFailure),
+            "dailyStats", totals(c.eventDays.since(dayStart(now) - (dailyDays - 1) * DAY_MS)),
+            "recentMinutes", withFailures(c.eventMinutes.since(now - recentMinutes * MINUTE_MS))
+        );
+    }
+
+    /**
+     * Статистика доступа в формате AuditService.getAccessStatistics
+     */
+    public Map<String, Object> accessStatistics() {
+        Counters c = state.current;
+        long now = System.currentTimeMillis();
+        List<Object[]> cards = new ArrayList<>();
+        c.cards.forEach((cardId, count) -> cards.add(new Object[] {value(cardId), count.owner, count.count.sum()}));
+        cards.sort(Comparator.comparingLong((Object[] row) -> (Long) row[2]).reversed());
+
+        // Распределение по часу суток (UTC) за hourly-days
+        long[] byHour = new long[24];
+        for (long[] bucket : c.accessHours.since(now - hourlyDays * DAY_MS)) {
+            byHour[(int) Math.floorMod(bucket[0] / HOUR_MS, 24)] += bucket[1];
+        }
+        List<Object[]> hourly = new ArrayList<>();
+        for (int hour = 0; hour < 24; hour++) {
+            if (byHour[hour] > 0) {
+                hourly.add(new Object[] {hour, byHour[hour]});
+            }
+        }
+
+        return Map.of(
+            "accessTypes", sortedByCount(c.accessTypes),
+            "readerStats", sortedByCount(c.readers),
+            "cardStats", cards,
+            "successStats", successStats(c.accessSuccess, c.accessFailure),
+            "dailyStats", totals(c.accessDays.since(dayStart(now) - (dailyDays - 1) * DAY_MS)),
+            "hourlyStats", hourly,
+            "recentMinutes", withFailures(c.accessMinutes.since(now - recentMinutes * MINUTE_MS))
+        );
+    }
+
+    public Map<String, Object> stats() {
+        State s = state;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", s.ready);
+        stats.put("seeding", s.pending != null);
+        stats.put("seeds", seeds.sum());
+        stats.put("seedFailures", seedFailures.sum());
+        stats.put("lastSeedCutoff", lastSeedCutoff);
+        stats.put("lastSeedMillis", lastSeedMillis);
+        stats.put("recorded", recorded.sum());
+        stats.put("eventTypes", s.current.eventTypes.size());
+        stats.put("readers", s.current.readers.size());
+        stats.put("cards", s.current.cards.size());
+        return stats;
+    }
+
+    private Counters newCounters() {
+        return new Counters(dailyDays, hourlyDays, recentMinutes);
+    }
+
+    private static long dayStart(long epochMillis) {
+        return Math.floorDiv(epochMillis, DAY_MS) * DAY_MS;
+    }
+
+    private static String key(String value) {
+        return value != null ? value : NULL_KEY;
+    }
+
+    private static String value(String key) {
+        return NULL_KEY.equals(key) ? null : key;
+    }
+
+    private static LongAdder adder(Map<String, LongAdder> counters, String value) {
+        return counters.computeIfAbsent(key(value), k -> new LongAdder());
+    }
+
+    private static List<Object[]> sortedByCount(Map<String, LongAdder> counters) {
+        List<Object[]> rows = new ArrayList<>(counters.size());
+        counters.forEach((k, v) -> rows.add(new Object[] {value(k), v.sum()}));
+        rows.sort(Comparator.comparingLong((Object[] row) -> (Long) row[1]).reversed());
+        return rows;
+    }
+
+    private static List<Object[]> successStats(LongAdder success, LongAdder failure) {
+        List<Object[]> rows = new ArrayList<>(2);
+        if (success.sum() > 0) {
+            rows.add(new Object[] {true, success.sum()});
+        }
+        if (failure.sum() > 0) {
+            rows.add(new Object[] {false, failure.sum()});
+        }
+        return rows;
+    }
+
+    private static List<Object[]> totals(List<long[]> buckets) {
+        List<Object[]> rows = new ArrayList<>(buckets.size());
+        for (long[] bucket : buckets) {
+            rows.add(new Object[] {Instant.ofEpochMilli(bucket[0]), bucket[1]});
+        }
+        return rows;
+    }
+
+    private static List<Object[]> withFailures(List<long[]> buckets) {
+        List<Object[]> rows = new ArrayList<>(buckets.size());
+        for (long[] bucket : buckets) {
+            rows.add(new Object[] {Instant.ofEpochMilli(bucket[0]), bucket[1], bucket[2]});
+        }
+        return rows;
+    }
+
+    private record State(Counters current, Counters pending, Instant pendingCutoff, boolean ready) {}
+
+    private static final class Counters {
+        final Map<String, LongAdder> eventTypes = new ConcurrentHashMap<>();
+        final Map<String, LongAdder> eventCategories = new ConcurrentHashMap<>();
+        final LongAdder eventSuccess = new LongAdder();
+        final LongAdder eventFailure = new LongAdder();
+        final TimeBuckets eventDays;
+        final TimeBuckets eventMinutes;
+
+        final Map<String, LongAdder> accessTypes = new ConcurrentHashMap<>();
+        final Map<String, LongAdder> readers = new ConcurrentHashMap<>();
+        final Map<String, CardCount> cards = new ConcurrentHashMap<>();
+        final LongAdder accessSuccess = new LongAdder();
+        final LongAdder accessFailure = new LongAdder();
+        final TimeBuckets accessDays;
+        final TimeBuckets accessHours;
+        final TimeBuckets accessMinutes;
+
+        Counters(int dailyDays, int hourlyDays, int recentMinutes) {
+            eventDays = new TimeBuckets(DAY_MS, dailyDays + 1);
+            eventMinutes = new TimeBuckets(MINUTE_MS, recentMinutes + 1);
+            accessDays = new TimeBuckets(DAY_MS, dailyDays + 1);
+            accessHours = new TimeBuckets(HOUR_MS, hourlyDays * 24 + 1);
+            accessMinutes = new TimeBuckets(MINUTE_MS, recentMinutes + 1);
+        }
+
+        void add(AuditEvent event) {
+            long at = event.getEventTimestamp().toEpochMilli();
+            boolean failed = !event.isSuccess();
+            long failures = failed ? 1 : 0;
+            adder(eventTypes, event.getEventType()).increment();
+            adder(eventCategories, event.getEventCategory()).increment();
+            (failed ? eventFailure : eventSuccess).increment();
+            eventDays.add(at, 1, failures);
+            eventMinutes.add(at, 1, failures);
+            if (event.getAccessType() == null) {
+                return;
+            }
+            adder(accessTypes, event.getAccessType()).increment();
+            adder(readers, event.getReaderId()).increment();
+            cards.computeIfAbsent(key(event.getCardId()), k -> new CardCount()).add(event.getOwner(), 1);
+            (failed ? accessFailure : accessSuccess).increment();
+            accessDays.add(at, 1, failures);
+            accessHours.add(at, 1, failures);
+            accessMinutes.add(at, 1, failures);
+        }
+    }
+
+    private static final class CardCount {
+        volatile String owner;
+        final LongAdder count = new LongAdder();
+
+        void add(String owner, long n) {
+            if (owner != null) {
+                this.owner = owner;
+            }
+            count.add(n);
+        }
+    }
+
+    /**
+     * Кольцо интервалов фиксированной ширины: слот переиспользуется, когда в него
+     * попадает более новый интервал; записи старше окна кольца отбрасываются
+     */
+    static final class TimeBuckets {
+        private final long width;
+        private final long[] ids;
+        private final long[] totals;
+        private final long[] failures;
+
+        TimeBuckets(long width, int slots) {
+            this.width = width;
+            this.ids = new long[slots];
+            this.totals = new long[slots];
+            this.failures = new long[slots];
+            Arrays.fill(ids, Long.MIN_VALUE);
+        }
+
+        synchronized void add(long epochMillis, long total, long failed) {
+            long id = Math.floorDiv(epochMillis, width);
+            int slot = (int) Math.floorMod(id, (long) ids.length);
+            if (ids[slot] != id) {
+                if (ids[slot] > id) {
+                    return;
+                }
+                ids[slot] = id;
+                totals[slot] = 0;
+                failures[slot] = 0;
+            }
+            totals[slot] += total;
+            failures[slot] += failed;
+        }
+
+        /**
+         * [начало интервала, всего, неуспешных] для непустых интервалов, заканчивающихся после fromMillis, по возрастанию
+         */
+        synchronized List<long[]> since(long fromMillis) {
+            List<long[]> result = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != Long.MIN_VALUE && ids[i] * width >= fromMillis - width + 1 && totals[i] > 0) {
+                    result.add(new long[] {ids[i] * width, totals[i], failures[i]});
+                }
+            }
+            result.sort(Comparator.comparingLong(bucket -> bucket[0]));
+            return result;
+        }
+    }
+}
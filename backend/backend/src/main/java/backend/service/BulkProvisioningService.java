@@ -0,0 +1,388 @@
+package backend.service;
+
+import backend.cache.CardIdFilter;
+import backend.dto.CreateCardRequest;
+import backend.model.AuditEvent;
+import backend.model.CardRecord;
+import backend.model.UserRole;
+import backend.repo.CardJdbcRepository;
+import backend.util.B64Url;
+import backend.util.KeyWrapService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Массовый выпуск карт из потока NDJSON или CSV (owner, userRole, ttlSeconds, generateQr).
+ * Вход читается порциями по app.provisioning.chunk-size строк: идентификаторы и ключи порции
+ * генерируются одним вызовом SecureRandom, ключи оборачиваются пакетом (wrapAll), карты
+ * вставляются JDBC batch в одной транзакции, на порцию пишется одно сводное событие аудита.
+ * Результат по каждой строке (NDJSON) отправляется клиенту сразу после записи её порции;
+ * в памяти одновременно находится только одна порция.
+ */
+@Service
+public class BulkProvisioningService {
+
+    private static final int CARD_ID_LENGTH = 16;
+    private static final int MAX_OWNER_LENGTH = 128;
+
+    private final CardJdbcRepository cardJdbcRepository;
+    private final KeyWrapService keyWrapService;
+    private final KeyRotationService keyRotationService;
+    private final QrCodeService qrCodeService;
+    private final AuditService auditService;
+    private final CardIdFilter cardIdFilter;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final int chunkSize;
+    private final int maxRows;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public BulkProvisioningService(CardJdbcRepository cardJdbcRepository, KeyWrapService keyWrapService,
+                                   KeyRotationService keyRotationService, QrCodeService qrCodeService,
+                                   AuditService auditService, CardIdFilter cardIdFilter, ObjectMapper objectMapper,
+                                   PlatformTransactionManager transactionManager,
+                                   @Value("${app.provisioning.chunk-size:1000}") int chunkSize,
+                                   @Value("${app.provisioning.max-rows:1000000}") int maxRows) {
+        this.cardJdbcRepository = cardJdbcRepository;
+        this.keyWrapService = keyWrapService;
+        this.keyRotationService = keyRotationService;
+        this.qrCodeService = qrCodeService;
+        this.auditService = auditService;
+        this.cardIdFilter = cardIdFilter;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Выпуск карт из in (csv=true - CSV с заголовком, иначе NDJSON) с потоковой записью
+     * результатов в out: строка на каждую входную строку и итоговая строка summary
+     */
+    public Map<String, Object> provision(InputStream in, boolean csv, OutputStream out,
+                                         HttpServletRequest httpRequest) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        long started = System.nanoTime();
+        int created = 0;
+        int failed = 0;
+        int chunks = 0;
+        String error = null;
+
+        String[] header = null;
+        List<Row> chunk = new ArrayList<>(chunkSize);
+        int lineNumber = 0;
+        int rows = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            if (csv && header == null) {
+                header = parseCsvLine(line);
+                error = validateHeader(header);
+                if (error != null) {
+                    break;
+                }
+                continue;
+            }
+            if (++rows > maxRows) {
+                error = "Too many rows, limit is " + maxRows;
+                break;
+            }
+            chunk.add(csv ? parseCsvRow(lineNumber, header, line) : parseJsonRow(lineNumber, line));
+            if (chunk.size() >= chunkSize) {
+                int ok = processChunk(chunk, writer, httpRequest);
+                created += ok;
+                failed += chunk.size() - ok;
+                chunks++;
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            int ok = processChunk(chunk, writer, httpRequest);
+            created += ok;
+            failed += chunk.size() - ok;
+            chunks++;
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("summary", true);
+        summary.put("status", error == null ? "OK" : "FAIL");
+        if (error != null) {
+            summary.put("error", error);
+        }
+        summary.put("created", created);
+        summary.put("failed", failed);
+        summary.put("chunks", chunks);
+        summary.put("durationMs", (System.nanoTime() - started) / 1_000_000);
+        writer.write(objectMapper.writeValueAsString(summary));
+        writer.write('\n');
+        writer.flush();
+        return summary;
+    }
+
+    /**
+     * Одна порция: генерация, одна транзакция с JDBC batch, сводный аудит, запись результатов.
+     * Возвращает число выпущенных карт.
+     */
+    private int processChunk(List<Row> chunk, Writer writer, HttpServletRequest httpRequest) throws IOException {
+        List<Row> valid = new ArrayList<>(chunk.size());
+        for (Row row : chunk) {
+            if (row.error == null) {
+                valid.add(row);
+            }
+        }
+
+        int count = valid.size();
+        String persistError = null;
+        if (count > 0) {
+            byte[] cardIds = new byte[count * CARD_ID_LENGTH];
+            secureRandom.nextBytes(cardIds);
+            byte[] keys = keyWrapService.generateKeys(count);
+            byte[] wrapped;
+            try {
+                wrapped = keyWrapService.wrapAll(keys, KeyWrapService.KEY_LENGTH);
+            } finally {
+                Arrays.fill(keys, (byte) 0);
+            }
+
+            Instant now = Instant.now();
+            CardRecord[] cards = new CardRecord[count];
+            IntStream.range(0, count).parallel().forEach(i -> cards[i] = buildCard(valid.get(i).request,
+                B64Url.encode(Arrays.copyOfRange(cardIds, i * CARD_ID_LENGTH, (i + 1) * CARD_ID_LENGTH)),
+                KeyWrapService.encodeWrapped(wrapped, i, KeyWrapService.KEY_LENGTH), now));
+
+            List<CardRecord> records = Arrays.asList(cards);
+            try {
+                transactionTemplate.executeWithoutResult(status -> cardJdbcRepository.insertAll(records, chunkSize));
+                for (int i = 0; i < count; i++) {
+                    valid.get(i).card = cards[i];
+                    cardIdFilter.put(cards[i].getCardId());
+                }
+            } catch (RuntimeException e) {
+                persistError = "Failed to persist chunk";
+            }
+        }
+
+        int created = persistError == null ? count : 0;
+        logChunk(chunk, created, persistError, httpRequest);
+
+        for (Row row : chunk) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("line", row.line);
+            if (row.card != null) {
+                result.put("status", "OK");
+                result.put("cardId", row.card.getCardId());
+                result.put("owner", row.card.getOwner());
+                result.put("userRole", row.card.getUserRole());
+                result.put("expiresAt", row.card.getExpiresAt().toString());
+                result.put("keyVersion", row.card.getKeyVersion());
+                if (row.card.getQrCode() != null) {
+                    result.put("qrCode", row.card.getQrCode());
+                }
+            } else {
+                result.put("status", "FAIL");
+                result.put("error", row.error != null ? row.error : persistError);
+            }
+            writer.write(objectMapper.writeValueAsString(result));
+            writer.write('\n');
+        }
+        writer.flush();
+        return created;
+    }
+
+    private CardRecord buildCard(CreateCardRequest request, String cardId, String wrappedKey, Instant now) {
+        UserRole role = UserRole.fromString(request.getUserRole());
+        long ttlSeconds = request.getTtlSeconds() > 0 ? request.getTtlSeconds() : role.getDefaultTtlSeconds();
+
+        CardRecord card = new CardRecord(cardId, wrappedKey);
+        card.setOwner(request.getOwner());
+        card.setUserRole(role.getRoleName());
+        card.setKeyVersion(1);
+        card.setCreatedAt(now);
+        card.setExpiresAt(now.plusSeconds(ttlSeconds));
+        card.setNextRotationAt(keyRotationService.calculateNextRotation(role, 1));
+        card.setActive(true);
+        if (request.isGenerateQr()) {
+            card.setQrCode(qrCodeService.generateQrCode(cardId, request.getOwner(), role.getRoleName()));
+        }
+        return card;
+    }
+
+    private void logChunk(List<Row> chunk, int created, String persistError, HttpServletRequest httpRequest) {
+        Map<String, Integer> roles = new HashMap<>();
+        for (Row row : chunk) {
+            if (row.card != null) {
+                roles.merge(row.card.getUserRole(), 1, Integer::sum);
+            }
+        }
+        int failed = chunk.size() - created;
+        String additionalData;
+        try {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("firstLine", chunk.get(0).line);
+            data.put("lastLine", chunk.get(chunk.size() - 1).line);
+            data.put("created", created);
+            data.put("failed", failed);
+            data.put("roles", roles);
+            additionalData = objectMapper.writeValueAsString(data);
+        } catch (JsonProcessingException e) {
+            additionalData = null;
+        }
+        auditService.logEvent(
+            AuditEvent.EventType.CARD_CREATED,
+            AuditEvent.EventCategory.ADMINISTRATION,
+            null,
+            null,
+            null,
+            null,
+            persistError == null,
+            "Bulk provisioning: " + created + " cards created, " + failed + " rows failed",
+            persistError != null ? "BULK_PERSIST_FAILED" : null,
+            additionalData,
+            httpRequest
+        );
+    }
+
+    private Row parseJsonRow(int line, String json) {
+        try {
+            return validate(line, objectMapper.readValue(json, CreateCardRequest.class));
+        } catch (JsonProcessingException e) {
+            return Row.failed(line, "Invalid JSON");
+        }
+    }
+
+    private Row parseCsvRow(int line, String[] header, String text) {
+        String[] values = parseCsvLine(text);
+        CreateCardRequest request = new CreateCardRequest();
+        try {
+            for (int i = 0; i < header.length && i < values.length; i++) {
+                String value = values[i].trim();
+                if (value.isEmpty()) {
+                    continue;
+                }
+                switch (header[i]) {
+                    case "owner":
+                        request.setOwner(value);
+                        break;
+                    case "userrole":
+                    case "user_role":
+                    case "role":
+                        request.setUserRole(value);
+                        break;
+                    case "ttlseconds":
+                    case "ttl_seconds":
+                        request.setTtlSeconds(Long.parseLong(value));
+                        break;
+                    case "generateqr":
+                    case "generate_qr":
+                        request.setGenerateQr(Boolean.parseBoolean(value));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return Row.failed(line, "Invalid ttlSeconds");
+        }
+        return validate(line, request);
+    }
+
+    // Те же ограничения, что у POST /api/cards; ttlSeconds можно не указывать - берётся срок роли
+    private static Row validate(int line, CreateCardRequest request) {
+        if (request == null || request.getOwner() == null || request.getOwner().isBlank()) {
+            return Row.failed(line, "owner is required");
+        }
+        if (request.getOwner().length() > MAX_OWNER_LENGTH) {
+            return Row.failed(line, "owner is too long");
+        }
+        if (request.getTtlSeconds() != 0 && request.getTtlSeconds() < 60) {
+            return Row.failed(line, "ttlSeconds must be at least 60");
+        }
+        Row row = new Row(line);
+        row.request = request;
+        return row;
+    }
+
+    private static String validateHeader(String[] header) {
+        for (int i = 0; i < header.length; i++) {
+            header[i] = header[i].trim().toLowerCase(Locale.ROOT);
+        }
+        return Arrays.asList(header).contains("owner") ? null : "CSV header must contain owner column";
+    }
+
+    // Строка CSV (RFC 4180) без переносов внутри полей: запятые и "" внутри кавычек
+    static String[] parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    private static final class Row {
+        private final int line;
+        private CreateCardRequest request;
+        private String error;
+        private CardRecord card;
+
+        Row(int line) {
+            this.line = line;
+        }
+
+        static Row failed(int line, String error) {
+            Row row = new Row(line);
+            row.error = error;
+            return row;
+        }
+    }
+}
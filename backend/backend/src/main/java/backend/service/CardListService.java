@@ -0,0 +1,161 @@
+package backend.service;
+
+import backend.dto.CardListFilter;
+import backend.dto.CardSummary;
+import backend.repo.CardJdbcRepository;
+import backend.util.PageCursor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * Список карт для админки: keyset-пагинация по card_id_b64 или (created_at, card_id_b64),
+ * облегчённая проекция CardSummary без ключей и QR кода. Без limit весь отфильтрованный
+ * список пишется в ответ JSON-массивом порциями по app.admin.list.chunk-size строк:
+ * в памяти одна порция, соединение с БД занято только на время её выборки.
+ */
+@Service
+public class CardListService {
+
+    private static final String ORDER_CARD_ID = "cardId";
+    private static final String ORDER_CREATED_AT = "createdAt";
+
+    private final CardJdbcRepository cardJdbcRepository;
+    private final ObjectMapper objectMapper;
+    private final int chunkSize;
+    private final int maxLimit;
+
+    public CardListService(CardJdbcRepository cardJdbcRepository, ObjectMapper objectMapper,
+                           @Value("${app.admin.list.chunk-size:1000}") int chunkSize,
+                           @Value("${app.admin.list.max-limit:1000}") int maxLimit) {
+        this.cardJdbcRepository = cardJdbcRepository;
+        this.objectMapper = objectMapper;
+        this.chunkSize = chunkSize;
+        this.maxLimit = maxLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Страница после курсора; nextCursor - null на последней странице
+     */
+    public Page page(CardListFilter filter, String cursor, int limit) {
+        List<CardSummary> rows = cardJdbcRepository.findSummaries(filter, decodeCursor(filter, cursor), limit + 1);
+        if (rows.size() <= limit) {
+            return new Page(rows, null);
+        }
+        List<CardSummary> items = rows.subList(0, limit);
+        return new Page(items, encodeCursor(filter, items.get(limit - 1)));
+    }
+
+    /**
+     * Весь список после курсора (null - с начала) JSON-массивом, порциями keyset-выборки
+     */
+    public void writeAll(CardListFilter filter, String cursor, OutputStream out) throws IOException {
+        CardSummary after = decodeCursor(filter, cursor);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write('[');
+        boolean first = true;
+        while (true) {
+            List<CardSummary> chunk = cardJdbcRepository.findSummaries(filter, after, chunkSize);
+            for (CardSummary card : chunk) {
+                if (!first) {
+                    writer.write(',');
+                }
+                writer.write(objectMapper.writeValueAsString(card));
+                first = false;
+            }
+            writer.flush();
+            if (chunk.size() < chunkSize) {
+                break;
+            }
+            after = chunk.get(chunk.size() - 1);
+        }
+        writer.write(']');
+        writer.flush();
+    }
+
+    /**
+     * Страница JSON-массивом
+     */
+    public void writeArray(List<CardSummary> items, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write('[');
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(objectMapper.writeValueAsString(items.get(i)));
+        }
+        writer.write(']');
+        writer.flush();
+    }
+
+    /**
+     * Порядок списка по параметру sort
+     */
+    public static boolean orderByCreatedAt(String sort) {
+        if (sort == null || ORDER_CARD_ID.equals(sort)) {
+            return false;
+        }
+        if (ORDER_CREATED_AT.equals(sort)) {
+            return true;
+        }
+        throw new IllegalArgumentException("Unsupported sort: " + sort);
+    }
+
+    /**
+     * Проверка курсора без выборки; IllegalArgumentException, если курсор не от этого порядка
+     */
+    public void checkCursor(CardListFilter filter, String cursor) {
+        decodeCursor(filter, cursor);
+    }
+
+    private static String encodeCursor(CardListFilter filter, CardSummary last) {
+        return filter.isOrderByCreatedAt()
+            ? PageCursor.encode(ORDER_CREATED_AT, last.getCreatedAt().toString(), last.getCardId())
+            : PageCursor.encode(ORDER_CARD_ID, last.getCardId());
+    }
+
+    // Из курсора нужны только поля ключа сортировки
+    private static CardSummary decodeCursor(CardListFilter filter, String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        if (!filter.isOrderByCreatedAt()) {
+            String[] parts = PageCursor.decode(cursor, ORDER_CARD_ID, 2);
+            return new CardSummary(parts[1], null, null, null, false, null, null, null, null);
+        }
+        String[] parts = PageCursor.decode(cursor, ORDER_CREATED_AT, 3);
+        try {
+            return new CardSummary(parts[2], null, Instant.parse(parts[1]), null, false, null, null, null, null);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    public static final class Page {
+        private final List<CardSummary> items;
+        private final String nextCursor;
+
+        Page(List<CardSummary> items, String nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<CardSummary> getItems() { return items; }
+        public String getNextCursor() { return nextCursor; }
+    }
+}
@@ -1,7 +1,13 @@
 package backend.service;
 
+import backend.cache.CardIdFilter;
+import backend.cache.CardKeyCache;
+import backend.cache.CardSnapshot;
+import backend.cache.CardSnapshotCache;
+import backend.cache.ReplayCounterTable;
 import backend.dto.CreateCardRequest;
 import backend.dto.CreateCardResponse;
+import backend.dto.VerifyRequest;
 import backend.model.AccessHistory;
 import backend.model.AuditEvent;
 import backend.model.CardRecord;
@@ -11,12 +17,17 @@ import backend.util.B64Url;
 import backend.util.KeyWrapService;
 import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.security.SecureRandom;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -27,15 +38,27 @@ public class CardService {
     private final KeyWrapService keyWrapService;
     private final QrCodeService qrCodeService;
     private final AuditService auditService;
+    private final CardSnapshotCache cardSnapshotCache;
+    private final CardKeyCache cardKeyCache;
+    private final ReplayCounterTable replayCounterTable;
+    private final CardIdFilter cardIdFilter;
+    private final DeniedAccessSummary deniedAccessSummary;
     
     @Autowired
     private KeyRotationService keyRotationService;
 
-    public CardService(CardRepository cardRepository, KeyWrapService keyWrapService, QrCodeService qrCodeService, AuditService auditService) {
+    public CardService(CardRepository cardRepository, KeyWrapService keyWrapService, QrCodeService qrCodeService, AuditService auditService,
+                       CardSnapshotCache cardSnapshotCache, CardKeyCache cardKeyCache, ReplayCounterTable replayCounterTable,
+                       CardIdFilter cardIdFilter, DeniedAccessSummary deniedAccessSummary) {
         this.cardRepository = cardRepository;
         this.keyWrapService = keyWrapService;
         this.qrCodeService = qrCodeService;
         this.auditService = auditService;
+        this.cardSnapshotCache = cardSnapshotCache;
+        this.cardKeyCache = cardKeyCache;
+        this.replayCounterTable = replayCounterTable;
+        this.cardIdFilter = cardIdFilter;
+        this.deniedAccessSummary = deniedAccessSummary;
     }
 
     public CreateCardResponse createCardWithRole(CreateCardRequest request, HttpServletRequest httpRequest) {
@@ -48,7 +71,9 @@ public class CardService {
             secureRandom.nextBytes(kMasterBytes);
             
             String encodedCardId = B64Url.encode(cardIdBytes);
-            String wrappedKMaster = B64Url.encode(kMasterBytes);
+            // Ключ хранится только обёрнутым KEK, открытая копия затирается сразу после обёртки
+            String wrappedKMaster = keyWrapService.wrapKey(kMasterBytes);
+            Arrays.fill(kMasterBytes, (byte) 0);
             
             CardRecord cardRecord = new CardRecord(encodedCardId, wrappedKMaster);
             cardRecord.setOwner(request.getOwner());
@@ -58,7 +83,7 @@ public class CardService {
             Instant now = Instant.now();
             cardRecord.setCreatedAt(now);
             cardRecord.setExpiresAt(now.plusSeconds(request.getTtlSeconds()));
-            cardRecord.setNextRotationAt(calculateNextRotation(role, 1));
+            cardRecord.setNextRotationAt(keyRotationService.calculateNextRotation(role, 1));
             cardRecord.setActive(true);
             
             if (request.isGenerateQr()) {
@@ -67,6 +92,7 @@ public class CardService {
             }
             
             cardRecord = cardRepository.save(cardRecord);
+            cardIdFilter.put(encodedCardId);
             
             // Логирование аудита
             auditService.logEvent(
@@ -117,200 +143,204 @@ public class CardService {
 
     public boolean verifyTruncTag(String cardIdB64, byte[] ctrLE, byte[] tag16, String readerId, HttpServletRequest httpRequest) {
         long startTime = System.currentTimeMillis();
-        Optional<CardRecord> existing = cardRepository.findById(cardIdB64);
-        CardRecord cardRecord = existing.orElse(null);
-        
-        if (cardRecord == null) {
-            auditService.logEvent(
-                AuditEvent.EventType.ACCESS_DENIED,
-                AuditEvent.EventCategory.AUTHENTICATION,
-                cardIdB64,
-                readerId,
-                null,
-                null,
-                false,
-                "Card not found",
-                "CARD_NOT_FOUND",
-                null,
-                httpRequest
-            );
+        // Неизвестная карта (промах фильтра подтверждён БД): без строки аудита, только в сводку
+        if (!cardIdFilter.mightContain(cardIdB64)) {
+            recordUnknown(readerId, cardIdB64, httpRequest);
             return false;
         }
+        CardSnapshot card = cardSnapshotCache.get(cardIdB64).orElse(null);
         
-        if (!cardRecord.isActive()) {
-            auditService.logEvent(
-                AuditEvent.EventType.ACCESS_DENIED,
-                AuditEvent.EventCategory.AUTHENTICATION,
-                cardIdB64,
-                readerId,
-                cardRecord.getOwner(),
-                cardRecord.getUserRole(),
-                false,
-                "Card inactive",
-                "CARD_INACTIVE",
-                null,
-                httpRequest
-            );
-            return false;
+        VerifyOutcome outcome = evaluate(card, ctrLE, tag16);
+        
+        List<AuditEvent> events = new ArrayList<>(1);
+        collectAudit(cardIdB64, readerId, outcome, System.currentTimeMillis() - startTime, httpRequest, events);
+        auditService.logBatch(events);
+        
+        return outcome.granted;
+    }
+    
+    /**
+     * Пакетная проверка: одна выборка карт, параллельная проверка тегов по картам,
+     * одна пакетная запись аудита. Результаты возвращаются в порядке запросов;
+     * запросы одной карты проверяются последовательно по возрастанию счётчика.
+     * Некорректные элементы (нет ридера, полей или неверный base64url) отклоняются с записью аудита
+     * INVALID_REQUEST, как отказ; неизвестные карты (CardIdFilter) учитываются только в сводке DeniedAccessSummary.
+     */
+    public List<Boolean> verifyBatch(List<VerifyRequest> requests, String defaultReaderId, HttpServletRequest httpRequest) {
+        long startTime = System.currentTimeMillis();
+        int n = requests.size();
+        String[] readerIds = new String[n];
+        byte[][] ctrs = new byte[n][];
+        byte[][] tags = new byte[n][];
+        long[] ctrValues = new long[n];
+        VerifyOutcome[] outcomes = new VerifyOutcome[n];
+        Map<String, List<Integer>> byCard = new LinkedHashMap<>();
+        
+        for (int i = 0; i < n; i++) {
+            VerifyRequest request = requests.get(i);
+            String readerId = request != null && !isBlank(request.getReaderId()) ? request.getReaderId() : defaultReaderId;
+            readerIds[i] = readerId;
+            if (request == null || isBlank(request.getCardId()) || isBlank(request.getCtr()) || isBlank(request.getTag())) {
+                outcomes[i] = VerifyOutcome.invalid("Missing cardId, ctr or tag");
+                continue;
+            }
+            if (isBlank(readerId)) {
+                outcomes[i] = VerifyOutcome.invalid("Missing reader id");
+                continue;
+            }
+            try {
+                ctrs[i] = B64Url.decode(request.getCtr());
+                tags[i] = B64Url.decode(request.getTag());
+            } catch (IllegalArgumentException e) {
+                outcomes[i] = VerifyOutcome.invalid("Invalid base64url in ctr or tag");
+                continue;
+            }
+            ctrValues[i] = le64ToLong(ctrs[i]);
+            byCard.computeIfAbsent(request.getCardId(), k -> new ArrayList<>()).add(i);
         }
         
-        if (cardRecord.getExpiresAt() != null && Instant.now().isAfter(cardRecord.getExpiresAt())) {
-            auditService.logEvent(
-                AuditEvent.EventType.ACCESS_DENIED,
-                AuditEvent.EventCategory.AUTHENTICATION,
-                cardIdB64,
-                readerId,
-                cardRecord.getOwner(),
-                cardRecord.getUserRole(),
-                false,
-                "Card expired",
-                "CARD_EXPIRED",
-                null,
-                httpRequest
-            );
-            return false;
+        // Промахи фильтра по всему пакету проверяются по БД одним запросом
+        for (String unknown : cardIdFilter.unknownOf(byCard.keySet())) {
+            for (int i : byCard.remove(unknown)) {
+                recordUnknown(readerIds[i], unknown, httpRequest);
+            }
         }
         
-        if (keyRotationService.shouldRotateKey(cardRecord)) {
-            keyRotationService.rotateCardKey(cardRecord);
-            cardRecord = cardRepository.findById(cardIdB64).orElse(null);
-            if (cardRecord == null) return false;
+        Map<String, CardSnapshot> cards = cardSnapshotCache.getAll(byCard.keySet());
+        cardKeyCache.preload(cards.values());
+        
+        byCard.entrySet().parallelStream().forEach(entry -> {
+            CardSnapshot card = cards.get(entry.getKey());
+            List<Integer> indexes = new ArrayList<>(entry.getValue());
+            indexes.sort(Comparator.comparingLong(i -> ctrValues[i]));
+            for (int i : indexes) {
+                outcomes[i] = evaluate(card, ctrs[i], tags[i]);
+            }
+        });
+        
+        long responseTime = System.currentTimeMillis() - startTime;
+        List<AuditEvent> events = new ArrayList<>(n);
+        List<Boolean> results = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            VerifyOutcome outcome = outcomes[i];
+            if (outcome == null) {
+                results.add(false);
+                continue;
+            }
+            VerifyRequest request = requests.get(i);
+            collectAudit(request != null ? request.getCardId() : null, readerIds[i], outcome, responseTime,
+                httpRequest, events);
+            results.add(outcome.granted);
         }
+        auditService.logBatch(events);
         
-        long ctrValue = le64ToLong(ctrLE);
-        Long last = cardRecord.getLastCtr();
-        if (last != null && ctrValue <= last) {
-            auditService.logEvent(
-                AuditEvent.EventType.ACCESS_DENIED,
-                AuditEvent.EventCategory.SECURITY,
-                cardIdB64,
-                readerId,
-                cardRecord.getOwner(),
-                cardRecord.getUserRole(),
-                false,
-                "Replay attack detected",
-                "REPLAY_ATTACK",
-                "Counter value: " + ctrValue + ", Last counter: " + last,
-                httpRequest
-            );
-            return false;
+        return results;
+    }
+    
+    /**
+     * Решение по одной проверке без побочных эффектов, кроме продвижения anti-replay счётчика
+     */
+    private VerifyOutcome evaluate(CardSnapshot card, byte[] ctrLE, byte[] tag16) {
+        if (card == null) {
+            return VerifyOutcome.denied(null, -1L, AuditEvent.EventCategory.AUTHENTICATION,
+                "Card not found", "CARD_NOT_FOUND", null, null);
+        }
+        if (!card.isActive()) {
+            return VerifyOutcome.denied(card, -1L, AuditEvent.EventCategory.AUTHENTICATION,
+                "Card inactive", "CARD_INACTIVE", null, null);
+        }
+        if (card.isExpired(Instant.now())) {
+            return VerifyOutcome.denied(card, -1L, AuditEvent.EventCategory.AUTHENTICATION,
+                "Card expired", "CARD_EXPIRED", null, null);
         }
         
+        long ctrValue = le64ToLong(ctrLE);
+        CardSnapshot.KeyMatch match;
         try {
-            byte[] cardId = B64Url.decode(cardRecord.getCardId());
-            byte[] kMaster = B64Url.decode(cardRecord.getkMaster());
-            byte[] ad = new byte[cardId.length + ctrLE.length];
-            System.arraycopy(cardId, 0, ad, 0, cardId.length);
-            System.arraycopy(ctrLE, 0, ad, cardId.length, ctrLE.length);
-            byte[] fullTag = hmacSha256(kMaster, ad);
-            byte[] expectedTag16 = java.util.Arrays.copyOf(fullTag, 16);
-            boolean ok = constantTimeEquals(expectedTag16, tag16);
-            
-            long responseTime = System.currentTimeMillis() - startTime;
-            
-            if (!ok) {
-                auditService.logEvent(
-                    AuditEvent.EventType.ACCESS_DENIED,
-                    AuditEvent.EventCategory.AUTHENTICATION,
-                    cardIdB64,
-                    readerId,
-                    cardRecord.getOwner(),
-                    cardRecord.getUserRole(),
-                    false,
-                    "Invalid authentication",
-                    "INVALID_AUTH",
-                    null,
-                    httpRequest
-                );
-                
-                auditService.logAccess(
-                    cardIdB64,
-                    readerId,
-                    cardRecord.getOwner(),
-                    cardRecord.getUserRole(),
-                    AccessHistory.AccessType.CARD_VERIFICATION,
-                    false,
-                    ctrValue,
-                    "Invalid authentication",
-                    responseTime,
-                    null,
-                    httpRequest
-                );
-                return false;
-            }
-            
-            int updated = cardRepository.updateLastCtrIfGreater(cardIdB64, ctrValue);
-            boolean success = updated > 0;
-            
-            if (success) {
-                auditService.logEvent(
-                    AuditEvent.EventType.ACCESS_GRANTED,
-                    AuditEvent.EventCategory.AUTHENTICATION,
-                    cardIdB64,
-                    readerId,
-                    cardRecord.getOwner(),
-                    cardRecord.getUserRole(),
-                    true,
-                    "Access granted",
-                    null,
-                    null,
-                    httpRequest
-                );
-                
-                auditService.logAccess(
-                    cardIdB64,
-                    readerId,
-                    cardRecord.getOwner(),
-                    cardRecord.getUserRole(),
-                    AccessHistory.AccessType.CARD_VERIFICATION,
-                    true,
-                    ctrValue,
-                    null,
-                    responseTime,
-                    null,
-                    httpRequest
-                );
+            match = cardKeyCache.match(card, ctrLE, tag16);
+            if (match == CardSnapshot.KeyMatch.NONE) {
+                return VerifyOutcome.denied(card, ctrValue, AuditEvent.EventCategory.AUTHENTICATION,
+                    "Invalid authentication", "INVALID_AUTH", null, "Invalid authentication");
             }
-            
-            return success;
-        } catch (java.security.NoSuchAlgorithmException | java.security.InvalidKeyException e) {
-            long responseTime = System.currentTimeMillis() - startTime;
-            
-            auditService.logEvent(
-                AuditEvent.EventType.ACCESS_DENIED,
-                AuditEvent.EventCategory.SYSTEM,
-                cardIdB64,
-                readerId,
-                cardRecord.getOwner(),
-                cardRecord.getUserRole(),
-                false,
-                "System error during verification",
-                "SYSTEM_ERROR",
-                e.getMessage(),
-                httpRequest
-            );
-            
-            auditService.logAccess(
-                cardIdB64,
-                readerId,
-                cardRecord.getOwner(),
-                cardRecord.getUserRole(),
+        } catch (java.security.InvalidKeyException e) {
+            return VerifyOutcome.denied(card, ctrValue, AuditEvent.EventCategory.SYSTEM,
+                "System error during verification", "SYSTEM_ERROR", e.getMessage(), "System error: " + e.getMessage());
+        }
+        
+        // Anti-replay: счётчик продвигается атомарно в памяти, last_ctr - сразу или пакетами (app.replay.write-mode)
+        boolean advanced;
+        try {
+            advanced = replayCounterTable.tryAdvance(card.getCardId(), ctrValue);
+        } catch (DataAccessException e) {
+            return VerifyOutcome.denied(card, ctrValue, AuditEvent.EventCategory.SYSTEM,
+                "System error during verification", "SYSTEM_ERROR", e.getMessage(), "System error: counter store unavailable");
+        }
+        if (!advanced) {
+            return VerifyOutcome.denied(card, ctrValue, AuditEvent.EventCategory.SECURITY,
+                "Replay attack detected", "REPLAY_ATTACK",
+                "Counter value: " + ctrValue + ", Last counter: " + replayCounterTable.lastCounter(card.getCardId()),
+                null);
+        }
+        
+        // Ротация и подтверждение нового ключа выполняются в фоне; до подтверждения
+        // карта продолжает проходить с ключом предыдущей версии
+        if (match == CardSnapshot.KeyMatch.CURRENT && card.hasPendingKey()) {
+            keyRotationService.confirmKey(card.getCardId(), card.getKeyVersion());
+        } else if (keyRotationService.shouldRotateKey(card)) {
+            keyRotationService.requestRotation(card.getCardId());
+        }
+        return VerifyOutcome.granted(card, ctrValue);
+    }
+    
+    /**
+     * Одна запись аудита на проверку; для проверок, дошедших до HMAC, она же попадает в access_history
+     */
+    private void collectAudit(String cardIdB64, String readerId, VerifyOutcome outcome, long responseTime,
+                              HttpServletRequest httpRequest, List<AuditEvent> events) {
+        String owner = outcome.card != null ? outcome.card.getOwner() : null;
+        String userRole = outcome.card != null ? outcome.card.getUserRole() : null;
+        
+        AuditEvent event = auditService.buildEvent(
+            outcome.granted ? AuditEvent.EventType.ACCESS_GRANTED : AuditEvent.EventType.ACCESS_DENIED,
+            outcome.category,
+            cardIdB64,
+            readerId,
+            owner,
+            userRole,
+            outcome.granted,
+            outcome.message,
+            outcome.errorCode,
+            outcome.additionalData,
+            httpRequest
+        );
+        
+        if (outcome.recordAccess) {
+            auditService.withAccess(
+                event,
                 AccessHistory.AccessType.CARD_VERIFICATION,
-                false,
-                ctrValue,
-                "System error: " + e.getMessage(),
-                responseTime,
-                null,
-                httpRequest
+                outcome.ctrValue,
+                outcome.failureReason,
+                responseTime
             );
-            return false;
         }
+        events.add(event);
+    }
+    
+    private void recordUnknown(String readerId, String cardIdB64, HttpServletRequest httpRequest) {
+        deniedAccessSummary.record(DeniedAccessSummary.CARD_NOT_FOUND, readerId, cardIdB64,
+            httpRequest != null ? auditService.getClientIpAddress(httpRequest) : null);
+    }
+    
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
     }
 
     public Optional<CardRecord> revoke(String cardIdB64) {
         return cardRepository.findById(cardIdB64).map(c -> {
             c.setActive(false);
-            return cardRepository.save(c);
+            CardRecord saved = cardRepository.save(c);
+            cardSnapshotCache.invalidate(cardIdB64);
+            return saved;
         });
     }
 
@@ -318,25 +348,12 @@ public class CardService {
         return cardRepository.findById(cardIdB64).map(c -> {
             Instant base = c.getExpiresAt() != null ? c.getExpiresAt() : Instant.now();
             c.setExpiresAt(base.plusSeconds(extraSeconds));
-            return cardRepository.save(c);
+            CardRecord saved = cardRepository.save(c);
+            cardSnapshotCache.invalidate(cardIdB64);
+            return saved;
         });
     }
 
-    private byte[] hmacSha256(byte[] key, byte[] data) throws java.security.NoSuchAlgorithmException, java.security.InvalidKeyException {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(key, "HmacSHA256"));
-        return mac.doFinal(data);
-    }
-
-    private boolean constantTimeEquals(byte[] a, byte[] b) {
-        if (a == null || b == null || a.length != b.length) return false;
-        int result = 0;
-        for (int i = 0; i < a.length; i++) {
-            result |= a[i] ^ b[i];
-        }
-        return result == 0;
-    }
-
     private long le64ToLong(byte[] le8) {
         if (le8 == null || le8.length != 8) return -1L;
         long v = 0L;
@@ -346,29 +363,49 @@ public class CardService {
         return v;
     }
     
-    private Instant calculateNextRotation(UserRole role, int keyVersion) {
-        Instant now = Instant.now();
+    /**
+     * Результат проверки одного тапа и данные для аудита
+     */
+    private static final class VerifyOutcome {
+        private final boolean granted;
+        private final CardSnapshot card;
+        private final long ctrValue;
+        private final String category;
+        private final String message;
+        private final String errorCode;
+        private final String additionalData;
+        // Запись в access_history делается только для проверок, дошедших до HMAC
+        private final boolean recordAccess;
+        private final String failureReason;
+        
+        private VerifyOutcome(boolean granted, CardSnapshot card, long ctrValue, String category, String message,
+                              String errorCode, String additionalData, boolean recordAccess, String failureReason) {
+            this.granted = granted;
+            this.card = card;
+            this.ctrValue = ctrValue;
+            this.category = category;
+            this.message = message;
+            this.errorCode = errorCode;
+            this.additionalData = additionalData;
+            this.recordAccess = recordAccess;
+            this.failureReason = failureReason;
+        }
         
-        long rotationIntervalSeconds;
-        switch (role) {
-            case ADMIN:
-                rotationIntervalSeconds = 7 * 24 * 60 * 60L; // 1 неделя
-                break;
-            case PERMANENT:
-                rotationIntervalSeconds = 30 * 24 * 60 * 60L; // 1 месяц
-                break;
-            case TEMPORARY:
-                rotationIntervalSeconds = 3 * 24 * 60 * 60L; // 3 дня
-                break;
-            case GUEST:
-                rotationIntervalSeconds = 12 * 60 * 60L; // 12 часов
-                break;
-            default:
-                rotationIntervalSeconds = 30 * 24 * 60 * 60L; // 1 месяц по умолчанию
+        static VerifyOutcome granted(CardSnapshot card, long ctrValue) {
+            return new VerifyOutcome(true, card, ctrValue, AuditEvent.EventCategory.AUTHENTICATION,
+                "Access granted", null, null, true, null);
         }
         
-        return now.plusSeconds(rotationIntervalSeconds);
+        // Элемент пакета, который нельзя проверить (нет полей, ридера или неверный base64url)
+        static VerifyOutcome invalid(String reason) {
+            return denied(null, -1L, AuditEvent.EventCategory.SECURITY, "Invalid verification request",
+                "INVALID_REQUEST", reason, "Invalid request: " + reason);
+        }
+        
+        static VerifyOutcome denied(CardSnapshot card, long ctrValue, String category, String message,
+                                    String errorCode, String additionalData, String failureReason) {
+            return new VerifyOutcome(false, card, ctrValue, category, message, errorCode, additionalData,
+                failureReason != null, failureReason);
+        }
     }
 }
-
-
@@ -0,0 +1,190 @@
+package backend.service;
+
+import backend.model.AuditEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Сводный аудит массовых отказов, которые не пишутся построчно:
+ * неизвестные карты (CardIdFilter, код CARD_NOT_FOUND) и превышение лимита
+ * запросов (VerifyRateLimiter, код RATE_LIMITED). Попытки считаются по паре
+ * (код, ридер); раз в app.audit.denied-summary.interval-ms пишется одно событие
+ * ACCESS_DENIED на пару с числом попыток и примерами.
+ */
+@Component
+public class DeniedAccessSummary {
+
+    public static final String CARD_NOT_FOUND = "CARD_NOT_FOUND";
+    public static final String RATE_LIMITED = "RATE_LIMITED";
+
+    // Ограничение числа ключей в окне: X-Reader-Id приходит от клиента
+    private static final int MAX_KEYS = 1000;
+    private static final String OTHER_READERS = "*";
+    private static final int MAX_SAMPLES = 5;
+
+    private final AuditService auditService;
+    private final ObjectMapper objectMapper;
+    private final long intervalMs;
+
+    private volatile ConcurrentHashMap<Key, Window> windows = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, LongAdder> totals = new ConcurrentHashMap<>();
+    private final LongAdder summaries = new LongAdder();
+
+    public DeniedAccessSummary(AuditService auditService,
+                               ObjectMapper objectMapper,
+                               @Value("${app.audit.denied-summary.interval-ms:60000}") long intervalMs) {
+        this.auditService = auditService;
+        this.objectMapper = objectMapper;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Учёт отказа; sample - пример для сводки (cardId, ключ лимита), может быть null
+     */
+    public void record(String errorCode, String readerId, String sample, String ipAddress) {
+        ConcurrentHashMap<Key, Window> current = windows;
+        Key key = new Key(errorCode, readerId != null ? readerId : OTHER_READERS);
+        Window window = current.get(key);
+        if (window == null) {
+            if (current.size() >= MAX_KEYS) {
+                key = new Key(errorCode, OTHER_READERS);
+            }
+            window = current.computeIfAbsent(key, k -> new Window());
+        }
+        window.add(sample, ipAddress);
+        totals.computeIfAbsent(errorCode, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Запись сводки за прошедшее окно
+     */
+    @Scheduled(fixedDelayString = "${app.audit.denied-summary.interval-ms:60000}")
+    public synchronized void flush() {
+        ConcurrentHashMap<Key, Window> finished = windows;
+        if (finished.isEmpty()) {
+            return;
+        }
+        windows = new ConcurrentHashMap<>();
+        List<AuditEvent> events = new ArrayList<>(finished.size());
+        for (Map.Entry<Key, Window> entry : finished.entrySet()) {
+            Key key = entry.getKey();
+            Window window = entry.getValue();
+            long attempts = window.attempts.sum();
+            if (attempts == 0) {
+                continue;
+            }
+            AuditEvent event = auditService.buildEvent(
+                AuditEvent.EventType.ACCESS_DENIED,
+                AuditEvent.EventCategory.SECURITY,
+                null,
+                OTHER_READERS.equals(key.readerId) ? null : key.readerId,
+                null,
+                null,
+                false,
+                describe(key.errorCode) + ": " + attempts + " attempts in " + intervalMs / 1000 + "s",
+                key.errorCode,
+                additionalData(attempts, window.samples()),
+                null
+            );
+            event.setIpAddress(window.lastIp);
+            events.add(event);
+        }
+        auditService.logBatch(events);
+        summaries.add(events.size());
+    }
+
+    private String additionalData(long attempts, List<String> samples) {
+        try {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("attempts", attempts);
+            data.put("samples", samples);
+            return objectMapper.writeValueAsString(data);
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    private static String describe(String errorCode) {
+        switch (errorCode) {
+            case CARD_NOT_FOUND:
+                return "Unknown card IDs";
+            case RATE_LIMITED:
+                return "Rate limit exceeded";
+            default:
+                return errorCode;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        totals.forEach((code, count) -> stats.put(code, count.sum()));
+        stats.put("keysInWindow", windows.size());
+        stats.put("summaryEvents", summaries.sum());
+        return stats;
+    }
+
+    private static final class Key {
+        private final String errorCode;
+        private final String readerId;
+
+        Key(String errorCode, String readerId) {
+            this.errorCode = errorCode;
+            this.readerId = readerId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return errorCode.equals(other.errorCode) && readerId.equals(other.readerId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * errorCode.hashCode() + readerId.hashCode();
+        }
+    }
+
+    private static final class Window {
+        private final LongAdder attempts = new LongAdder();
+        private final List<String> samples = new ArrayList<>(MAX_SAMPLES);
+        private volatile String lastIp;
+        private volatile boolean samplesFull;
+
+        void add(String sample, String ipAddress) {
+            attempts.increment();
+            if (ipAddress != null) {
+                lastIp = ipAddress;
+            }
+            if (sample == null || samplesFull) {
+                return;
+            }
+            synchronized (samples) {
+                if (samples.size() < MAX_SAMPLES) {
+                    samples.add(sample.length() > 64 ? sample.substring(0, 64) : sample);
+                }
+                samplesFull = samples.size() >= MAX_SAMPLES;
+            }
+        }
+
+        List<String> samples() {
+            synchronized (samples) {
+                return new ArrayList<>(samples);
+            }
+        }
+    }
+}
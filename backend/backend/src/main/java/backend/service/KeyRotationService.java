@@ -1,60 +1,344 @@
 package backend.service;
 
+import backend.cache.CardSnapshot;
+import backend.cache.CardSnapshotCache;
 import backend.model.CardRecord;
 import backend.model.UserRole;
 import backend.repo.CardRepository;
+import backend.util.B64Url;
 import backend.util.KeyWrapService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 @Service
 public class KeyRotationService {
-    
+
+    // Условное обновление: карта, ротированная параллельно (например, по запросу с проверки), не перезаписывается.
+    // Последний подтверждённый ключ сохраняется в prev_k_master_b64 и остаётся действительным до подтверждения нового
+    private static final String ROTATE_SQL =
+        "update cards set prev_k_master_b64 = coalesce(prev_k_master_b64, k_master_b64), " +
+        "k_master_b64 = ?, key_version = ?, next_rotation_at = ? " +
+        "where card_id_b64 = ? and key_version is not distinct from ?";
+
+    // Подтверждение: карта предъявила тег с ключом текущей версии, предыдущий ключ больше не нужен
+    private static final String CONFIRM_SQL =
+        "update cards set prev_k_master_b64 = null " +
+        "where card_id_b64 = ? and key_version = ? and prev_k_master_b64 is not null";
+
+    // Ключи, сохранённые открытыми до перехода на хранение в обёрнутом виде: 32 байта в base64url (43 символа)
+    private static final int WRAPPED_KEY_MIN_LENGTH = 64;
+    private static final String LEGACY_KEYS_SQL =
+        "select card_id_b64, k_master_b64, prev_k_master_b64 from cards " +
+        "where length(k_master_b64) < " + WRAPPED_KEY_MIN_LENGTH +
+        " or length(prev_k_master_b64) < " + WRAPPED_KEY_MIN_LENGTH + " order by card_id_b64 limit ?";
+    private static final String WRAP_LEGACY_SQL =
+        "update cards set k_master_b64 = ?, prev_k_master_b64 = ? " +
+        "where card_id_b64 = ? and k_master_b64 = ? and prev_k_master_b64 is not distinct from ?";
+
     private final CardRepository cardRepository;
     private final KeyWrapService keyWrapService;
-    
-    public KeyRotationService(CardRepository cardRepository, KeyWrapService keyWrapService) {
+    private final CardSnapshotCache cardSnapshotCache;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int chunkSize;
+    private final double jitterFraction;
+    // Отдельный пул для генерации и обёртки ключей, чтобы не занимать общий ForkJoinPool
+    private final ForkJoinPool rotationPool;
+    // Фоновый исполнитель ротаций и подтверждений, запрошенных с пути проверки
+    private final ThreadPoolExecutor rotationWorker;
+    private final Set<String> queuedRotations = ConcurrentHashMap.newKeySet();
+    private final Set<String> queuedConfirmations = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final LongAdder totalRotated = new LongAdder();
+    private final LongAdder totalConflicts = new LongAdder();
+    private final LongAdder totalFailed = new LongAdder();
+    private final LongAdder asyncRequested = new LongAdder();
+    private final LongAdder asyncRotated = new LongAdder();
+    private final LongAdder asyncRejected = new LongAdder();
+    private final LongAdder keysConfirmed = new LongAdder();
+    private final LongAdder legacyKeysWrapped = new LongAdder();
+    private volatile Instant lastRunStartedAt;
+    private volatile long lastRunDurationMs;
+    private volatile long runProcessed;
+    private volatile long runRotated;
+    private volatile long runChunks;
+
+    public KeyRotationService(CardRepository cardRepository, KeyWrapService keyWrapService,
+                              CardSnapshotCache cardSnapshotCache, JdbcTemplate jdbcTemplate,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${app.rotation.chunk-size:500}") int chunkSize,
+                              @Value("${app.rotation.parallelism:0}") int parallelism,
+                              @Value("${app.rotation.jitter-fraction:0.1}") double jitterFraction,
+                              @Value("${app.rotation.queue-capacity:10000}") int queueCapacity) {
         this.cardRepository = cardRepository;
         this.keyWrapService = keyWrapService;
+        this.cardSnapshotCache = cardSnapshotCache;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+        this.jitterFraction = jitterFraction;
+        this.rotationPool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        this.rotationWorker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), r -> {
+                Thread thread = new Thread(r, "key-rotation-worker");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Обёртка ключей, сохранённых в открытом виде до перехода на хранение под KEK.
+     * Требует k_master_b64 VARCHAR(128) (см. audit_tables.sql).
+     */
+    @PostConstruct
+    public void wrapLegacyKeys() {
+        while (true) {
+            List<Object[]> updates = jdbcTemplate.query(LEGACY_KEYS_SQL, (rs, rowNum) -> {
+                String key = rs.getString(2);
+                String previous = rs.getString(3);
+                return new Object[]{wrapLegacy(key), wrapLegacy(previous), rs.getString(1), key, previous};
+            }, chunkSize);
+            if (updates.isEmpty()) {
+                return;
+            }
+            int[] counts = transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(WRAP_LEGACY_SQL, updates));
+            int wrapped = 0;
+            for (int count : counts) {
+                if (count > 0 || count == Statement.SUCCESS_NO_INFO) {
+                    wrapped++;
+                }
+            }
+            legacyKeysWrapped.add(wrapped);
+            if (wrapped == 0 || updates.size() < chunkSize) {
+                return;
+            }
+        }
+    }
+
+    private String wrapLegacy(String key) {
+        if (key == null || key.length() >= WRAPPED_KEY_MIN_LENGTH) {
+            return key;
+        }
+        byte[] raw = B64Url.decode(key);
+        try {
+            return keyWrapService.wrapKey(raw);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+
+    /**
+     * Запрос ротации с пути проверки: не блокирует вызывающего, повторные запросы
+     * для карты, уже стоящей в очереди, игнорируются. При переполненной очереди
+     * карта будет ротирована плановым запуском.
+     */
+    public void requestRotation(String cardId) {
+        if (!queuedRotations.add(cardId)) {
+            return;
+        }
+        asyncRequested.increment();
+        try {
+            rotationWorker.execute(() -> {
+                queuedRotations.remove(cardId);
+                rotateIfDue(cardId);
+            });
+        } catch (RejectedExecutionException e) {
+            queuedRotations.remove(cardId);
+            asyncRejected.increment();
+        }
+    }
+
+    /**
+     * Подтверждение ключа версии keyVersion: карта предъявила тег с новым ключом,
+     * предыдущий ключ удаляется в фоне
+     */
+    public void confirmKey(String cardId, int keyVersion) {
+        if (!queuedConfirmations.add(cardId)) {
+            return;
+        }
+        try {
+            rotationWorker.execute(() -> {
+                try {
+                    if (jdbcTemplate.update(CONFIRM_SQL, cardId, keyVersion) > 0) {
+                        keysConfirmed.increment();
+                        cardSnapshotCache.invalidate(cardId);
+                    }
+                } catch (RuntimeException e) {
+                    totalFailed.increment();
+                } finally {
+                    queuedConfirmations.remove(cardId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Следующая проверка с новым ключом повторит подтверждение
+            queuedConfirmations.remove(cardId);
+        }
     }
-    
-    @Scheduled(fixedRate = 300000) // каждые 5 минут
-    @Transactional
+
+    private void rotateIfDue(String cardId) {
+        try {
+            CardRecord card = cardRepository.findById(cardId).orElse(null);
+            if (card == null || !card.isActive() || !shouldRotateKey(card)) {
+                return;
+            }
+            Object[] update = prepareRotation(card);
+            if (update != null) {
+                int rotated = applyRotations(List.<Object[]>of(update));
+                asyncRotated.add(rotated);
+                totalRotated.add(rotated);
+                totalConflicts.add(1 - rotated);
+            }
+        } catch (RuntimeException e) {
+            totalFailed.increment();
+        }
+    }
+
+    /**
+     * Ротация просроченных ключей порциями: keyset-выборка по cardId, ключи порции
+     * генерируются и оборачиваются параллельно, порция записывается одним JDBC batch
+     * в собственной транзакции
+     */
+    @Scheduled(fixedDelayString = "${app.rotation.interval-ms:300000}") // по умолчанию каждые 5 минут
     public void rotateKeysIfNeeded() {
-        Instant now = Instant.now();
-        List<CardRecord> cardsForRotation = cardRepository.findCardsForRotation(now);
-        
-        for (CardRecord card : cardsForRotation) {
-            rotateCardKey(card);
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Instant now = Instant.now();
+            long started = System.nanoTime();
+            lastRunStartedAt = now;
+            runProcessed = 0;
+            runRotated = 0;
+            runChunks = 0;
+
+            String afterId = "";
+            while (true) {
+                List<CardRecord> chunk = cardRepository.findCardsForRotationAfter(now, afterId, PageRequest.of(0, chunkSize));
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                afterId = chunk.get(chunk.size() - 1).getCardId();
+                rotateChunk(chunk);
+                if (chunk.size() < chunkSize) {
+                    break;
+                }
+            }
+            lastRunDurationMs = (System.nanoTime() - started) / 1_000_000;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void rotateChunk(List<CardRecord> chunk) {
+        List<Object[]> updates = prepareRotations(chunk);
+
+        int rotated = updates.isEmpty() ? 0 : applyRotations(updates);
+        totalRotated.add(rotated);
+        totalConflicts.add(updates.size() - rotated);
+        runProcessed += chunk.size();
+        runRotated += rotated;
+        runChunks++;
+    }
+
+    // Один JDBC batch в собственной транзакции; возвращает число фактически ротированных карт
+    private int applyRotations(List<Object[]> updates) {
+        int[] counts = transactionTemplate.execute(status -> {
+            int[] result = jdbcTemplate.batchUpdate(ROTATE_SQL, updates);
+            for (int i = 0; i < result.length; i++) {
+                if (result[i] > 0 || result[i] == Statement.SUCCESS_NO_INFO) {
+                    cardSnapshotCache.invalidate((String) updates.get(i)[3]);
+                }
+            }
+            return result;
+        });
+        int rotated = 0;
+        for (int count : counts) {
+            if (count > 0 || count == Statement.SUCCESS_NO_INFO) {
+                rotated++;
+            }
+        }
+        return rotated;
+    }
+
+    // Параметры ROTATE_SQL для порции: ключи генерируются одним вызовом SecureRandom
+    // и оборачиваются пакетом (wrapAll) на ядрах пула ротации
+    private List<Object[]> prepareRotations(List<CardRecord> chunk) {
+        int count = chunk.size();
+        byte[] newKeys = keyWrapService.generateKeys(count);
+        try {
+            byte[] wrapped = rotationPool.submit(() -> keyWrapService.wrapAll(newKeys, KeyWrapService.KEY_LENGTH)).join();
+            List<Object[]> updates = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                CardRecord card = chunk.get(i);
+                Integer currentVersion = card.getKeyVersion();
+                int newVersion = (currentVersion == null ? 1 : currentVersion) + 1;
+                Instant nextRotation = calculateNextRotation(UserRole.fromString(card.getUserRole()), newVersion);
+                updates.add(new Object[]{KeyWrapService.encodeWrapped(wrapped, i, KeyWrapService.KEY_LENGTH),
+                    newVersion, Timestamp.from(nextRotation), card.getCardId(), currentVersion});
+            }
+            return updates;
+        } catch (RuntimeException e) {
+            totalFailed.add(count);
+            return List.of();
+        } finally {
+            Arrays.fill(newKeys, (byte) 0);
         }
     }
-    
-    @Transactional
-    public void rotateCardKey(CardRecord card) {
+
+    // Параметры ROTATE_SQL для одной карты; null, если ключ подготовить не удалось
+    private Object[] prepareRotation(CardRecord card) {
+        byte[] newKey = null;
         try {
-            byte[] newKey = keyWrapService.generateNewKey();
+            newKey = keyWrapService.generateNewKey();
             String wrappedNewKey = keyWrapService.wrapKey(newKey);
-            
-            card.setkMaster(wrappedNewKey);
-            card.setKeyVersion(card.getKeyVersion() + 1);
-            
-            UserRole role = UserRole.fromString(card.getUserRole());
-            Instant nextRotation = calculateNextRotation(role, card.getKeyVersion());
-            card.setNextRotationAt(nextRotation);
-            
-            cardRepository.save(card);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to rotate key for card " + card.getCardId(), e);
-        }
-    }
-    
+            Integer currentVersion = card.getKeyVersion();
+            int newVersion = (currentVersion == null ? 1 : currentVersion) + 1;
+            Instant nextRotation = calculateNextRotation(UserRole.fromString(card.getUserRole()), newVersion);
+            return new Object[]{wrappedNewKey, newVersion, Timestamp.from(nextRotation), card.getCardId(), currentVersion};
+        } catch (RuntimeException e) {
+            totalFailed.increment();
+            return null;
+        } finally {
+            if (newKey != null) {
+                Arrays.fill(newKey, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Время следующей ротации: интервал роли плюс случайная задержка до jitter-fraction интервала,
+     * чтобы карты, выпущенные пачкой, не приходили к ротации в один и тот же запуск
+     */
     public Instant calculateNextRotation(UserRole role, int keyVersion) {
         Instant now = Instant.now();
-        
+
         long rotationIntervalSeconds;
         switch (role) {
             case ADMIN:
@@ -72,15 +356,63 @@ public class KeyRotationService {
             default:
                 rotationIntervalSeconds = 30 * 24 * 60 * 60L; // 1 месяц по умолчанию
         }
-        
+
+        long jitterSeconds = (long) (rotationIntervalSeconds * jitterFraction);
+        if (jitterSeconds > 0) {
+            rotationIntervalSeconds += ThreadLocalRandom.current().nextLong(jitterSeconds + 1);
+        }
         return now.plusSeconds(rotationIntervalSeconds);
     }
-    
+
     public boolean shouldRotateKey(CardRecord card) {
         if (card.getNextRotationAt() == null) {
             return false;
         }
-        
+
         return Instant.now().isAfter(card.getNextRotationAt());
     }
+
+    public boolean shouldRotateKey(CardSnapshot card) {
+        if (card.getNextRotationAt() == null) {
+            return false;
+        }
+
+        return Instant.now().isAfter(card.getNextRotationAt());
+    }
+
+    /**
+     * Прогресс текущего/последнего запуска и накопленные счётчики
+     */
+    public Map<String, Object> stats() {
+        long processed = runProcessed;
+        long duration = running.get() && lastRunStartedAt != null
+            ? Instant.now().toEpochMilli() - lastRunStartedAt.toEpochMilli()
+            : lastRunDurationMs;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running.get());
+        stats.put("lastRunStartedAt", lastRunStartedAt != null ? lastRunStartedAt.toString() : null);
+        stats.put("lastRunDurationMs", duration);
+        stats.put("lastRunProcessed", processed);
+        stats.put("lastRunRotated", runRotated);
+        stats.put("lastRunChunks", runChunks);
+        stats.put("lastRunCardsPerSecond", duration > 0 ? processed * 1000.0 / duration : 0.0);
+        stats.put("chunkSize", chunkSize);
+        stats.put("parallelism", rotationPool.getParallelism());
+        stats.put("totalRotated", totalRotated.sum());
+        stats.put("totalConflicts", totalConflicts.sum());
+        stats.put("totalFailed", totalFailed.sum());
+        stats.put("asyncQueued", rotationWorker.getQueue().size());
+        stats.put("asyncRequested", asyncRequested.sum());
+        stats.put("asyncRotated", asyncRotated.sum());
+        stats.put("asyncRejected", asyncRejected.sum());
+        stats.put("keysConfirmed", keysConfirmed.sum());
+        stats.put("legacyKeysWrapped", legacyKeysWrapped.sum());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rotationPool.shutdown();
+        rotationWorker.shutdown();
+    }
 }
@@ -0,0 +1,429 @@
+package backend.service;
+
+import backend.dto.AuditFilter;
+import backend.model.AuditEvent;
+import backend.repo.AuditEventJdbcRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Скользящие окна неуспешных событий в памяти: по карте и по IP (все события), по IP и по паре
+ * (карта, ридер) для записей доступа. Окно - кольцо интервалов bucket-minutes на window-minutes;
+ * счётчики пополняет AuditPipeline после записи пакета, поэтому /suspicious-activity,
+ * /frequent-failures и /suspicious-ips отвечают без обращения к БД. Когда число отказов ключа
+ * в окне превышает alert-threshold, сразу поднимается тревога (повторно - после спада ниже порога).
+ * Для /suspicious-activity хранятся последние recent-failures неуспешных событий.
+ * Тревоги рассылаются и подписчикам AuditEventStream.
+ * Число окон каждого вида ограничено max-keys: отказы ключей сверх лимита считаются в общем окне
+ * вида (ключ "*") с тем же порогом, а при первом переполнении поднимается тревога OVERFLOW
+ * (повторно - после того, как очистка вернёт число окон ниже лимита).
+ * При старте окна засеваются в фоне неуспешными событиями окна из БД; до конца засева ready() = false.
+ */
+@Component
+public class SuspiciousActivityDetector {
+
+    private static final long MINUTE_MS = 60_000L;
+    private static final int MAX_ALERTS = 1000;
+    private static final int SEED_PAGE_SIZE = 1000;
+
+    public static final String CARD = "CARD";
+    public static final String IP = "IP";
+    public static final String ACCESS_IP = "ACCESS_IP";
+    public static final String CARD_READER = "CARD_READER";
+    public static final String OVERFLOW = "OVERFLOW";
+    private static final String OVERFLOW_KEY = "*";
+
+    private final AuditEventJdbcRepository repository;
+    private final AuditEventStream auditEventStream;
+    private final long bucketMs;
+    private final int slots;
+    private final int alertThreshold;
+    private final int maxKeys;
+    private final int recentCapacity;
+
+    private final ConcurrentHashMap<String, Window> cards = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Window> ips = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Window> accessIps = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Pair, Window> pairs = new ConcurrentHashMap<>();
+    // Общие окна ключей сверх max-keys и виды, по которым уже поднята тревога переполнения
+    private final ConcurrentHashMap<String, Window> overflowWindows = new ConcurrentHashMap<>();
+    private final Set<String> overflowing = ConcurrentHashMap.newKeySet();
+    private final ArrayDeque<AuditEvent> recentFailures = new ArrayDeque<>();
+    private final ArrayDeque<Map<String, Object>> alerts = new ArrayDeque<>();
+
+    private final ExecutorService seeder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "suspicious-activity-seed");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // События до момента засева учитываются только засевом
+    private volatile Instant seedCutoff = Instant.now();
+    private volatile boolean ready;
+
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder alertsRaised = new LongAdder();
+    private final LongAdder overflowKeys = new LongAdder();
+    private final LongAdder expiredKeys = new LongAdder();
+    private final LongAdder seedFailures = new LongAdder();
+
+    public SuspiciousActivityDetector(AuditEventJdbcRepository repository,
+                                      AuditEventStream auditEventStream,
+                                      @Value("${app.audit.detector.window-minutes:1440}") int windowMinutes,
+                                      @Value("${app.audit.detector.bucket-minutes:60}") int bucketMinutes,
+                                      @Value("${app.audit.detector.alert-threshold:5}") int alertThreshold,
+                                      @Value("${app.audit.detector.max-keys:100000}") int maxKeys,
+                                      @Value("${app.audit.detector.recent-failures:10000}") int recentCapacity) {
+        this.repository = repository;
+        this.auditEventStream = auditEventStream;
+        this.bucketMs = bucketMinutes * MINUTE_MS;
+        this.slots = Math.max(1, (windowMinutes + bucketMinutes - 1) / bucketMinutes);
+        this.alertThreshold = alertThreshold;
+        this.maxKeys = maxKeys;
+        this.recentCapacity = recentCapacity;
+    }
+
+    @PostConstruct
+    public void start() {
+        seeder.execute(this::seed);
+    }
+
+    @PreDestroy
+    public void stop() {
+        seeder.shutdownNow();
+    }
+
+    public boolean ready() {
+        return ready;
+    }
+
+    /**
+     * Учёт записанных событий; вызывается после успешной вставки пакета
+     */
+    public void record(List<AuditEvent> events) {
+        Instant cutoff = seedCutoff;
+        long now = System.currentTimeMillis();
+        for (AuditEvent event : events) {
+            if (!event.isSuccess() && !event.getEventTimestamp().isBefore(cutoff)) {
+                add(event, now, true);
+            }
+        }
+    }
+
+    private void add(AuditEvent event, long now, boolean raiseAlerts) {
+        long at = event.getEventTimestamp().toEpochMilli();
+        if (at <= now - slots * bucketMs) {
+            return;
+        }
+        failures.increment();
+        if (event.getCardId() != null) {
+            count(cards, event.getCardId(), CARD, at, now, raiseAlerts);
+        }
+        if (event.getIpAddress() != null) {
+            count(ips, event.getIpAddress(), IP, at, now, raiseAlerts);
+        }
+        if (event.getAccessType() != null) {
+            if (event.getIpAddress() != null) {
+                count(accessIps, event.getIpAddress(), ACCESS_IP, at, now, raiseAlerts);
+            }
+            if (event.getCardId() != null) {
+                count(pairs, new Pair(event.getCardId(), event.getReaderId()), CARD_READER, at, now, raiseAlerts);
+            }
+        }
+        synchronized (recentFailures) {
+            if (recentFailures.size() >= recentCapacity) {
+                recentFailures.pollFirst();
+            }
+            recentFailures.addLast(event);
+        }
+    }
+
+    private <K> void count(ConcurrentHashMap<K, Window> windows, K key, String type, long at, long now,
+                           boolean raiseAlerts) {
+        Object alertKey = key;
+        Window window = windows.get(key);
+        if (window == null) {
+            // Ключи приходят от клиента (карта, IP): число окон ограничено, остальные - в общем окне
+            if (windows.size() >= maxKeys) {
+                overflowKeys.increment();
+                if (raiseAlerts && overflowing.add(type)) {
+                    raiseOverflowAlert(type);
+                }
+                alertKey = OVERFLOW_KEY;
+                window = overflowWindows.computeIfAbsent(type, t -> new Window(slots));
+            } else {
+                window = windows.computeIfAbsent(key, k -> new Window(slots));
+            }
+        }
+        long total = window.add(Math.floorDiv(at, bucketMs), Math.floorDiv(now, bucketMs));
+        if (window.crossed(total, alertThreshold) && raiseAlerts) {
+            raiseAlert(type, alertKey, total);
+        }
+    }
+
+    private void raiseAlert(String type, Object key, long total) {
+        Map<String, Object> alert = new LinkedHashMap<>();
+        alert.put("type", type);
+        String cardId = null;
+        String readerId = null;
+        if (key instanceof Pair pair) {
+            cardId = pair.cardId();
+            readerId = pair.readerId();
+            alert.put("cardId", cardId);
+            alert.put("readerId", readerId);
+        } else {
+            if (CARD.equals(type) && !OVERFLOW_KEY.equals(key)) {
+                cardId = (String) key;
+            }
+            alert.put("key", key);
+        }
+        alert.put("failures", total);
+        alert.put("threshold", alertThreshold);
+        alert.put("raisedAt", Instant.now());
+        publish(alert, cardId, readerId);
+    }
+
+    private void raiseOverflowAlert(String type) {
+        Map<String, Object> alert = new LinkedHashMap<>();
+        alert.put("type", OVERFLOW);
+        alert.put("key", type);
+        alert.put("maxKeys", maxKeys);
+        alert.put("raisedAt", Instant.now());
+        publish(alert, null, null);
+    }
+
+    private void publish(Map<String, Object> alert, String cardId, String readerId) {
+        synchronized (alerts) {
+            if (alerts.size() >= MAX_ALERTS) {
+                alerts.pollFirst();
+            }
+            alerts.addLast(alert);
+        }
+        alertsRaised.increment();
+        auditEventStream.publishAlert(alert, cardId, readerId);
+    }
+
+    /**
+     * Неуспешные события окна (из последних recent-failures), карта или IP которых
+     * превысили maxFailures отказов; от новых к старым
+     */
+    public List<AuditEvent> suspiciousActivity(long maxFailures) {
+        long now = System.currentTimeMillis();
+        long from = now - slots * bucketMs;
+        List<AuditEvent> snapshot;
+        synchronized (recentFailures) {
+            snapshot = new ArrayList<>(recentFailures);
+        }
+        Set<AuditEvent> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<AuditEvent> result = new ArrayList<>();
+        for (AuditEvent event : snapshot) {
+            if (event.getEventTimestamp().toEpochMilli() <= from || !seen.add(event)) {
+                continue;
+            }
+            if (exceeds(cards, event.getCardId(), maxFailures, now) || exceeds(ips, event.getIpAddress(), maxFailures, now)) {
+                result.add(event);
+            }
+        }
+        result.sort(Comparator.comparing(AuditEvent::getEventTimestamp).reversed());
+        return result;
+    }
+
+    /**
+     * [cardId, readerId, отказов] пар с числом отказов доступа в окне больше maxFailures
+     */
+    public List<Object[]> frequentFailures(long maxFailures) {
+        long nowBucket = Math.floorDiv(System.currentTimeMillis(), bucketMs);
+        List<Object[]> rows = new ArrayList<>();
+        pairs.forEach((pair, window) -> {
+            long total = window.total(nowBucket);
+            if (total > maxFailures) {
+                rows.add(new Object[] {pair.cardId(), pair.readerId(), total});
+            }
+        });
+        rows.sort(Comparator.comparingLong((Object[] row) -> (Long) row[2]).reversed());
+        return rows;
+    }
+
+    /**
+     * [IP, отказов] адресов с числом отказов доступа в окне больше maxFailures
+     */
+    public List<Object[]> suspiciousIps(long maxFailures) {
+        long nowBucket = Math.floorDiv(System.currentTimeMillis(), bucketMs);
+        List<Object[]> rows = new ArrayList<>();
+        accessIps.forEach((ip, window) -> {
+            long total = window.total(nowBucket);
+            if (total > maxFailures) {
+                rows.add(new Object[] {ip, total});
+            }
+        });
+        rows.sort(Comparator.comparingLong((Object[] row) -> (Long) row[1]).reversed());
+        return rows;
+    }
+
+    /**
+     * Последние тревоги (не более 1000), от новых к старым
+     */
+    public List<Map<String, Object>> alerts() {
+        List<Map<String, Object>> result;
+        synchronized (alerts) {
+            result = new ArrayList<>(alerts);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private boolean exceeds(Map<String, Window> windows, String key, long maxFailures, long now) {
+        Window window = key != null ? windows.get(key) : null;
+        return window != null && window.total(Math.floorDiv(now, bucketMs)) > maxFailures;
+    }
+
+    /**
+     * Удаление окон без отказов за окно; вид, число окон которого опустилось ниже лимита,
+     * снова может поднять тревогу переполнения
+     */
+    @Scheduled(fixedDelayString = "${app.audit.detector.sweep-interval-ms:60000}")
+    public void sweep() {
+        long nowBucket = Math.floorDiv(System.currentTimeMillis(), bucketMs);
+        Map<String, ConcurrentHashMap<?, Window>> byType = Map.of(CARD, cards, IP, ips, ACCESS_IP, accessIps, CARD_READER, pairs);
+        byType.forEach((type, windows) -> {
+            windows.values().removeIf(window -> {
+                boolean expired = window.total(nowBucket) == 0;
+                if (expired) {
+                    expiredKeys.increment();
+                }
+                return expired;
+            });
+            if (windows.size() < maxKeys) {
+                overflowing.remove(type);
+            }
+        });
+        overflowWindows.values().removeIf(window -> window.total(nowBucket) == 0);
+    }
+
+    // Неуспешные события окна до момента засева, keyset-страницами по (время, id)
+    private void seed() {
+        Instant cutoff = Instant.now();
+        seedCutoff = cutoff;
+        try {
+            long now = cutoff.toEpochMilli();
+            AuditFilter filter = new AuditFilter();
+            filter.setSuccess(false);
+            filter.setStartTime(Instant.ofEpochMilli((Math.floorDiv(now, bucketMs) - slots + 1) * bucketMs));
+            // Граница включается; точность времени в БД - микросекунды
+            filter.setEndTime(cutoff.minusNanos(1_000));
+            Instant afterTimestamp = null;
+            Long afterId = null;
+            while (!Thread.currentThread().isInterrupted()) {
+                List<AuditEvent> page = repository.findEvents(filter, true, afterTimestamp, afterId, SEED_PAGE_SIZE);
+                for (AuditEvent event : page) {
+                    add(event, now, false);
+                }
+                if (page.size() < SEED_PAGE_SIZE) {
+                    ready = true;
+                    return;
+                }
+                AuditEvent last = page.get(page.size() - 1);
+                afterTimestamp = last.getEventTimestamp();
+                afterId = last.getId();
+            }
+        } catch (RuntimeException e) {
+            seedFailures.increment();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("windowMinutes", slots * bucketMs / MINUTE_MS);
+        stats.put("bucketMinutes", bucketMs / MINUTE_MS);
+        stats.put("alertThreshold", alertThreshold);
+        stats.put("cards", cards.size());
+        stats.put("ips", ips.size());
+        stats.put("accessIps", accessIps.size());
+        stats.put("cardReaderPairs", pairs.size());
+        stats.put("maxKeys", maxKeys);
+        synchronized (recentFailures) {
+            stats.put("recentFailures", recentFailures.size());
+        }
+        stats.put("failures", failures.sum());
+        stats.put("alertsRaised", alertsRaised.sum());
+        stats.put("overflowKeys", overflowKeys.sum());
+        stats.put("overflowing", new ArrayList<>(overflowing));
+        stats.put("expiredKeys", expiredKeys.sum());
+        stats.put("seedFailures", seedFailures.sum());
+        return stats;
+    }
+
+    private record Pair(String cardId, String readerId) {}
+
+    /**
+     * Кольцо интервалов одного ключа: число отказов по интервалам; слот переиспользуется
+     * более новым интервалом. alerted - порог уже превышен (тревога поднята)
+     */
+    private static final class Window {
+        private final long[] ids;
+        private final int[] counts;
+        private boolean alerted;
+
+        Window(int slots) {
+            this.ids = new long[slots];
+            this.counts = new int[slots];
+            Arrays.fill(ids, Long.MIN_VALUE);
+        }
+
+        // Возвращает число отказов в окне, заканчивающемся интервалом nowBucket
+        synchronized long add(long bucket, long nowBucket) {
+            int slot = (int) Math.floorMod(bucket, (long) ids.length);
+            if (ids[slot] != bucket) {
+                if (ids[slot] > bucket) {
+                    return total(nowBucket);
+                }
+                ids[slot] = bucket;
+                counts[slot] = 0;
+            }
+            counts[slot]++;
+            return total(nowBucket);
+        }
+
+        synchronized long total(long nowBucket) {
+            long total = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] > nowBucket - ids.length && ids[i] <= nowBucket) {
+                    total += counts[i];
+                }
+            }
+            return total;
+        }
+
+        // true один раз при переходе через порог; ниже порога тревога снова взводится
+        synchronized boolean crossed(long total, int threshold) {
+            if (total <= threshold) {
+                alerted = false;
+                return false;
+            }
+            if (alerted) {
+                return false;
+            }
+            alerted = true;
+            return true;
+        }
+    }
+}
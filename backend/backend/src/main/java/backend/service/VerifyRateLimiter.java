@@ -0,0 +1,261 @@
+package backend.service;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограничение частоты проверок карт по ридеру (X-Reader-Id) и по адресу клиента.
+ * Token bucket в форме GCRA: состояние корзины - одно "теоретическое время прихода"
+ * в AtomicLong, взятие токенов - один compare-and-set без блокировок.
+ * Лимиты ридеров задаются классами app.rate-limit.reader-classes в виде
+ * "класс:шаблон:запросов_в_секунду:запас[:адреса]" (шаблон - точный id, префикс с '*' или '*';
+ * адреса - через '|', точный адрес или префикс с '*'), берётся первый подходящий класс.
+ * X-Reader-Id не аутентифицирован, поэтому класс с адресами выдаётся только запросам с этих адресов;
+ * такие ридеры не ограничиваются лимитом адреса, остальные платят ему столько же токенов, сколько ридеру.
+ * Адрес - адрес соединения; X-Real-IP учитывается только от app.rate-limit.trusted-proxies.
+ * Отказы попадают в сводку DeniedAccessSummary.
+ */
+@Component
+public class VerifyRateLimiter {
+
+    private final DeniedAccessSummary deniedAccessSummary;
+    private final boolean enabled;
+    private final List<String> trustedProxies;
+    private final List<ReaderClass> readerClasses = new ArrayList<>();
+    private final ReaderClass ipClass;
+    private final int maxKeys;
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder rejectedByReader = new LongAdder();
+    private final LongAdder rejectedByIp = new LongAdder();
+    private final LongAdder overflowKeys = new LongAdder();
+
+    public VerifyRateLimiter(DeniedAccessSummary deniedAccessSummary,
+                             @Value("${app.rate-limit.enabled:true}") boolean enabled,
+                             @Value("${app.rate-limit.reader-classes:default:*:20:40}") List<String> readerClasses,
+                             @Value("${app.rate-limit.trusted-proxies:}") List<String> trustedProxies,
+                             @Value("${app.rate-limit.ip.rate-per-second:50}") double ipRate,
+                             @Value("${app.rate-limit.ip.burst:100}") int ipBurst,
+                             @Value("${app.rate-limit.max-keys:100000}") int maxKeys) {
+        this.deniedAccessSummary = deniedAccessSummary;
+        this.enabled = enabled;
+        this.trustedProxies = trustedProxies.stream().map(String::trim).filter(p -> !p.isEmpty()).toList();
+        for (String spec : readerClasses) {
+            // Адреса - остаток строки: IPv6 содержит ':'
+            String[] parts = spec.trim().split(":", 5);
+            if (parts.length < 4) {
+                throw new IllegalArgumentException("Invalid reader class, expected name:pattern:rate:burst[:sources] - " + spec);
+            }
+            List<String> sources = parts.length == 5 ? List.of(parts[4].split("\\|")) : List.of();
+            this.readerClasses.add(new ReaderClass(parts[0], parts[1],
+                Double.parseDouble(parts[2]), Integer.parseInt(parts[3]), sources));
+        }
+        this.ipClass = new ReaderClass("ip", "*", ipRate, ipBurst, List.of());
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Взятие permits токенов у ридера и у адреса клиента.
+     * @return false, если один из лимитов исчерпан (отказ уже учтён в сводке)
+     */
+    public boolean tryAcquire(String readerId, HttpServletRequest request, int permits) {
+        if (!enabled) {
+            return true;
+        }
+        return tryAcquire(readerId, request != null ? sourceAddress(request) : null, permits);
+    }
+
+    /**
+     * То же для адреса соединения (TCP-листенер); ip == null - только лимит ридера без классов с адресами
+     */
+    public boolean tryAcquire(String readerId, String ip, int permits) {
+        if (!enabled) {
+            return true;
+        }
+        ReaderClass readerClass = classify(readerId, ip);
+        Bucket readerBucket = bucket("r:" + readerId, readerClass);
+        if (!readerBucket.tryAcquire(permits)) {
+            readerClass.rejected.add(permits);
+            rejectedByReader.add(permits);
+            deniedAccessSummary.record(DeniedAccessSummary.RATE_LIMITED, readerId, "reader:" + readerClass.name, ip);
+            return false;
+        }
+        // Смена X-Reader-Id не даёт новых токенов: адрес платит за каждый элемент пакета
+        if (ip != null && readerClass.sources.isEmpty() && !bucket("ip:" + ip, ipClass).tryAcquire(permits)) {
+            readerBucket.release(permits);
+            rejectedByIp.add(permits);
+            deniedAccessSummary.record(DeniedAccessSummary.RATE_LIMITED, readerId, "ip:" + ip, ip);
+            return false;
+        }
+        readerClass.allowed.add(permits);
+        allowed.add(permits);
+        return true;
+    }
+
+    // Адрес клиента без доверия к заголовкам: X-Real-IP принимается только от доверенного прокси
+    private String sourceAddress(HttpServletRequest request) {
+        String remote = request.getRemoteAddr();
+        String realIp = request.getHeader("X-Real-IP");
+        if (realIp != null && !realIp.isBlank() && trustedProxies.stream().anyMatch(p -> matches(p, remote))) {
+            return realIp.trim();
+        }
+        return remote;
+    }
+
+    private ReaderClass classify(String readerId, String ip) {
+        for (ReaderClass readerClass : readerClasses) {
+            if (readerClass.matches(readerId, ip)) {
+                return readerClass;
+            }
+        }
+        // Последний класс - запасной; привязанный к адресам не выдаётся чужим адресам
+        if (!readerClasses.isEmpty() && readerClasses.get(readerClasses.size() - 1).sources.isEmpty()) {
+            return readerClasses.get(readerClasses.size() - 1);
+        }
+        return ipClass;
+    }
+
+    // Точное значение, префикс с '*' или '*'
+    private static boolean matches(String pattern, String value) {
+        if ("*".equals(pattern)) {
+            return true;
+        }
+        if (value == null) {
+            return false;
+        }
+        if (pattern.endsWith("*")) {
+            return value.startsWith(pattern.substring(0, pattern.length() - 1));
+        }
+        return pattern.equals(value);
+    }
+
+    private Bucket bucket(String key, ReaderClass limits) {
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxKeys) {
+            // Переполнение (перебор случайных id): неизвестные ключи делят одну корзину класса
+            overflowKeys.increment();
+            return buckets.computeIfAbsent("overflow:" + limits.name, k -> new Bucket(limits));
+        }
+        return buckets.computeIfAbsent(key, k -> new Bucket(limits));
+    }
+
+    /**
+     * Удаление полных (давно не использованных) корзин
+     */
+    @Scheduled(fixedDelayString = "${app.rate-limit.cleanup-interval-ms:60000}")
+    public void evictIdle() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.isIdle(now));
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> classes = new LinkedHashMap<>();
+        for (ReaderClass readerClass : readerClasses) {
+            Map<String, Object> c = new HashMap<>();
+            c.put("pattern", readerClass.pattern);
+            c.put("ratePerSecond", readerClass.ratePerSecond);
+            c.put("burst", readerClass.burst);
+            c.put("sources", readerClass.sources);
+            c.put("allowed", readerClass.allowed.sum());
+            c.put("rejected", readerClass.rejected.sum());
+            classes.put(readerClass.name, c);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("allowed", allowed.sum());
+        stats.put("rejectedByReader", rejectedByReader.sum());
+        stats.put("rejectedByIp", rejectedByIp.sum());
+        stats.put("buckets", buckets.size());
+        stats.put("overflowKeys", overflowKeys.sum());
+        stats.put("ipRatePerSecond", ipClass.ratePerSecond);
+        stats.put("ipBurst", ipClass.burst);
+        stats.put("trustedProxies", trustedProxies);
+        stats.put("readerClasses", classes);
+        return stats;
+    }
+
+    private static final class ReaderClass {
+        private final String name;
+        private final String pattern;
+        private final double ratePerSecond;
+        private final int burst;
+        private final List<String> sources;
+        // Интервал между токенами и допустимое опережение (запас) в наносекундах
+        private final long emissionNanos;
+        private final long toleranceNanos;
+        private final LongAdder allowed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        ReaderClass(String name, String pattern, double ratePerSecond, int burst, List<String> sources) {
+            if (ratePerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("Rate and burst must be positive for class " + name);
+            }
+            this.name = name;
+            this.pattern = pattern;
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+            this.sources = sources;
+            this.emissionNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+            this.toleranceNanos = emissionNanos * burst;
+        }
+
+        boolean matches(String readerId, String ip) {
+            if (!VerifyRateLimiter.matches(pattern, readerId)) {
+                return false;
+            }
+            return sources.isEmpty() || sources.stream().anyMatch(source -> VerifyRateLimiter.matches(source, ip));
+        }
+    }
+
+    private static final class Bucket {
+        private final ReaderClass limits;
+        // Теоретическое время, к которому корзина снова станет полной
+        private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(ReaderClass limits) {
+            this.limits = limits;
+        }
+
+        boolean tryAcquire(int permits) {
+            long cost = limits.emissionNanos * permits;
+            while (true) {
+                long now = System.nanoTime();
+                long current = tat.get();
+                long start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+                long next = start + cost;
+                if (next - now > limits.toleranceNanos) {
+                    return false;
+                }
+                if (tat.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        void release(int permits) {
+            tat.addAndGet(-limits.emissionNanos * permits);
+        }
+
+        boolean isIdle(long now) {
+            long current = tat.get();
+            return current == Long.MIN_VALUE || current - now < 0;
+        }
+    }
+}
@@ -1,40 +1,39 @@
 package backend.sim;
 
-import backend.model.CardRecord;
-import backend.repo.CardRepository;
+import backend.cache.CardKeyCache;
+import backend.cache.CardSnapshot;
+import backend.cache.CardSnapshotCache;
+import backend.cache.ReplayCounterTable;
 import backend.util.B64Url;
+import backend.util.HmacEngine;
 import org.springframework.stereotype.Service;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
 
 @Service
 public class SimService {
-    private final CardRepository cardRepository;
-
-    public SimService(CardRepository cardRepository) {
-        this.cardRepository = cardRepository;
+    private final CardSnapshotCache cardSnapshotCache;
+    private final CardKeyCache cardKeyCache;
+    private final ReplayCounterTable replayCounterTable;
+
+    public SimService(CardSnapshotCache cardSnapshotCache, CardKeyCache cardKeyCache, ReplayCounterTable replayCounterTable) {
+        this.cardSnapshotCache = cardSnapshotCache;
+        this.cardKeyCache = cardKeyCache;
+        this.replayCounterTable = replayCounterTable;
     }
 
     public Map<String, String> generateResponse(String cardIdB64) {
-        Optional<CardRecord> existing = cardRepository.findById(cardIdB64);
-        CardRecord card = existing.orElse(null);
+        CardSnapshot card = cardSnapshotCache.get(cardIdB64).orElse(null);
         if (card == null || !card.isActive()) {
             return java.util.Collections.singletonMap("status", "FAIL");
         }
         try {
-            byte[] cardId = B64Url.decode(card.getCardId());
-            byte[] kMaster = B64Url.decode(card.getkMaster());
-            long nextCtr = (card.getLastCtr() == null ? 0L : card.getLastCtr()) + 1L;
+            Long lastCtr = replayCounterTable.lastCounter(cardIdB64);
+            long nextCtr = (lastCtr == null ? 0L : lastCtr) + 1L;
             byte[] ctrLE = longToLe64(nextCtr);
-            byte[] ad = new byte[cardId.length + ctrLE.length];
-            System.arraycopy(cardId, 0, ad, 0, cardId.length);
-            System.arraycopy(ctrLE, 0, ad, cardId.length, ctrLE.length);
-            byte[] fullTag = hmacSha256(kMaster, ad);
-            byte[] tag16 = java.util.Arrays.copyOf(fullTag, 16);
+            byte[] tag16 = new byte[HmacEngine.TAG_LENGTH];
+            cardKeyCache.computeTag(card, ctrLE, tag16, 0);
             Map<String, String> resp = new HashMap<>();
             resp.put("status", "OK");
             resp.put("ctr", B64Url.encode(ctrLE));
@@ -45,12 +44,6 @@ public class SimService {
         }
     }
 
-    private static byte[] hmacSha256(byte[] key, byte[] data) throws Exception {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(key, "HmacSHA256"));
-        return mac.doFinal(data);
-    }
-
     private static byte[] longToLe64(long v) {
         byte[] out = new byte[8];
         for (int i = 0; i < 8; i++) {
@@ -61,4 +54,3 @@ public class SimService {
     }
 }
 
-
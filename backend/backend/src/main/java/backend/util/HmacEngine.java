@@ -0,0 +1,117 @@
+package backend.util;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * HMAC-SHA256 trunc16 для протокола карты: tag = Trunc16(HMAC(K_master, cardId || ctr)).
+ * Экземпляры Mac берутся из ограниченного пула и переинициализируются только при смене ключа;
+ * ключевой материал карты (SecretKey) кэшируется вызывающей стороной.
+ * Экземпляр, последним ключом которого был уничтоженный (destroy) ключ, при возврате в пул
+ * и при forgetDestroyedKeys() переинициализируется нулевым ключом: Mac не хранит ipad/opad
+ * выведенного ключа, пул не держит ссылку на него.
+ */
+public final class HmacEngine {
+    public static final String ALGORITHM = "HmacSHA256";
+    public static final int TAG_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+
+    private static final SecretKeySpec BLANK_KEY = new SecretKeySpec(new byte[MAC_LENGTH], ALGORITHM);
+
+    private static final InstancePool<State> STATES = new InstancePool<>(InstancePool.defaultCapacity(), State::new);
+
+    private HmacEngine() {}
+
+    public static SecretKeySpec keyOf(byte[] kMaster) {
+        return new SecretKeySpec(kMaster, ALGORITHM);
+    }
+
+    /**
+     * Вычисление усечённого тега в буфер вызывающей стороны out[outOff, outOff + 16)
+     */
+    public static void tag(SecretKey key, byte[] cardId, byte[] ctrLE, byte[] out, int outOff) throws InvalidKeyException {
+        State state = STATES.acquire();
+        try {
+            state.compute(key, cardId, ctrLE);
+            System.arraycopy(state.full, 0, out, outOff, TAG_LENGTH);
+        } finally {
+            state.forgetIfDestroyed();
+            STATES.release(state);
+        }
+    }
+
+    /**
+     * Проверка тега за постоянное время без промежуточных аллокаций
+     */
+    public static boolean verify(SecretKey key, byte[] cardId, byte[] ctrLE, byte[] tag16) throws InvalidKeyException {
+        if (tag16 == null || tag16.length != TAG_LENGTH) return false;
+        State state = STATES.acquire();
+        try {
+            state.compute(key, cardId, ctrLE);
+            int result = 0;
+            for (int i = 0; i < TAG_LENGTH; i++) {
+                result |= state.full[i] ^ tag16[i];
+            }
+            return result == 0;
+        } finally {
+            state.forgetIfDestroyed();
+            STATES.release(state);
+        }
+    }
+
+    /**
+     * Сброс простаивающих в пуле экземпляров, последний ключ которых уничтожен;
+     * вызывается после обнуления выведенных ключей
+     */
+    public static void forgetDestroyedKeys() {
+        STATES.forEachIdle(State::forgetIfDestroyed);
+    }
+
+    private static final class State {
+        private final Mac mac;
+        private final byte[] full = new byte[MAC_LENGTH];
+        private SecretKey lastKey;
+
+        State() {
+            try {
+                this.mac = Mac.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        }
+
+        void compute(SecretKey key, byte[] cardId, byte[] ctrLE) throws InvalidKeyException {
+            if (key != lastKey) {
+                lastKey = null;
+                mac.init(key);
+                lastKey = key;
+            } else {
+                mac.reset();
+            }
+            mac.update(cardId);
+            mac.update(ctrLE);
+            try {
+                mac.doFinal(full, 0);
+            } catch (javax.crypto.ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void forgetIfDestroyed() {
+            if (lastKey == null || !lastKey.isDestroyed()) {
+                return;
+            }
+            lastKey = null;
+            Arrays.fill(full, (byte) 0);
+            try {
+                mac.init(BLANK_KEY);
+            } catch (InvalidKeyException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package backend.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Ограниченный пул дорогих в создании объектов (Mac, Cipher) для виртуальных потоков:
+ * ThreadLocal на виртуальном потоке создаёт экземпляр заново на каждый запрос.
+ * Пустой пул не блокирует - создаётся новый экземпляр; лишние при возврате отбрасываются.
+ */
+final class InstancePool<T> {
+
+    private final BlockingQueue<T> idle;
+    private final Supplier<T> factory;
+
+    InstancePool(int capacity, Supplier<T> factory) {
+        this.idle = new ArrayBlockingQueue<>(capacity);
+        this.factory = factory;
+    }
+
+    // Размер по умолчанию: одновременно CPU-работу выполняет не больше потоков-носителей, чем ядер
+    static int defaultCapacity() {
+        return Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    T acquire() {
+        T instance = idle.poll();
+        return instance != null ? instance : factory.get();
+    }
+
+    void release(T instance) {
+        idle.offer(instance);
+    }
+
+    /**
+     * Обход простаивающих экземпляров; на время обхода экземпляр изъят из пула
+     */
+    void forEachIdle(Consumer<T> action) {
+        for (int i = idle.size(); i > 0; i--) {
+            T instance = idle.poll();
+            if (instance == null) {
+                return;
+            }
+            action.accept(instance);
+            idle.offer(instance);
+        }
+    }
+}
@@ -7,76 +7,215 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.stream.IntStream;
 
+/**
+ * Обёртка ключей карт под KEK (AES-GCM): iv (12) || ciphertext || tag (16).
+ * Экземпляры Cipher берутся из ограниченного пула, IV - из общего SecureRandom.
+ * Пакетные wrapAll / unwrapAll работают с ключами, уложенными подряд в один массив,
+ * и делят большие пакеты между ядрами.
+ */
 @Service
 public class KeyWrapService {
-    
+
     private static final String ALGORITHM = "AES";
     private static final String TRANSFORMATION = "AES/GCM/NoPadding";
     private static final int GCM_IV_LENGTH = 12;
     private static final int GCM_TAG_LENGTH = 16;
-    
+    public static final int KEY_LENGTH = 32;
+    // Меньшие пакеты обрабатываются в вызывающем потоке
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private static final InstancePool<Cipher> CIPHERS = new InstancePool<>(InstancePool.defaultCapacity(), () -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+
     private final SecretKey kek;
-    
+    private final SecureRandom secureRandom = new SecureRandom();
+
     public KeyWrapService() {
         String kekB64 = System.getenv("APP_KEK_B64");
         if (kekB64 == null || kekB64.isEmpty()) {
             kekB64 = "default-kek-for-development-only";
         }
-        
+
         byte[] kekBytes = kekB64.getBytes(StandardCharsets.UTF_8);
         if (kekBytes.length != 32) {
             byte[] paddedKek = new byte[32];
             System.arraycopy(kekBytes, 0, paddedKek, 0, Math.min(kekBytes.length, 32));
             kekBytes = paddedKek;
         }
-        
+
         this.kek = new SecretKeySpec(kekBytes, ALGORITHM);
     }
-    
+
+    /**
+     * Длина обёрнутого ключа в байтах
+     */
+    public static int wrappedLength(int keyLength) {
+        return GCM_IV_LENGTH + keyLength + GCM_TAG_LENGTH;
+    }
+
     public String wrapKey(byte[] keyToWrap) {
         try {
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            byte[] result = new byte[wrappedLength(keyToWrap.length)];
             byte[] iv = new byte[GCM_IV_LENGTH];
-            new SecureRandom().nextBytes(iv);
-            
-            GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, kek, gcmSpec);
-            
-            byte[] wrappedKey = cipher.doFinal(keyToWrap);
-            
-            byte[] result = new byte[GCM_IV_LENGTH + wrappedKey.length];
+            secureRandom.nextBytes(iv);
             System.arraycopy(iv, 0, result, 0, GCM_IV_LENGTH);
-            System.arraycopy(wrappedKey, 0, result, GCM_IV_LENGTH, wrappedKey.length);
-            
+            Cipher cipher = CIPHERS.acquire();
+            try {
+                wrapInto(cipher, keyToWrap, 0, keyToWrap.length, result, 0);
+            } finally {
+                CIPHERS.release(cipher);
+            }
             return Base64.getUrlEncoder().withoutPadding().encodeToString(result);
         } catch (Exception e) {
             throw new RuntimeException("Failed to wrap key", e);
         }
     }
-    
+
     public byte[] unwrapKey(String wrappedKeyB64) {
         try {
             byte[] wrappedKey = Base64.getUrlDecoder().decode(wrappedKeyB64);
-            
-            byte[] iv = new byte[GCM_IV_LENGTH];
-            byte[] encryptedKey = new byte[wrappedKey.length - GCM_IV_LENGTH];
-            
-            System.arraycopy(wrappedKey, 0, iv, 0, GCM_IV_LENGTH);
-            System.arraycopy(wrappedKey, GCM_IV_LENGTH, encryptedKey, 0, encryptedKey.length);
-            
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-            cipher.init(Cipher.DECRYPT_MODE, kek, gcmSpec);
-            
-            return cipher.doFinal(encryptedKey);
+            int keyLength = wrappedKey.length - GCM_IV_LENGTH - GCM_TAG_LENGTH;
+            byte[] result = new byte[keyLength];
+            Cipher cipher = CIPHERS.acquire();
+            try {
+                unwrapInto(cipher, wrappedKey, 0, keyLength, result, 0);
+            } finally {
+                CIPHERS.release(cipher);
+            }
+            return result;
         } catch (Exception e) {
             throw new RuntimeException("Failed to unwrap key", e);
         }
     }
-    
+
+    /**
+     * Пакетная обёртка: keys - n ключей длины keyLength подряд, результат - n обёрнутых
+     * ключей длины wrappedLength(keyLength) подряд. IV для всего пакета берутся одним вызовом SecureRandom.
+     */
+    public byte[] wrapAll(byte[] keys, int keyLength) {
+        int count = countOf(keys, keyLength);
+        int wrappedLength = wrappedLength(keyLength);
+        byte[] result = new byte[count * wrappedLength];
+        byte[] ivs = new byte[count * GCM_IV_LENGTH];
+        secureRandom.nextBytes(ivs);
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(ivs, i * GCM_IV_LENGTH, result, i * wrappedLength, GCM_IV_LENGTH);
+        }
+        forEachSlice(count, (from, to) -> {
+            Cipher cipher = CIPHERS.acquire();
+            try {
+                for (int i = from; i < to; i++) {
+                    wrapInto(cipher, keys, i * keyLength, keyLength, result, i * wrappedLength);
+                }
+            } finally {
+                CIPHERS.release(cipher);
+            }
+        }, "Failed to wrap keys");
+        return result;
+    }
+
+    /**
+     * Пакетная развёртка: wrapped - n обёрнутых ключей подряд, результат - n ключей длины keyLength подряд.
+     * Ошибка любого элемента (неверный тег) прерывает весь пакет.
+     */
+    public byte[] unwrapAll(byte[] wrapped, int keyLength) {
+        int wrappedLength = wrappedLength(keyLength);
+        int count = countOf(wrapped, wrappedLength);
+        byte[] result = new byte[count * keyLength];
+        forEachSlice(count, (from, to) -> {
+            Cipher cipher = CIPHERS.acquire();
+            try {
+                for (int i = from; i < to; i++) {
+                    unwrapInto(cipher, wrapped, i * wrappedLength, keyLength, result, i * keyLength);
+                }
+            } finally {
+                CIPHERS.release(cipher);
+            }
+        }, "Failed to unwrap keys");
+        return result;
+    }
+
+    /**
+     * base64url i-го обёрнутого ключа пакета wrapAll (формат колонки k_master_b64)
+     */
+    public static String encodeWrapped(byte[] wrapped, int index, int keyLength) {
+        int wrappedLength = wrappedLength(keyLength);
+        byte[] one = new byte[wrappedLength];
+        System.arraycopy(wrapped, index * wrappedLength, one, 0, wrappedLength);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(one);
+    }
+
+    /**
+     * Раскладка base64url обёрнутых ключей в один массив для unwrapAll
+     */
+    public static byte[] decodeWrapped(String[] wrappedB64, int keyLength) {
+        int wrappedLength = wrappedLength(keyLength);
+        byte[] result = new byte[wrappedB64.length * wrappedLength];
+        for (int i = 0; i < wrappedB64.length; i++) {
+            byte[] one = Base64.getUrlDecoder().decode(wrappedB64[i]);
+            if (one.length != wrappedLength) {
+                throw new IllegalArgumentException("Unexpected wrapped key length: " + one.length);
+            }
+            System.arraycopy(one, 0, result, i * wrappedLength, wrappedLength);
+        }
+        return result;
+    }
+
+    // IV уже лежит в out[outOff, outOff + 12)
+    private void wrapInto(Cipher cipher, byte[] in, int inOff, int keyLength, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, kek, new GCMParameterSpec(GCM_TAG_LENGTH * 8, out, outOff, GCM_IV_LENGTH));
+        cipher.doFinal(in, inOff, keyLength, out, outOff + GCM_IV_LENGTH);
+    }
+
+    private void unwrapInto(Cipher cipher, byte[] in, int inOff, int keyLength, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, kek, new GCMParameterSpec(GCM_TAG_LENGTH * 8, in, inOff, GCM_IV_LENGTH));
+        cipher.doFinal(in, inOff + GCM_IV_LENGTH, keyLength + GCM_TAG_LENGTH, out, outOff);
+    }
+
+    private static int countOf(byte[] buffer, int itemLength) {
+        if (itemLength <= 0 || buffer.length % itemLength != 0) {
+            throw new IllegalArgumentException("Buffer length " + buffer.length + " is not a multiple of " + itemLength);
+        }
+        return buffer.length / itemLength;
+    }
+
+    // Деление пакета на непрерывные диапазоны по ядрам; внутри ForkJoinPool вызывающего (например, пула ротации)
+    private static void forEachSlice(int count, SliceTask task, String error) {
+        int slices = Math.min(Runtime.getRuntime().availableProcessors(), count / PARALLEL_THRESHOLD);
+        try {
+            if (slices <= 1) {
+                task.run(0, count);
+                return;
+            }
+            IntStream.range(0, slices).parallel().forEach(slice -> {
+                try {
+                    task.run((int) ((long) count * slice / slices), (int) ((long) count * (slice + 1) / slices));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (GeneralSecurityException | RuntimeException e) {
+            throw new RuntimeException(error, e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SliceTask {
+        void run(int from, int to) throws GeneralSecurityException;
+    }
+
     public byte[] generateNewKey() {
         try {
             KeyGenerator keyGenerator = KeyGenerator.getInstance(ALGORITHM);
@@ -86,4 +225,13 @@ public class KeyWrapService {
             throw new RuntimeException("Failed to generate new key", e);
         }
     }
+
+    /**
+     * count случайных ключей длины KEY_LENGTH подряд, одним вызовом SecureRandom
+     */
+    public byte[] generateKeys(int count) {
+        byte[] keys = new byte[count * KEY_LENGTH];
+        secureRandom.nextBytes(keys);
+        return keys;
+    }
 }
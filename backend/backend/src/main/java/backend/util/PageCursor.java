@@ -0,0 +1,34 @@
+package backend.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Непрозрачный курсор keyset-пагинации: значения ключа сортировки последней
+ * строки страницы, упакованные в base64url. Первая часть - вид сортировки,
+ * чтобы курсор одного порядка не применялся к другому.
+ */
+public final class PageCursor {
+    private static final String SEPARATOR = "\n";
+
+    private PageCursor() {}
+
+    public static String encode(String... parts) {
+        return B64Url.encode(String.join(SEPARATOR, parts).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Разбор курсора с проверкой вида сортировки и числа частей
+     */
+    public static String[] decode(String cursor, String kind, int parts) {
+        String[] decoded;
+        try {
+            decoded = new String(B64Url.decode(cursor), StandardCharsets.UTF_8).split(SEPARATOR, -1);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+        if (decoded.length != parts || !decoded[0].equals(kind)) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return decoded;
+    }
+}
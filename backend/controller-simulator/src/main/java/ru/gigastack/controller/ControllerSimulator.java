@@ -15,6 +15,15 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class ControllerSimulator {
     
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> HMAC_OUT = ThreadLocal.withInitial(() -> new byte[32]);
+    
     private final String controllerId;
     private final Map<String, CardData> cardDatabase;
     private final Path accessLogPath;
@@ -81,7 +90,7 @@ public class ControllerSimulator {
             }
             
             // Проверяем HMAC
-            if (!verifyHMAC(cardId, ctrBytes, tagBytes, cardData.getMasterKey())) {
+            if (!verifyHMAC(cardId, ctrBytes, tagBytes, cardData.getMacKey())) {
                 logAccess("ACCESS_DENIED", "Invalid authentication", cardId, ctr, false);
                 return new AccessDecision(false, "Invalid authentication", Instant.now());
             }
@@ -214,22 +223,24 @@ public class ControllerSimulator {
         }
     }
     
-    private boolean verifyHMAC(String cardId, byte[] ctr, byte[] tag, byte[] masterKey) {
+    private boolean verifyHMAC(String cardId, byte[] ctr, byte[] tag, SecretKeySpec macKey) {
         try {
-            // Создаем данные для HMAC: cardId + ctr
+            // HMAC(cardId || ctr): Mac переиспользуется в рамках потока, ключ подготовлен заранее
             byte[] cardIdBytes = Base64.getUrlDecoder().decode(cardId);
-            byte[] data = new byte[cardIdBytes.length + ctr.length];
-            System.arraycopy(cardIdBytes, 0, data, 0, cardIdBytes.length);
-            System.arraycopy(ctr, 0, data, cardIdBytes.length, ctr.length);
+            Mac mac = HMAC.get();
+            mac.init(macKey);
+            mac.update(cardIdBytes);
+            mac.update(ctr);
+            byte[] computedTag = HMAC_OUT.get();
+            mac.doFinal(computedTag, 0);
             
-            // Вычисляем HMAC
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
-            byte[] computedTag = mac.doFinal(data);
-            
-            // Сравниваем первые 16 байт
-            byte[] expectedTag = Arrays.copyOf(computedTag, 16);
-            return Arrays.equals(expectedTag, tag);
+            // Сравниваем первые 16 байт за постоянное время
+            if (tag == null || tag.length != 16) return false;
+            int diff = 0;
+            for (int i = 0; i < 16; i++) {
+                diff |= computedTag[i] ^ tag[i];
+            }
+            return diff == 0;
             
         } catch (Exception e) {
             return false;
@@ -281,6 +292,7 @@ public class ControllerSimulator {
         private String cardId;
         private String owner;
         private byte[] masterKey;
+        private SecretKeySpec macKey;
         private Instant expiresAt;
         private boolean active;
         private long lastCtr;
@@ -289,6 +301,7 @@ public class ControllerSimulator {
             this.cardId = cardId;
             this.owner = owner;
             this.masterKey = masterKey;
+            this.macKey = masterKey != null ? new SecretKeySpec(masterKey, "HmacSHA256") : null;
             this.expiresAt = expiresAt;
             this.active = active;
             this.lastCtr = lastCtr;
@@ -298,6 +311,7 @@ public class ControllerSimulator {
         public String getCardId() { return cardId; }
         public String getOwner() { return owner; }
         public byte[] getMasterKey() { return masterKey; }
+        public SecretKeySpec getMacKey() { return macKey; }
         public Instant getExpiresAt() { return expiresAt; }
         public boolean isActive() { return active; }
         public long getLastCtr() { return lastCtr; }
@@ -0,0 +1,70 @@
+package ru.gigastack.demo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Отдельная схема audit_bench для замеров аудита на локальном Postgres: схема создаётся заново,
+ * в неё загружается audit_tables.sql (search_path = audit_bench), после замера схема удаляется.
+ * Таблицы приложения и их последовательности не затрагиваются.
+ * Подключение: -Dbench.url, -Dbench.user, -Dbench.password (по умолчанию БД из docker-compose),
+ * файл схемы: -Dbench.schema-file (по умолчанию audit_tables.sql или ../audit_tables.sql).
+ */
+final class AuditBenchSchema implements AutoCloseable {
+
+    static final String SCHEMA = "audit_bench";
+
+    private final Connection connection;
+
+    private AuditBenchSchema(Connection connection) {
+        this.connection = connection;
+    }
+
+    static AuditBenchSchema create() throws Exception {
+        String url = System.getProperty("bench.url", "jdbc:postgresql://localhost:5433/cityithack");
+        // Как у backend: PgJDBC склеивает JDBC batch в многострочный INSERT
+        if (!url.contains("reWriteBatchedInserts")) {
+            url += (url.contains("?") ? "&" : "?") + "reWriteBatchedInserts=true";
+        }
+        Connection connection = DriverManager.getConnection(url,
+            System.getProperty("bench.user", "city"), System.getProperty("bench.password", "city"));
+        try (Statement st = connection.createStatement()) {
+            st.execute("drop schema if exists " + SCHEMA + " cascade");
+            st.execute("create schema " + SCHEMA);
+            st.execute("set search_path = " + SCHEMA);
+            st.execute(Files.readString(schemaFile(), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            connection.close();
+            throw e;
+        }
+        return new AuditBenchSchema(connection);
+    }
+
+    private static Path schemaFile() {
+        String configured = System.getProperty("bench.schema-file");
+        if (configured != null) {
+            return Path.of(configured);
+        }
+        Path local = Path.of("audit_tables.sql");
+        return Files.exists(local) ? local : Path.of("..", "audit_tables.sql");
+    }
+
+    Connection connection() {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            st.execute("drop schema if exists " + SCHEMA + " cascade");
+        } finally {
+            connection.close();
+        }
+    }
+}
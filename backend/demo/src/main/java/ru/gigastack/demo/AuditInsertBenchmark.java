@@ -0,0 +1,139 @@
+package ru.gigastack.demo;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Замер скорости вставки аудита (строк/с) при разных размерах пакета на схеме audit_tables.sql,
+ * загруженной в отдельную схему локального Postgres (AuditBenchSchema):
+ *   row   - INSERT ... RETURNING id на каждую строку, как у Hibernate с GenerationType.IDENTITY;
+ *   batch - id блоками из audit_events_seq и один JDBC batch, как у AuditEventJdbcRepository.
+ * Каждый пакет - отдельная транзакция, как у AuditPipeline:
+ *   java -Dbench.url=... AuditInsertBenchmark [rows] [batchSizes]
+ */
+public class AuditInsertBenchmark {
+
+    // Шаг audit_events_seq (AuditEvent.ID_ALLOCATION_SIZE)
+    private static final int ID_ALLOCATION_SIZE = 50;
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private static final String COLUMNS =
+        "event_type, event_category, card_id, reader_id, owner, user_role, event_timestamp, success, message, " +
+        "ip_address, access_type, counter_value, response_time_ms";
+    private static final String ROW_SQL =
+        "insert into audit_events (" + COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) returning id";
+    private static final String BATCH_SQL =
+        "insert into audit_events (id, " + COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        String batchSizes = args.length > 1 ? args[1] : "1,50,500";
+
+        try (AuditBenchSchema schema = AuditBenchSchema.create()) {
+            Connection connection = schema.connection();
+            createTodayPartition(connection);
+            connection.setAutoCommit(false);
+
+            // Прогрев обоих путей
+            measure(connection, "row", Math.min(1000, rows), 50);
+            measure(connection, "batch", Math.min(1000, rows), 50);
+
+            System.out.printf("%-6s %9s %9s %10s %12s%n", "mode", "batchSize", "rows", "seconds", "rows/s");
+            for (String value : batchSizes.split(",")) {
+                int batchSize = Integer.parseInt(value.trim());
+                for (String mode : List.of("row", "batch")) {
+                    double seconds = measure(connection, mode, rows, batchSize);
+                    System.out.printf("%-6s %9d %9d %10.3f %12.0f%n", mode, batchSize, rows, seconds, rows / seconds);
+                }
+            }
+        }
+    }
+
+    // Строки пишутся в суточную секцию, как у приложения (AuditPartitionService), а не в секцию по умолчанию
+    private static void createTodayPartition(Connection connection) throws Exception {
+        Instant today = Instant.now().truncatedTo(ChronoUnit.DAYS);
+        try (Statement st = connection.createStatement()) {
+            st.execute("create table audit_events_p" + NAME_FORMAT.format(today) + " partition of audit_events " +
+                "for values from ('" + today + "') to ('" + today.plus(1, ChronoUnit.DAYS) + "')");
+        }
+    }
+
+    private static double measure(Connection connection, String mode, int rows, int batchSize) throws Exception {
+        long start = System.nanoTime();
+        try (PreparedStatement row = connection.prepareStatement(ROW_SQL);
+             PreparedStatement batch = connection.prepareStatement(BATCH_SQL)) {
+            for (int done = 0; done < rows; done += batchSize) {
+                int count = Math.min(batchSize, rows - done);
+                if ("row".equals(mode)) {
+                    for (int i = 0; i < count; i++) {
+                        bind(row, 1, done + i);
+                        try (ResultSet rs = row.executeQuery()) {
+                            rs.next();
+                        }
+                    }
+                } else {
+                    long[] ids = allocateIds(connection, count);
+                    for (int i = 0; i < count; i++) {
+                        batch.setLong(1, ids[i]);
+                        bind(batch, 2, done + i);
+                        batch.addBatch();
+                    }
+                    batch.executeBatch();
+                }
+                connection.commit();
+            }
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static void bind(PreparedStatement ps, int first, int i) throws Exception {
+        ps.setString(first, "ACCESS_GRANTED");
+        ps.setString(first + 1, "AUTHENTICATION");
+        ps.setString(first + 2, "bench-card-" + (i % 1000));
+        ps.setString(first + 3, "bench-reader");
+        ps.setString(first + 4, "bench");
+        ps.setString(first + 5, "permanent");
+        ps.setTimestamp(first + 6, Timestamp.from(Instant.now()));
+        ps.setBoolean(first + 7, true);
+        ps.setString(first + 8, "Access granted");
+        ps.setString(first + 9, "127.0.0.1");
+        ps.setString(first + 10, "CARD_VERIFICATION");
+        ps.setLong(first + 11, i);
+        ps.setLong(first + 12, 1L);
+    }
+
+    // Как AuditEventJdbcRepository.allocateIds: одно обращение к последовательности на блоки по ID_ALLOCATION_SIZE
+    private static long[] allocateIds(Connection connection, int count) throws Exception {
+        long[] ids = new long[count];
+        int filled = 0;
+        try (PreparedStatement ps = connection.prepareStatement("select nextval('audit_events_seq') from generate_series(1, ?)")) {
+            while (filled < count) {
+                ps.setInt(1, (count - filled + ID_ALLOCATION_SIZE - 1) / ID_ALLOCATION_SIZE);
+                List<Long> blocks = new ArrayList<>();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        blocks.add(rs.getLong(1));
+                    }
+                }
+                for (long hi : blocks) {
+                    if (hi < ID_ALLOCATION_SIZE) {
+                        continue;
+                    }
+                    for (long id = hi - ID_ALLOCATION_SIZE + 1; id <= hi && filled < count; id++) {
+                        ids[filled++] = id;
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+}
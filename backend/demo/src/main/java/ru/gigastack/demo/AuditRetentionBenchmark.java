@@ -0,0 +1,199 @@
+package ru.gigastack.demo;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Замер вставки и очистки аудита на локальном Postgres: несекционированная таблица с прежним набором
+ * индексов (13) против секционированной по суткам с сокращённым набором (как audit_events
+ * после audit_tables.sql). Строки равномерно распределены по days суткам до текущего момента,
+ * вставка - JDBC-пакетами по BATCH_SIZE, пакет - транзакция. Очистка удаляет старшую половину
+ * суток: DELETE против удаления секций. Таблицы создаются в отдельной схеме (AuditBenchSchema):
+ *   java -Dbench.url=... AuditRetentionBenchmark [rows] [days]
+ */
+public class AuditRetentionBenchmark {
+
+    private static final int BATCH_SIZE = 500;
+    private static final String PLAIN = "audit_bench_plain";
+    private static final String PARTITIONED = "audit_bench_part";
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    // Прежние индексы audit_tables.sql (кроме первичного ключа)
+    private static final String[] LEGACY_INDEXES = {
+        "(event_timestamp DESC)", "(event_type)", "(event_category)", "(card_id)", "(reader_id)", "(success)",
+        "(ip_address)", "(event_timestamp DESC) WHERE access_type IS NOT NULL", "(card_id, event_timestamp DESC)",
+        "(reader_id, event_timestamp DESC)", "(success, event_timestamp DESC)",
+        "(success, event_timestamp DESC) WHERE success = FALSE"
+    };
+
+    // Текущий набор audit_tables.sql (кроме первичного ключа)
+    private static final String[] SLIM_INDEXES = {
+        "(card_id, event_timestamp DESC)", "(reader_id, event_timestamp DESC)",
+        "(event_timestamp DESC, id DESC) WHERE access_type IS NOT NULL",
+        "(event_timestamp DESC) WHERE success = FALSE"
+    };
+
+    private static final String COLUMNS =
+        "(id, event_type, event_category, card_id, reader_id, owner, event_timestamp, success, ip_address, " +
+        "access_type, counter_value, response_time_ms)";
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        if (rows <= 0 || days < 2) {
+            throw new IllegalArgumentException("rows > 0 and days >= 2 expected");
+        }
+
+        Instant now = Instant.now();
+        Instant firstDay = now.truncatedTo(ChronoUnit.DAYS).minus(days - 1L, ChronoUnit.DAYS);
+        Instant cutoff = firstDay.plus(days / 2, ChronoUnit.DAYS);
+
+        try (AuditBenchSchema schema = AuditBenchSchema.create()) {
+            Connection connection = schema.connection();
+            createPlain(connection);
+            createPartitioned(connection, firstDay, days);
+            connection.setAutoCommit(false);
+
+            System.out.printf("%-12s %-16s %9s %8s %10s %12s %14s%n",
+                "mode", "operation", "rows", "indexes", "seconds", "rows/s", "totalBytes");
+            measureInserts(connection, "plain", PLAIN, LEGACY_INDEXES.length + 1, rows, firstDay, now);
+            measureInserts(connection, "partitioned", PARTITIONED, SLIM_INDEXES.length + 1, rows, firstDay, now);
+
+            System.out.printf("%n%-12s %-16s %9s %11s %10s%n", "mode", "operation", "rows", "partitions", "seconds");
+            measureDelete(connection, cutoff);
+            measureDropPartitions(connection, cutoff);
+        }
+    }
+
+    private static void createPlain(Connection connection) throws Exception {
+        try (Statement st = connection.createStatement()) {
+            st.execute("create table " + PLAIN + " (like audit_events, primary key (id))");
+            for (int i = 0; i < LEGACY_INDEXES.length; i++) {
+                st.execute("create index " + PLAIN + "_idx" + i + " on " + PLAIN + LEGACY_INDEXES[i]);
+            }
+        }
+    }
+
+    private static void createPartitioned(Connection connection, Instant firstDay, int days) throws Exception {
+        try (Statement st = connection.createStatement()) {
+            st.execute("create table " + PARTITIONED + " (like audit_events, primary key (event_timestamp, id)) " +
+                "partition by range (event_timestamp)");
+            for (int i = 0; i < SLIM_INDEXES.length; i++) {
+                st.execute("create index " + PARTITIONED + "_idx" + i + " on " + PARTITIONED + SLIM_INDEXES[i]);
+            }
+            for (int day = 0; day < days; day++) {
+                Instant from = firstDay.plus(day, ChronoUnit.DAYS);
+                st.execute("create table " + PARTITIONED + "_p" + NAME_FORMAT.format(from) + " partition of " +
+                    PARTITIONED + " for values from ('" + from + "') to ('" + from.plus(1, ChronoUnit.DAYS) + "')");
+            }
+        }
+    }
+
+    // Строки по времени в порядке вставки (журнал пишется в конец), последовательные id
+    private static void measureInserts(Connection connection, String mode, String table, int indexes, int rows,
+                                       Instant from, Instant to) throws Exception {
+        long fromMillis = from.toEpochMilli();
+        long span = to.toEpochMilli() - fromMillis;
+        long start = System.nanoTime();
+        try (PreparedStatement ps = connection.prepareStatement(
+                "insert into " + table + " " + COLUMNS + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            for (int done = 0; done < rows; done += BATCH_SIZE) {
+                for (int i = done; i < Math.min(done + BATCH_SIZE, rows); i++) {
+                    boolean success = i % 10 != 0;
+                    ps.setLong(1, i + 1L);
+                    ps.setString(2, success ? "ACCESS_GRANTED" : "ACCESS_DENIED");
+                    ps.setString(3, "BENCHMARK");
+                    ps.setString(4, "bench-card-" + (i % 1000));
+                    ps.setString(5, "bench-reader-" + (i % 20));
+                    ps.setString(6, "bench");
+                    ps.setTimestamp(7, Timestamp.from(Instant.ofEpochMilli(fromMillis + span * i / rows)));
+                    ps.setBoolean(8, success);
+                    ps.setString(9, "10.0." + (i % 250) + ".1");
+                    ps.setString(10, "CARD_VERIFICATION");
+                    ps.setLong(11, i);
+                    ps.setLong(12, 1L);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                connection.commit();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-12s %-16s %9d %8d %10.3f %12.0f %14d%n",
+            mode, "insert", rows, indexes, seconds, rows / seconds, totalBytes(connection, table));
+    }
+
+    private static void measureDelete(Connection connection, Instant cutoff) throws Exception {
+        long start = System.nanoTime();
+        int deleted;
+        try (PreparedStatement ps = connection.prepareStatement("delete from " + PLAIN + " where event_timestamp < ?")) {
+            ps.setTimestamp(1, Timestamp.from(cutoff));
+            deleted = ps.executeUpdate();
+        }
+        connection.commit();
+        printRetention("plain", "delete", deleted, 0, start);
+    }
+
+    private static void measureDropPartitions(Connection connection, Instant cutoff) throws Exception {
+        List<String> expired = new ArrayList<>();
+        try (PreparedStatement ps = connection.prepareStatement(
+                "select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid " +
+                "where i.inhparent = to_regclass(?) and c.relname < ? order by 1")) {
+            ps.setString(1, PARTITIONED);
+            ps.setString(2, PARTITIONED + "_p" + NAME_FORMAT.format(cutoff));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    expired.add(rs.getString(1));
+                }
+            }
+        }
+        long rows;
+        try (PreparedStatement ps = connection.prepareStatement(
+                "select count(*) from " + PARTITIONED + " where event_timestamp < ?")) {
+            ps.setTimestamp(1, Timestamp.from(cutoff));
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                rows = rs.getLong(1);
+            }
+        }
+        connection.commit();
+        long start = System.nanoTime();
+        try (Statement st = connection.createStatement()) {
+            for (String name : expired) {
+                st.execute("drop table " + name);
+            }
+        }
+        connection.commit();
+        printRetention("partitioned", "drop-partitions", rows, expired.size(), start);
+    }
+
+    private static void printRetention(String mode, String operation, long rows, int partitions, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-12s %-16s %9d %11d %10.3f%n", mode, operation, rows, partitions, seconds);
+    }
+
+    // Таблица, индексы и TOAST всех секций
+    private static long totalBytes(Connection connection, String table) throws Exception {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "select coalesce(sum(pg_total_relation_size(r::regclass)), 0) from (select to_regclass(?)::oid as r " +
+                "union all select inhrelid from pg_inherits where inhparent = to_regclass(?)) t")) {
+            ps.setString(1, table);
+            ps.setString(2, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                long bytes = rs.getLong(1);
+                connection.commit();
+                return bytes;
+            }
+        }
+    }
+}
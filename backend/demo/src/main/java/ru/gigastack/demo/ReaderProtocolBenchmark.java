@@ -0,0 +1,184 @@
+package ru.gigastack.demo;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Нагрузочное сравнение HTTP POST /api/cards/verify и бинарного TCP-протокола ридеров.
+ * Запускается против работающего backend с app.reader-tcp.enabled=true:
+ *   java ... ReaderProtocolBenchmark [host] [httpPort] [tcpPort] [requests] [concurrency]
+ * Карта создаётся через POST /api/cards; теги случайные, поэтому измеряется полный путь
+ * отказа (поиск карты, HMAC, запись аудита), одинаковый для обоих транспортов.
+ */
+public class ReaderProtocolBenchmark {
+
+    private static final int REQUEST_LENGTH = 64;
+    private static final int RESPONSE_LENGTH = 16;
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int httpPort = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        int tcpPort = args.length > 2 ? Integer.parseInt(args[2]) : 9090;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+        int concurrency = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+
+        HttpClient client = HttpClient.newHttpClient();
+        String cardId = createCard(client, host, httpPort);
+        System.out.println("Карта для теста: " + cardId);
+
+        // Прогрев обоих транспортов
+        runHttp(client, host, httpPort, cardId, Math.min(2000, requests), concurrency);
+        runTcp(host, tcpPort, cardId, Math.min(2000, requests), concurrency);
+
+        report("HTTP", runHttp(client, host, httpPort, cardId, requests, concurrency));
+        report("TCP ", runTcp(host, tcpPort, cardId, requests, concurrency));
+    }
+
+    private static String createCard(HttpClient client, String host, int port) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + host + ":" + port + "/api/cards"))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString("{\"owner\":\"benchmark\",\"ttlSeconds\":3600}"))
+            .build();
+        String body = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+        int start = body.indexOf("\"cardId\":\"") + 10;
+        return body.substring(start, body.indexOf('"', start));
+    }
+
+    private static Result runHttp(HttpClient client, String host, int port, String cardId,
+                                  int requests, int concurrency) throws Exception {
+        URI uri = URI.create("http://" + host + ":" + port + "/api/cards/verify");
+        long[] latencies = new long[requests];
+        AtomicLong next = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        SecureRandom random = new SecureRandom();
+        long started = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            pool.execute(() -> {
+                try {
+                    int i;
+                    while ((i = (int) next.getAndIncrement()) < requests) {
+                        byte[] ctr = le64(i + 1L);
+                        byte[] tag = new byte[16];
+                        random.nextBytes(tag);
+                        String json = "{\"cardId\":\"" + cardId + "\",\"ctr\":\"" + b64(ctr) + "\",\"tag\":\"" + b64(tag) + "\"}";
+                        HttpRequest request = HttpRequest.newBuilder(uri)
+                            .header("Content-Type", "application/json")
+                            .header("X-Reader-Id", "BENCH-HTTP")
+                            .POST(HttpRequest.BodyPublishers.ofString(json))
+                            .build();
+                        long t0 = System.nanoTime();
+                        client.send(request, HttpResponse.BodyHandlers.discarding());
+                        latencies[i] = System.nanoTime() - t0;
+                    }
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        pool.shutdown();
+        return new Result(requests, System.nanoTime() - started, latencies);
+    }
+
+    /**
+     * Одно соединение, до concurrency запросов в полёте (конвейер)
+     */
+    private static Result runTcp(String host, int port, String cardId, int requests, int concurrency) throws Exception {
+        long[] latencies = new long[requests];
+        ConcurrentHashMap<Long, Long> sentAt = new ConcurrentHashMap<>();
+        Semaphore window = new Semaphore(concurrency);
+        byte[] cardIdBytes = Base64.getUrlDecoder().decode(cardId);
+        byte[] readerId = Arrays.copyOf("BENCH-TCP".getBytes(StandardCharsets.US_ASCII), 16);
+        SecureRandom random = new SecureRandom();
+
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            long started = System.nanoTime();
+
+            Thread reader = new Thread(() -> {
+                byte[] response = new byte[RESPONSE_LENGTH];
+                try {
+                    for (int received = 0; received < requests; received++) {
+                        in.readFully(response);
+                        long requestId = ByteBuffer.wrap(response).getLong();
+                        latencies[(int) requestId] = System.nanoTime() - sentAt.remove(requestId);
+                        window.release();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            reader.start();
+
+            ByteBuffer frame = ByteBuffer.allocate(REQUEST_LENGTH);
+            byte[] tag = new byte[16];
+            for (int i = 0; i < requests; i++) {
+                window.acquire();
+                random.nextBytes(tag);
+                frame.clear();
+                frame.putLong(i).put(cardIdBytes).put(le64(i + 1L)).put(tag).put(readerId);
+                sentAt.put((long) i, System.nanoTime());
+                out.write(frame.array());
+            }
+            out.flush();
+            reader.join();
+            return new Result(requests, System.nanoTime() - started, latencies);
+        }
+    }
+
+    private static void report(String name, Result result) {
+        long[] sorted = result.latencies.clone();
+        Arrays.sort(sorted);
+        double seconds = result.elapsedNanos / 1e9;
+        System.out.printf("%s: %d запросов за %.2f c, %.0f req/s, p50=%.2f мс, p99=%.2f мс%n",
+            name, result.requests, seconds, result.requests / seconds,
+            sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6);
+    }
+
+    private static byte[] le64(long v) {
+        byte[] out = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            out[i] = (byte) (v & 0xFF);
+            v >>= 8;
+        }
+        return out;
+    }
+
+    private static String b64(byte[] data) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+    }
+
+    private static final class Result {
+        final int requests;
+        final long elapsedNanos;
+        final long[] latencies;
+
+        Result(int requests, long elapsedNanos, long[] latencies) {
+            this.requests = requests;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ru.gigastack.demo;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Нагрузка на HTTP API при растущем числе одновременных запросов: пропускная способность,
+ * p50/p99 и число отказов (429 - лимит частоты, 503 - лимит параллелизма по пулу БД).
+ * Для сравнения платформенных и виртуальных потоков прогон делается дважды - против
+ * backend с VIRTUAL_THREADS=false и с VIRTUAL_THREADS=true (лимиты частоты отключить:
+ * app.rate-limit.enabled=false):
+ *   java ... VerifyLoadBenchmark [label] [host] [port] [requests] [levels] [endpoint]
+ * endpoint: verify - POST /api/cards/verify (кэш карт, HMAC, асинхронный аудит);
+ *           status - GET /api/admin/status/{cardId} (чтение из БД на каждый запрос).
+ */
+public class VerifyLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String label = args.length > 0 ? args[0] : "run";
+        String host = args.length > 1 ? args[1] : "localhost";
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 8080;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+        String levels = args.length > 4 ? args[4] : "50,200,1000,4000";
+        String endpoint = args.length > 5 ? args[5] : "verify";
+
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String cardId = createCard(client, host, port);
+        String base = "http://" + host + ":" + port;
+
+        // Прогрев
+        run(client, base, endpoint, cardId, Math.min(2000, requests), 50, 0);
+
+        System.out.printf("%-10s %-8s %8s %10s %10s %10s %8s %8s %8s%n",
+            "label", "endpoint", "inFlight", "req/s", "p50, мс", "p99, мс", "429", "503", "errors");
+        long ctrBase = requests;
+        for (String level : levels.split(",")) {
+            int concurrency = Integer.parseInt(level.trim());
+            Result result = run(client, base, endpoint, cardId, requests, concurrency, ctrBase);
+            ctrBase += requests;
+            long[] sorted = result.latencies.clone();
+            Arrays.sort(sorted);
+            double seconds = result.elapsedNanos / 1e9;
+            System.out.printf("%-10s %-8s %8d %10.0f %10.2f %10.2f %8d %8d %8d%n",
+                label, endpoint, concurrency, requests / seconds,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+                result.tooManyRequests.get(), result.unavailable.get(), result.errors.get());
+        }
+    }
+
+    private static String createCard(HttpClient client, String host, int port) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + host + ":" + port + "/api/cards"))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString("{\"owner\":\"benchmark\",\"ttlSeconds\":3600}"))
+            .build();
+        String body = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+        int start = body.indexOf("\"cardId\":\"") + 10;
+        return body.substring(start, body.indexOf('"', start));
+    }
+
+    /**
+     * Асинхронные запросы, не более concurrency в полёте
+     */
+    private static Result run(HttpClient client, String base, String endpoint, String cardId,
+                              int requests, int concurrency, long ctrBase) throws Exception {
+        Result result = new Result(requests);
+        Semaphore window = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(requests);
+        SecureRandom random = new SecureRandom();
+        long started = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            window.acquire();
+            HttpRequest request = build(base, endpoint, cardId, ctrBase + i + 1, random);
+            int index = i;
+            long t0 = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                result.latencies[index] = System.nanoTime() - t0;
+                if (error != null) {
+                    result.errors.incrementAndGet();
+                } else if (response.statusCode() == 429) {
+                    result.tooManyRequests.incrementAndGet();
+                } else if (response.statusCode() == 503) {
+                    result.unavailable.incrementAndGet();
+                } else if (response.statusCode() >= 400) {
+                    result.errors.incrementAndGet();
+                }
+                window.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        result.elapsedNanos = System.nanoTime() - started;
+        return result;
+    }
+
+    private static HttpRequest build(String base, String endpoint, String cardId, long ctr, SecureRandom random) {
+        if ("status".equals(endpoint)) {
+            return HttpRequest.newBuilder(URI.create(base + "/api/admin/status/" + cardId)).GET().build();
+        }
+        byte[] tag = new byte[16];
+        random.nextBytes(tag);
+        String json = "{\"cardId\":\"" + cardId + "\",\"ctr\":\"" + b64(le64(ctr)) + "\",\"tag\":\"" + b64(tag) + "\"}";
+        return HttpRequest.newBuilder(URI.create(base + "/api/cards/verify"))
+            .header("Content-Type", "application/json")
+            .header("X-Reader-Id", "BENCH-LOAD")
+            .POST(HttpRequest.BodyPublishers.ofString(json))
+            .build();
+    }
+
+    private static byte[] le64(long v) {
+        byte[] out = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            out[i] = (byte) (v & 0xFF);
+            v >>= 8;
+        }
+        return out;
+    }
+
+    private static String b64(byte[] data) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+    }
+
+    private static final class Result {
+        final long[] latencies;
+        final AtomicInteger tooManyRequests = new AtomicInteger();
+        final AtomicInteger unavailable = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        long elapsedNanos;
+
+        Result(int requests) {
+            this.latencies = new long[requests];
+        }
+    }
+}